@@ -0,0 +1,324 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.benchmark;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+import net.yourhome.server.base.DatabaseConnector;
+import net.yourhome.server.base.SettingsManager;
+import net.yourhome.server.base.history.HistoryEvent;
+import net.yourhome.server.base.history.HistoryPartitions;
+import net.yourhome.server.base.history.HistoryRollups;
+import net.yourhome.server.base.history.HistorySeries;
+import net.yourhome.server.base.history.HistoryWriter;
+import net.yourhome.server.base.history.MeterAggregates;
+import net.yourhome.server.base.history.PercentileSketches;
+import net.yourhome.server.base.history.SeriesDictionary;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Fills the history databases of a base path with synthetic values of a
+ * number of Z-Wave like series: temperatures and humidities that follow the
+ * day and the season, power with spikes, a kWh meter that integrates the
+ * power and switches. The values are spread evenly over the given number
+ * of days up to now.
+ *
+ * The databases are created by the DatabaseConnector like on a first start.
+ * Values of the last WEEKLY_DAYS go to the partitions of the weekly
+ * database (and reach the archive through the tiering on the next start),
+ * older values go straight to the archive. The rollups of the archive are
+ * left to the backfill that runs on the next start, the percentile
+ * sketches and meter totals are filled here.
+ *
+ * gradlew generateHistory -PhistoryPath=/tmp/yourhome -Prows=10000000 -Pseries=100 -Pdays=730
+ */
+public class HistoryDataGenerator {
+	public static final int WEEKLY_DAYS = 28;
+	private static final int BATCH_SIZE = 50000;
+	private static final long SECONDS_PER_DAY = 86400L;
+	private static final String[] UNITS = { "C", "%", "W", "kWh", "" };
+	private static final String INSERT_ARCHIVE_VALUE = "INSERT INTO History_Values (series_id, time, value_d) VALUES (?,?,?)";
+
+	private final File basePath;
+	private final long rows;
+	private final int seriesCount;
+	private final int days;
+	private final Random random = new Random(42);
+
+	public HistoryDataGenerator(File basePath, long rows, int seriesCount, int days) {
+		this.basePath = basePath;
+		this.rows = rows;
+		this.seriesCount = Math.max(1, seriesCount);
+		this.days = Math.max(1, days);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: HistoryDataGenerator <base path> [rows] [series] [days]");
+			System.exit(1);
+		}
+		long rows = args.length > 1 ? Long.parseLong(args[1]) : 1000000L;
+		int series = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int days = args.length > 3 ? Integer.parseInt(args[3]) : 365;
+		new HistoryDataGenerator(new File(args[0]), rows, series, days).generate();
+		System.exit(0);
+	}
+
+	/*
+	 * Identifiers of the generated series, the same for every run
+	 */
+	public static List<ControlIdentifiers> getSeries(int count) {
+		List<ControlIdentifiers> series = new ArrayList<ControlIdentifiers>(count);
+		for (int i = 0; i < count; i++) {
+			series.add(new ControlIdentifiers("zwave", "1-" + (2 + i / HistoryDataGenerator.UNITS.length), "7205759" + (4000000000L + i)));
+		}
+		return series;
+	}
+
+	public static String getUnit(int seriesIndex) {
+		return HistoryDataGenerator.UNITS[seriesIndex % HistoryDataGenerator.UNITS.length];
+	}
+
+	/*
+	 * Whether the databases of the base path already hold generated values
+	 */
+	public static boolean exists(File basePath) {
+		return new File(basePath, "database/home_history_archive.db").exists();
+	}
+
+	public void generate() throws SQLException, InterruptedException {
+		if (HistoryDataGenerator.exists(this.basePath)) {
+			throw new IllegalStateException("History databases already exist in " + this.basePath.getAbsolutePath());
+		}
+		this.createDatabases();
+
+		String databasePath = new File(this.basePath, "database").getAbsolutePath();
+		Connection weekly = DriverManager.getConnection("jdbc:sqlite:" + databasePath + "/home_history_weekly.db");
+		Connection archive = DriverManager.getConnection("jdbc:sqlite:" + databasePath + "/home_history_archive.db");
+		try {
+			this.fill(weekly, archive);
+		} finally {
+			weekly.close();
+			archive.close();
+		}
+	}
+
+	/*
+	 * Lets the DatabaseConnector create the databases, then closes it again.
+	 * The backfill of the empty archive has to be done before values are
+	 * added, it would count them a second time otherwise.
+	 */
+	private void createDatabases() throws InterruptedException {
+		SettingsManager.setBasePath(this.basePath.getAbsolutePath() + "/");
+		DatabaseConnector connector = DatabaseConnector.getInstance();
+		HistoryRollups rollups = connector.getHistoryRollups();
+		while (rollups != null && !rollups.isBackfilled()) {
+			Thread.sleep(100);
+		}
+		connector.destroy();
+	}
+
+	private void fill(Connection weekly, Connection archive) throws SQLException {
+		long now = System.currentTimeMillis() / 1000L;
+		long start = now - this.days * HistoryDataGenerator.SECONDS_PER_DAY;
+		long weeklyStart = now - HistoryDataGenerator.WEEKLY_DAYS * HistoryDataGenerator.SECONDS_PER_DAY;
+		long valuesPerSeries = Math.max(1, this.rows / this.seriesCount);
+		long interval = Math.max(1, (now - start) / valuesPerSeries);
+
+		SeriesDictionary weeklySeries = new SeriesDictionary(weekly);
+		SeriesDictionary archiveSeries = new SeriesDictionary(archive);
+		HistoryPartitions partitions = new HistoryPartitions(weekly);
+		PercentileSketches sketches = new PercentileSketches(weekly, weeklySeries, null);
+		MeterAggregates meters = new MeterAggregates(weekly, weeklySeries);
+		List<ControlIdentifiers> identifiers = HistoryDataGenerator.getSeries(this.seriesCount);
+		SeriesState[] states = new SeriesState[this.seriesCount];
+		for (int i = 0; i < this.seriesCount; i++) {
+			ControlIdentifiers controlIdentifiers = identifiers.get(i);
+			String unit = HistoryDataGenerator.getUnit(i);
+			states[i] = new SeriesState(controlIdentifiers, unit);
+			states[i].weeklyId = this.getSeriesId(weeklySeries, controlIdentifiers, unit);
+			states[i].archiveId = this.getSeriesId(archiveSeries, controlIdentifiers, unit);
+		}
+
+		// Creating a partition commits, so all of them are created up front
+		for (long time = weeklyStart; time < now + HistoryDataGenerator.SECONDS_PER_DAY * 7; time += HistoryDataGenerator.SECONDS_PER_DAY) {
+			partitions.getTable(time);
+		}
+
+		this.begin(weekly);
+		this.begin(archive);
+		PreparedStatement archiveInsert = archive.prepareStatement(HistoryDataGenerator.INSERT_ARCHIVE_VALUE);
+		Map<String, PreparedStatement> partitionInserts = new HashMap<String, PreparedStatement>();
+		long written = 0;
+		long lastDay = start / HistoryDataGenerator.SECONDS_PER_DAY;
+		try {
+			for (long step = 0; step < valuesPerSeries; step++) {
+				long stepTime = start + step * interval;
+				for (int i = 0; i < this.seriesCount; i++) {
+					SeriesState state = states[i];
+					// Spread the series over the interval, like independent sensors
+					long time = stepTime + (interval * i) / this.seriesCount;
+					double value = this.nextValue(state, i, time, interval);
+
+					PreparedStatement insert;
+					int seriesId;
+					if (time < weeklyStart) {
+						insert = archiveInsert;
+						seriesId = state.archiveId;
+					} else {
+						String table = partitions.getTable(time);
+						insert = partitionInserts.get(table);
+						if (insert == null) {
+							insert = weekly.prepareStatement(String.format(HistoryWriter.INSERT_PARTITION_VALUE, table));
+							partitionInserts.put(table, insert);
+						}
+						seriesId = state.weeklyId;
+					}
+					insert.setInt(1, seriesId);
+					insert.setLong(2, time);
+					insert.setDouble(3, value);
+					insert.addBatch();
+
+					HistoryEvent event = new HistoryEvent(state.controlIdentifiers, state.unit, value, time * 1000L);
+					sketches.offer(event);
+					meters.offer(event);
+
+					if (++written % HistoryDataGenerator.BATCH_SIZE == 0) {
+						this.commit(weekly, archive, archiveInsert, partitionInserts);
+						if (written % (HistoryDataGenerator.BATCH_SIZE * 20) == 0) {
+							System.out.println("[Generator] " + written + " of " + valuesPerSeries * this.seriesCount + " values");
+						}
+					}
+				}
+				long day = stepTime / HistoryDataGenerator.SECONDS_PER_DAY;
+				if (day != lastDay) {
+					// Keeps only a few days of sketches and meter buckets in memory
+					this.commit(weekly, archive, archiveInsert, partitionInserts);
+					sketches.checkpoint();
+					meters.checkpoint();
+					this.begin(weekly);
+					this.begin(archive);
+					lastDay = day;
+				}
+			}
+			this.commit(weekly, archive, archiveInsert, partitionInserts);
+		} finally {
+			archiveInsert.close();
+			for (PreparedStatement insert : partitionInserts.values()) {
+				insert.close();
+			}
+			weekly.setAutoCommit(true);
+			archive.setAutoCommit(true);
+		}
+		sketches.close();
+		meters.close();
+		this.resetBackfill(archive, weeklyStart);
+		System.out.println("[Generator] Generated " + written + " values of " + this.seriesCount + " series in " + this.basePath.getAbsolutePath());
+	}
+
+	private int getSeriesId(SeriesDictionary dictionary, ControlIdentifiers controlIdentifiers, String unit) throws SQLException {
+		HistorySeries series = dictionary.getOrCreate(controlIdentifiers.getControllerIdentifier().convert(), controlIdentifiers.getNodeIdentifier(), controlIdentifiers.getValueIdentifier(), unit);
+		return series.getId();
+	}
+
+	private double nextValue(SeriesState state, int seriesIndex, long time, long interval) {
+		double dayPhase = 2 * Math.PI * ((time % HistoryDataGenerator.SECONDS_PER_DAY) - 6 * 3600) / HistoryDataGenerator.SECONDS_PER_DAY;
+		double yearPhase = 2 * Math.PI * (time % (365 * HistoryDataGenerator.SECONDS_PER_DAY)) / (365.0 * HistoryDataGenerator.SECONDS_PER_DAY);
+		switch (seriesIndex % HistoryDataGenerator.UNITS.length) {
+		case 0:
+			// Room temperature in steps of 0.1
+			return Math.round((19 + 2 * Math.sin(dayPhase) - 3 * Math.cos(yearPhase) + this.random.nextGaussian() * 0.2) * 10) / 10.0;
+		case 1:
+			// Relative humidity in whole percents
+			return Math.round(55 - 8 * Math.sin(dayPhase) + this.random.nextGaussian() * 2);
+		case 2:
+			// Standby load with appliances switching on
+			return Math.round(this.random.nextDouble() < 0.05 ? 1000 + this.random.nextDouble() * 1500 : 60 + this.random.nextDouble() * 40);
+		case 3:
+			// Energy meter, counting 60 - 260 W in thousandths of a kWh
+			state.meter += (60 + this.random.nextDouble() * 200) * interval / 3600000.0;
+			return Math.round(state.meter * 1000) / 1000.0;
+		default:
+			// Switch that toggles a few times a day
+			if (this.random.nextDouble() < Math.min(1.0, interval / 21600.0)) {
+				state.on = !state.on;
+			}
+			return state.on ? 255 : 0;
+		}
+	}
+
+	private void begin(Connection connection) throws SQLException {
+		connection.setAutoCommit(false);
+	}
+
+	private void commit(Connection weekly, Connection archive, PreparedStatement archiveInsert, Map<String, PreparedStatement> partitionInserts) throws SQLException {
+		archiveInsert.executeBatch();
+		for (PreparedStatement insert : partitionInserts.values()) {
+			insert.executeBatch();
+		}
+		weekly.commit();
+		archive.commit();
+	}
+
+	/*
+	 * The backfill on the next start aggregates the archive rows, the weekly
+	 * rows are aggregated when the tiering copies them
+	 */
+	private void resetBackfill(Connection archive, long until) throws SQLException {
+		Statement stmt = archive.createStatement();
+		try {
+			stmt.executeUpdate("DELETE FROM History_Rollups");
+			stmt.executeUpdate("UPDATE History_Rollup_Backfill SET until_time = " + until + ", last_series_id = 0, done = 0 WHERE id = 1");
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private static class SeriesState {
+		private final ControlIdentifiers controlIdentifiers;
+		private final String unit;
+		private int weeklyId;
+		private int archiveId;
+		private double meter = 0;
+		private boolean on = false;
+
+		private SeriesState(ControlIdentifiers controlIdentifiers, String unit) {
+			this.controlIdentifiers = controlIdentifiers;
+			this.unit = unit;
+		}
+	}
+}
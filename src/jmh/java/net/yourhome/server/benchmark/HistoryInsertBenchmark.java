@@ -0,0 +1,171 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.benchmark;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+import net.yourhome.server.base.DatabaseConnector;
+import net.yourhome.server.base.SettingsManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Write path of the history: DatabaseConnector.insertValueChange into a new,
+ * empty set of databases in a temporary directory.
+ *
+ * - insertValueChange: hand-off of values to the writer queue, the queue
+ *   is flushed outside of the measurement every BATCH values so it never
+ *   fills up and drops values
+ * - insertAndFlush: sustained rate, BATCH values and a flush to the weekly
+ *   database per invocation
+ * - flush: latency of writing a queue of BATCH values
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class HistoryInsertBenchmark {
+	public static final int BATCH = 1000;
+
+	@Param({ "50" })
+	public int series;
+
+	private File basePath;
+	private DatabaseConnector connector;
+	private List<ControlIdentifiers> identifiers;
+	private long counter = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.basePath = Files.createTempDirectory("yourhome-insert").toFile();
+		SettingsManager.setBasePath(this.basePath.getAbsolutePath() + "/");
+		this.connector = DatabaseConnector.getInstance();
+		this.identifiers = HistoryDataGenerator.getSeries(this.series);
+	}
+
+	/*
+	 * A dropped value would mean the score includes the drop path
+	 */
+	@TearDown(Level.Iteration)
+	public void checkDropped() {
+		long dropped = this.connector.getDroppedHistoryEvents();
+		if (dropped > 0) {
+			throw new IllegalStateException(dropped + " value changes were dropped by the history writer");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.connector.destroy();
+		HistoryInsertBenchmark.delete(this.basePath);
+	}
+
+	void insert() {
+		int index = (int) (this.counter++ % this.series);
+		double value = 20 + (this.counter % 100) / 10.0;
+		this.connector.insertValueChange(this.identifiers.get(index), HistoryDataGenerator.getUnit(index), Double.toString(value), value);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(HistoryInsertBenchmark.BATCH)
+	public void insertValueChange(EmptyQueue queue) {
+		for (int i = 0; i < HistoryInsertBenchmark.BATCH; i++) {
+			this.insert();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(HistoryInsertBenchmark.BATCH)
+	public void insertAndFlush() {
+		for (int i = 0; i < HistoryInsertBenchmark.BATCH; i++) {
+			this.insert();
+		}
+		this.connector.flushWeeklyDb();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void flush(QueuedBatch batch) {
+		this.connector.flushWeeklyDb();
+	}
+
+	/*
+	 * Writes out the queue before every invocation, outside of the measurement
+	 */
+	@State(Scope.Thread)
+	public static class EmptyQueue {
+		@Setup(Level.Invocation)
+		public void flush(HistoryInsertBenchmark benchmark) {
+			benchmark.connector.flushWeeklyDb();
+		}
+	}
+
+	/*
+	 * Queues BATCH values before every flush, outside of the measurement
+	 */
+	@State(Scope.Thread)
+	public static class QueuedBatch {
+		@Setup(Level.Invocation)
+		public void queue(HistoryInsertBenchmark benchmark) {
+			for (int i = 0; i < HistoryInsertBenchmark.BATCH; i++) {
+				benchmark.insert();
+			}
+		}
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				HistoryInsertBenchmark.delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,157 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.benchmark;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+import net.yourhome.server.base.DatabaseConnector;
+import net.yourhome.server.base.GeneralController;
+import net.yourhome.server.base.SettingsManager;
+import net.yourhome.server.base.history.HistoryOperation;
+import net.yourhome.server.base.history.HistoryPoints;
+import net.yourhome.server.base.history.HistoryRollups;
+import net.yourhome.server.base.history.RollupPeriod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Read path of the history for every period type of a ValueHistoryRequest,
+ * on databases filled by the HistoryDataGenerator. The databases are
+ * generated once per size in the temporary directory and reused, or taken
+ * from -Dyourhome.benchmark.path.
+ *
+ * - request: GeneralController.getHistory, what processHistoryValuesRequest
+ *   answers, including the recent values, meter totals and result cache
+ * - store: the HistoryStore query alone, the storage path without caches
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HistoryQueryBenchmark {
+	@Param({ "REALTIME", "DAILY", "WEEKLY", "MONTHLY" })
+	public String periodType;
+
+	@Param({ "AVERAGE" })
+	public String operation;
+
+	@Param({ "100" })
+	public int amount;
+
+	@Param({ "1000000" })
+	public long rows;
+
+	@Param({ "50" })
+	public int series;
+
+	@Param({ "365" })
+	public int days;
+
+	private DatabaseConnector connector;
+	private GeneralController generalController;
+	private List<ControlIdentifiers> identifiers;
+	private RollupPeriod period;
+	private HistoryOperation historyOperation;
+	private final Random random = new Random(7);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		String path = System.getProperty("yourhome.benchmark.path");
+		File basePath = path != null ? new File(path) : new File(System.getProperty("java.io.tmpdir"), "yourhome-history-" + this.rows + "-" + this.series + "-" + this.days);
+		if (!HistoryDataGenerator.exists(basePath)) {
+			this.generate(basePath);
+		}
+		SettingsManager.setBasePath(basePath.getAbsolutePath() + "/");
+		this.connector = DatabaseConnector.getInstance();
+		// Aggregates are only complete once the rollups are backfilled
+		HistoryRollups rollups = this.connector.getHistoryRollups();
+		while (rollups != null && !rollups.isBackfilled()) {
+			Thread.sleep(500);
+		}
+		this.generalController = GeneralController.getInstance();
+		this.identifiers = HistoryDataGenerator.getSeries(this.series);
+		this.period = RollupPeriod.fromPeriodType(this.periodType);
+		this.historyOperation = HistoryOperation.fromName(this.operation);
+	}
+
+	/*
+	 * The generator runs in its own JVM, the DatabaseConnector it opens and
+	 * closes is a singleton
+	 */
+	private void generate(File basePath) throws IOException, InterruptedException {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+		Process generator = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), HistoryDataGenerator.class.getName(), basePath.getAbsolutePath(), Long.toString(this.rows), Integer.toString(this.series), Integer.toString(this.days)).inheritIO().start();
+		if (generator.waitFor() != 0) {
+			throw new IOException("Generating the history in " + basePath.getAbsolutePath() + " failed");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.connector.destroy();
+	}
+
+	private ControlIdentifiers nextSeries() {
+		return this.identifiers.get(this.random.nextInt(this.identifiers.size()));
+	}
+
+	/*
+	 * First pages most of the time, like a client opening a graph, older
+	 * pages now and then
+	 */
+	private int nextOffset() {
+		return this.random.nextInt(10) < 8 ? 0 : this.amount * (1 + this.random.nextInt(5));
+	}
+
+	@Benchmark
+	public HistoryPoints request() throws IOException {
+		return this.generalController.getHistory(this.nextSeries(), this.period, this.historyOperation, this.nextOffset(), this.amount);
+	}
+
+	@Benchmark
+	public HistoryPoints store() throws IOException {
+		return this.connector.getHistoryStore().query(this.nextSeries(), this.period, this.historyOperation, this.nextOffset(), this.amount);
+	}
+}
@@ -0,0 +1,142 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * In-memory copy of the Aliases table. Every node and value that is shown
+ * looks up its alias, so the table is loaded in one query on startup and a
+ * lookup is a map get. setAlias writes the row and then the map, under the
+ * lock of the connection.
+ *
+ * A controller alias is stored without node and value, a node alias
+ * without value.
+ */
+public class AliasIndex {
+	private final String UPDATE_ALIAS = "UPDATE Aliases SET alias = ? WHERE controller_identifier = ? AND node_identifier IS ? AND value_identifier IS ?";
+	private final String INSERT_ALIAS = "INSERT INTO Aliases (controller_identifier, node_identifier, value_identifier, alias) VALUES (?,?,?,?)";
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final Connection connection;
+	private final Map<String, String> aliases = new ConcurrentHashMap<String, String>();
+
+	public AliasIndex(Connection connection) {
+		this.connection = connection;
+		this.reload();
+	}
+
+	public static String getKey(String controllerIdentifier, String nodeIdentifier, String valueIdentifier) {
+		return controllerIdentifier + '\u0000' + nodeIdentifier + '\u0000' + valueIdentifier;
+	}
+
+	public void reload() {
+		Map<String, String> loaded = new ConcurrentHashMap<String, String>();
+		synchronized (this.connection) {
+			Statement stmt = null;
+			try {
+				stmt = this.connection.createStatement();
+				ResultSet result = stmt.executeQuery("SELECT controller_identifier, node_identifier, value_identifier, alias FROM Aliases");
+				while (result.next()) {
+					String alias = result.getString("alias");
+					if (alias != null) {
+						loaded.put(AliasIndex.getKey(result.getString("controller_identifier"), result.getString("node_identifier"), result.getString("value_identifier")), alias);
+					}
+				}
+				result.close();
+			} catch (SQLException e) {
+				AliasIndex.log.error("Could not load aliases", e);
+				return;
+			} finally {
+				if (stmt != null) {
+					try {
+						stmt.close();
+					} catch (SQLException e) {
+					}
+				}
+			}
+			this.aliases.clear();
+			this.aliases.putAll(loaded);
+		}
+		AliasIndex.log.debug("Loaded " + this.aliases.size() + " aliases");
+	}
+
+	/*
+	 * Alias of a controller (node and value null), a node (value null) or a
+	 * value, null when none is set
+	 */
+	public String get(String controllerIdentifier, String nodeIdentifier, String valueIdentifier) {
+		return this.aliases.get(AliasIndex.getKey(controllerIdentifier, nodeIdentifier, valueIdentifier));
+	}
+
+	public void set(String controllerIdentifier, String nodeIdentifier, String valueIdentifier, String alias) throws SQLException {
+		String key = AliasIndex.getKey(controllerIdentifier, nodeIdentifier, valueIdentifier);
+		synchronized (this.connection) {
+			PreparedStatement update = this.connection.prepareStatement(this.UPDATE_ALIAS);
+			int updated;
+			try {
+				update.setString(1, alias);
+				update.setString(2, controllerIdentifier);
+				update.setString(3, nodeIdentifier);
+				update.setString(4, valueIdentifier);
+				updated = update.executeUpdate();
+			} finally {
+				update.close();
+			}
+			if (updated == 0) {
+				PreparedStatement insert = this.connection.prepareStatement(this.INSERT_ALIAS);
+				try {
+					insert.setString(1, controllerIdentifier);
+					insert.setString(2, nodeIdentifier);
+					insert.setString(3, valueIdentifier);
+					insert.setString(4, alias);
+					insert.executeUpdate();
+				} finally {
+					insert.close();
+				}
+			}
+			if (alias == null) {
+				this.aliases.remove(key);
+			} else {
+				this.aliases.put(key, alias);
+			}
+		}
+	}
+
+	public int size() {
+		return this.aliases.size();
+	}
+}
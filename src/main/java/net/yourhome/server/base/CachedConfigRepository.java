@@ -0,0 +1,80 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base;
+
+import java.sql.SQLException;
+
+/*
+ * Repository that keeps the contents of its tables in memory. Configuration
+ * tables are small, so the first read loads them completely and later reads
+ * do not touch SQLite until a write through the repository drops the copy.
+ */
+public abstract class CachedConfigRepository<S> extends ConfigRepository {
+	private volatile S cached;
+	private int version = 0;
+
+	protected CachedConfigRepository(DatabaseConnector db) {
+		super(db);
+	}
+
+	/*
+	 * Reads the tables, the result is shared between threads and may not be
+	 * changed afterwards
+	 */
+	protected abstract S load() throws SQLException;
+
+	protected S getCached() throws SQLException {
+		S current = this.cached;
+		if (current == null) {
+			int loadVersion;
+			synchronized (this) {
+				loadVersion = this.version;
+			}
+			current = this.load();
+			synchronized (this) {
+				// A write during the load might not be in it, use it only once
+				if (this.version == loadVersion) {
+					this.cached = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/*
+	 * Drops the copy, the next read loads the tables again
+	 */
+	public synchronized void invalidate() {
+		this.version++;
+		this.cached = null;
+	}
+
+	@Override
+	protected void written() {
+		this.invalidate();
+	}
+}
@@ -0,0 +1,131 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Moves the configuration tables out of the weekly history database into
+ * their own database. Each table is copied with its original schema and
+ * indexes in one transaction and only dropped from the history database
+ * after that transaction is committed, so an interrupted migration simply
+ * continues on the next start.
+ */
+public class ConfigMigration {
+	public static final String[] CONFIG_TABLES = { "Scenes", "Rules", "Http_Nodes", "Http_Commands", "IP_Cameras", "Radio_Channels", "Aliases", "ZWave_Value_Settings", "Notification_GCM" };
+
+	private static final String SOURCE = "history";
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	/*
+	 * Returns the number of tables that were copied
+	 */
+	public static int migrate(Connection config, String historyPath) throws SQLException {
+		int moved = 0;
+		Statement stmt = config.createStatement();
+		try {
+			PreparedStatement attach = config.prepareStatement("ATTACH DATABASE ? AS " + ConfigMigration.SOURCE);
+			try {
+				attach.setString(1, historyPath);
+				attach.execute();
+			} finally {
+				attach.close();
+			}
+			try {
+				for (String table : ConfigMigration.CONFIG_TABLES) {
+					String createSql = ConfigMigration.getCreateSql(stmt, ConfigMigration.SOURCE, table);
+					if (createSql == null) {
+						continue;
+					}
+					if (ConfigMigration.getCreateSql(stmt, "main", table) == null) {
+						ConfigMigration.copy(config, stmt, table, createSql);
+						moved++;
+					}
+					stmt.executeUpdate("DROP TABLE " + ConfigMigration.SOURCE + "." + table);
+				}
+			} finally {
+				stmt.executeUpdate("DETACH DATABASE " + ConfigMigration.SOURCE);
+			}
+		} finally {
+			stmt.close();
+		}
+		if (moved > 0) {
+			ConfigMigration.log.info("Moved " + moved + " configuration tables out of the history database");
+		}
+		return moved;
+	}
+
+	private static String getCreateSql(Statement stmt, String schema, String table) throws SQLException {
+		ResultSet result = stmt.executeQuery("SELECT sql FROM " + schema + ".sqlite_master WHERE type = 'table' AND name = '" + table + "'");
+		try {
+			return result.next() ? result.getString("sql") : null;
+		} finally {
+			result.close();
+		}
+	}
+
+	private static void copy(Connection config, Statement stmt, String table, String createSql) throws SQLException {
+		List<String> indexes = new ArrayList<String>();
+		ResultSet result = stmt.executeQuery("SELECT sql FROM " + ConfigMigration.SOURCE + ".sqlite_master WHERE type = 'index' AND tbl_name = '" + table + "' AND sql IS NOT NULL");
+		while (result.next()) {
+			indexes.add(result.getString("sql"));
+		}
+		result.close();
+
+		boolean autoCommit = config.getAutoCommit();
+		config.setAutoCommit(false);
+		try {
+			// Unqualified CREATE statements end up in the main database
+			stmt.executeUpdate(createSql);
+			for (String index : indexes) {
+				stmt.executeUpdate(index);
+			}
+			int rows = stmt.executeUpdate("INSERT INTO main." + table + " SELECT * FROM " + ConfigMigration.SOURCE + "." + table);
+			if (createSql.toUpperCase().contains("AUTOINCREMENT")) {
+				// Keep ids of deleted rows from being handed out again
+				stmt.executeUpdate("DELETE FROM main.sqlite_sequence WHERE name = '" + table + "'");
+				stmt.executeUpdate("INSERT INTO main.sqlite_sequence (name, seq) SELECT name, seq FROM " + ConfigMigration.SOURCE + ".sqlite_sequence WHERE name = '" + table + "'");
+			}
+			config.commit();
+			ConfigMigration.log.debug("Moved " + rows + " rows of " + table + " to the configuration database");
+		} catch (SQLException e) {
+			config.rollback();
+			throw e;
+		} finally {
+			config.setAutoCommit(autoCommit);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base;
+
+import net.yourhome.server.base.history.StatementCache;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Access to tables of the configuration database. Queries are parameterized
+ * and their prepared statements are kept per connection, so SQLite parses
+ * each query only once.
+ */
+public abstract class ConfigRepository {
+	protected final DatabaseConnector db;
+
+	protected ConfigRepository(DatabaseConnector db) {
+		this.db = db;
+	}
+
+	protected interface RowReader<R> {
+		/*
+		 * Returns the entity of the current row, or null to skip it
+		 */
+		R read(ResultSet row) throws SQLException;
+	}
+
+	protected <R> List<R> executeQuery(String sql, RowReader<R> reader, Object... parameters) throws SQLException {
+		List<R> rows = new ArrayList<R>();
+		ReadConnectionPool readers = this.db.getConfigReaders();
+		ReadConnectionPool.Reader connection = readers.acquire();
+		try {
+			StatementCache statements = connection.getStatements();
+			PreparedStatement stmt = statements.borrow(sql);
+			try {
+				DatabaseConnector.setParameters(stmt, parameters);
+				ResultSet result = stmt.executeQuery();
+				try {
+					while (result.next()) {
+						R row = reader.read(result);
+						if (row != null) {
+							rows.add(row);
+						}
+					}
+				} finally {
+					result.close();
+				}
+			} finally {
+				statements.release(sql, stmt);
+			}
+		} finally {
+			readers.release(connection);
+		}
+		return rows;
+	}
+
+	protected int executeInsert(String sql, Object... parameters) throws SQLException {
+		try {
+			return this.db.executeConfigInsert(sql, parameters);
+		} finally {
+			this.written();
+		}
+	}
+
+	protected int executeUpdate(String sql, Object... parameters) throws SQLException {
+		try {
+			return this.db.executeConfigUpdate(sql, parameters);
+		} finally {
+			this.written();
+		}
+	}
+
+	/*
+	 * Called after every write through this repository
+	 */
+	protected void written() {
+	}
+}
@@ -0,0 +1,354 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base;
+
+import org.apache.log4j.Logger;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.core.DB;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Snapshots of the databases while the server keeps running. Every database
+ * is copied with the SQLite online backup API from a connection of its own,
+ * which holds a read transaction during the copy. The copy is therefore one
+ * consistent state of the database, and writes on the other connections
+ * neither wait for it (WAL) nor make the backup start over.
+ *
+ * A snapshot is a directory with one file per database. It is written under
+ * a .partial name and renamed when all databases are copied, so a directory
+ * without that suffix is always complete. Only the newest snapshots are kept.
+ *
+ * Files that are stored next to a database, like history segments, are
+ * attached to it and copied into a directory of the snapshot right after
+ * the database itself.
+ */
+public class DatabaseBackup {
+	public static final int DEFAULT_KEEP = 7;
+	public static final String DEFAULT_SCHEDULE = "30 04 * * *";
+	public static final String SCHEDULE_OFF = "off";
+
+	private static final String PARTIAL = ".partial";
+	private final String BUSY_TIMEOUT = "5000";
+	// Pause between two backup steps, leaves the disk to the writers
+	private final long STEP_PAUSE = 5;
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final File directory;
+	private final Map<String, String> databases;
+	private final List<AttachedFiles> attachments = new ArrayList<AttachedFiles>();
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	private volatile int keep = DatabaseBackup.DEFAULT_KEEP;
+	private volatile BackupResult lastResult;
+	private volatile String lastError;
+
+	/*
+	 * databases maps the file name in the snapshot to the database path, they
+	 * are copied in the order of the map
+	 */
+	public DatabaseBackup(File directory, Map<String, String> databases) {
+		this.directory = directory;
+		this.databases = databases;
+	}
+
+	/*
+	 * Copies the files of the attachment into the directory name of every
+	 * snapshot, after the database with that file name in the snapshot
+	 */
+	public void attach(String database, String name, Attachment attachment) {
+		this.attachments.add(new AttachedFiles(database, name, attachment));
+	}
+
+	public BackupResult run() throws IOException, SQLException {
+		if (!this.running.compareAndSet(false, true)) {
+			throw new IllegalStateException("A backup is already running");
+		}
+		File snapshot = null;
+		try {
+			long start = System.currentTimeMillis();
+			String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(start));
+			snapshot = new File(this.directory, name + DatabaseBackup.PARTIAL);
+			if (!snapshot.mkdirs()) {
+				throw new IOException("Could not create backup directory " + snapshot);
+			}
+
+			BackupResult result = new BackupResult(name, start);
+			for (Map.Entry<String, String> database : this.databases.entrySet()) {
+				long databaseStart = System.currentTimeMillis();
+				File copy = new File(snapshot, database.getKey());
+				long bytes = this.copy(database.getValue(), copy);
+				result.add(database.getKey(), bytes, System.currentTimeMillis() - databaseStart);
+				for (AttachedFiles attachedFiles : this.attachments) {
+					if (attachedFiles.database.equals(database.getKey())) {
+						long filesStart = System.currentTimeMillis();
+						bytes = attachedFiles.attachment.copy(copy, new File(snapshot, attachedFiles.name));
+						result.add(attachedFiles.name, bytes, System.currentTimeMillis() - filesStart);
+					}
+				}
+			}
+
+			File complete = new File(this.directory, name);
+			if (!snapshot.renameTo(complete)) {
+				throw new IOException("Could not rename " + snapshot + " to " + complete);
+			}
+			snapshot = null;
+			result.setDuration(System.currentTimeMillis() - start);
+			this.lastResult = result;
+			this.lastError = null;
+			DatabaseBackup.log.info("Backup " + name + " done: " + result.getBytes() + " bytes in " + result.getDuration() + " ms");
+
+			int removed = this.removeOldSnapshots();
+			if (removed > 0) {
+				DatabaseBackup.log.debug("Removed " + removed + " old backups");
+			}
+			return result;
+		} catch (IOException | SQLException e) {
+			this.lastError = e.getMessage();
+			throw e;
+		} finally {
+			if (snapshot != null) {
+				DatabaseBackup.delete(snapshot);
+			}
+			this.running.set(false);
+		}
+	}
+
+	/*
+	 * Copies one database, returns the size of the copy in bytes
+	 */
+	private long copy(String path, File destination) throws SQLException {
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		config.setBusyTimeout(this.BUSY_TIMEOUT);
+		Connection source = DriverManager.getConnection("jdbc:sqlite:" + path, config.toProperties());
+		try {
+			// Start the read transaction, the backup copies what it sees
+			source.setAutoCommit(false);
+			Statement stmt = source.createStatement();
+			try {
+				ResultSet result = stmt.executeQuery("SELECT count(*) FROM sqlite_master");
+				result.close();
+			} finally {
+				stmt.close();
+			}
+			int rc = ((SQLiteConnection) source).db().backup("main", destination.getAbsolutePath(), new DB.ProgressObserver() {
+				@Override
+				public void progress(int remaining, int pageCount) {
+					try {
+						Thread.sleep(DatabaseBackup.this.STEP_PAUSE);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			if (rc != 0) {
+				throw new SQLException("Backup of " + path + " failed with error " + rc);
+			}
+			source.rollback();
+		} finally {
+			source.close();
+		}
+
+		// The copy still has the WAL flag of its source, a snapshot is one file
+		Connection copy = DriverManager.getConnection("jdbc:sqlite:" + destination.getAbsolutePath());
+		try {
+			Statement stmt = copy.createStatement();
+			try {
+				stmt.execute("PRAGMA journal_mode = DELETE");
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			copy.close();
+		}
+		return destination.length();
+	}
+
+	/*
+	 * Complete snapshots, newest first
+	 */
+	public List<File> getSnapshots() {
+		List<File> snapshots = new ArrayList<File>();
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory() && !file.getName().endsWith(DatabaseBackup.PARTIAL)) {
+					snapshots.add(file);
+				}
+			}
+		}
+		Collections.sort(snapshots);
+		Collections.reverse(snapshots);
+		return snapshots;
+	}
+
+	private int removeOldSnapshots() {
+		int removed = 0;
+		List<File> snapshots = this.getSnapshots();
+		for (int i = Math.max(this.keep, 1); i < snapshots.size(); i++) {
+			DatabaseBackup.delete(snapshots.get(i));
+			removed++;
+		}
+		// Left behind by a backup that was interrupted
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory() && file.getName().endsWith(DatabaseBackup.PARTIAL)) {
+					DatabaseBackup.delete(file);
+				}
+			}
+		}
+		return removed;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				DatabaseBackup.delete(child);
+			}
+		}
+		if (!file.delete()) {
+			DatabaseBackup.log.warn("Could not delete " + file);
+		}
+	}
+
+	public void setKeep(int keep) {
+		this.keep = Math.max(keep, 1);
+	}
+
+	public int getKeep() {
+		return this.keep;
+	}
+
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	public BackupResult getLastResult() {
+		return this.lastResult;
+	}
+
+	public String getLastError() {
+		return this.lastError;
+	}
+
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	/*
+	 * Files that belong to a database but are stored outside of it
+	 */
+	public interface Attachment {
+		/*
+		 * Copies the files into the destination directory, database is the
+		 * copy of the database in the snapshot. Returns the number of bytes
+		 * copied.
+		 */
+		long copy(File database, File destination) throws IOException, SQLException;
+	}
+
+	private static class AttachedFiles {
+		private final String database;
+		private final String name;
+		private final Attachment attachment;
+
+		private AttachedFiles(String database, String name, Attachment attachment) {
+			this.database = database;
+			this.name = name;
+			this.attachment = attachment;
+		}
+	}
+
+	public static class BackupResult {
+		private final String name;
+		private final long start;
+		private long duration;
+		private long bytes;
+		private final Map<String, Long> databaseBytes = new LinkedHashMap<String, Long>();
+		private final Map<String, Long> databaseDurations = new LinkedHashMap<String, Long>();
+
+		private BackupResult(String name, long start) {
+			this.name = name;
+			this.start = start;
+		}
+
+		private void add(String database, long bytes, long duration) {
+			this.databaseBytes.put(database, bytes);
+			this.databaseDurations.put(database, duration);
+			this.bytes += bytes;
+		}
+
+		private void setDuration(long duration) {
+			this.duration = duration;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public long getStart() {
+			return this.start;
+		}
+
+		/*
+		 * Milliseconds
+		 */
+		public long getDuration() {
+			return this.duration;
+		}
+
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		public Map<String, Long> getDatabaseBytes() {
+			return this.databaseBytes;
+		}
+
+		public Map<String, Long> getDatabaseDurations() {
+			return this.databaseDurations;
+		}
+	}
+}
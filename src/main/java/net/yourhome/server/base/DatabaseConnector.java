@@ -29,41 +29,84 @@ package net.yourhome.server.base;
 import com.google.common.io.Files;
 import net.yourhome.common.net.messagestructures.zwave.ZWaveValue;
 import net.yourhome.common.net.model.binding.ControlIdentifiers;
-import org.apache.commons.collections.map.LRUMap;
+import net.yourhome.server.base.history.ColdHistory;
+import net.yourhome.server.base.history.HistoryBatch;
+import net.yourhome.server.base.history.CompressionSettings;
+import net.yourhome.server.base.history.HistoryCompression;
+import net.yourhome.server.base.history.HistoryEvent;
+import net.yourhome.server.base.history.HistoryMigration;
+import net.yourhome.server.base.history.HistoryPartitions;
+import net.yourhome.server.base.history.HistoryQueryCache;
+import net.yourhome.server.base.history.HistoryRollups;
+import net.yourhome.server.base.history.HistoryStore;
+import net.yourhome.server.base.history.HistoryTiering;
+import net.yourhome.server.base.history.HistoryWriter;
+import net.yourhome.server.base.history.MappedHistoryStore;
+import net.yourhome.server.base.history.MeterAggregates;
+import net.yourhome.server.base.history.PercentileSketches;
+import net.yourhome.server.base.history.PendingHistory;
+import net.yourhome.server.base.history.RecentHistory;
+import net.yourhome.server.base.history.SeriesDictionary;
+import net.yourhome.server.base.history.SqliteHistoryStore;
+import net.yourhome.server.base.history.StatementCache;
 import org.apache.log4j.Logger;
+import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DatabaseConnector {
+	public static final String ENGINE_SQLITE = "sqlite";
+	public static final String ENGINE_MAPPED = "mapped";
+
 	private final String DBPATH = SettingsManager.getBasePath() + "/database/";
 	private final String PATH_ARCHIVE = this.DBPATH + "home_history_archive.db";
 	private final String PATH_WEEKLY = this.DBPATH + "home_history_weekly.db";
 	private final String PATH_DEFAULT = this.DBPATH + "home_history_weekly_default.db";
-	private final String INSERT_VALUE_CHANGE = "insert into main.Home_History ('controller_identifier', 'node_identifier', 'value_identifier', 'time', 'unit','value','value_d') VALUES (?,?,?,?,?,?,?)";
+	private final String PATH_CONFIG = this.DBPATH + "home_config.db";
+	private final String PATH_BACKUP = this.DBPATH + "backups";
+	private final String PATH_MAPPED = this.DBPATH + "history";
+	private final String PATH_COLD = this.DBPATH + "history_cold";
 
-	private SimpleDateFormat sqliteTimestampFormat;
 	private Connection allHistoryConnection;
-	private volatile int currentHistoryBatchSize = 0;
-	private final int HISTORY_BATCH_SIZE = 1000;
-	private volatile PreparedStatement weeklyHistoryStm = null;
-
 	private Connection weeklylHistoryConnection;
-	private volatile int currentWeeklyBatchSize = 0;
-	private final int WEEKLY_BATCH_SIZE = 1000;
-	private volatile PreparedStatement historyBatchStm = null;
+	private Connection configConnection;
+	private StatementCache configStatements;
+	private HistoryWriter historyWriter;
+	private SeriesDictionary weeklySeries;
+	private HistoryPartitions weeklyPartitions;
+	private SeriesDictionary archiveSeries;
+	private HistoryRollups historyRollups;
+	private HistoryTiering historyTiering;
+	private ColdHistory coldHistory;
+	private MeterAggregates meterAggregates;
+	private PercentileSketches percentileSketches;
+	private SqliteHistoryStore sqliteHistoryStore;
+	private volatile HistoryStore historyStore;
+	private final RecentHistory recentHistory = new RecentHistory();
+	private final HistoryQueryCache historyQueryCache = new HistoryQueryCache();
+	private final HistoryCompression historyCompression = new HistoryCompression();
+	private ReadConnectionPool weeklyReaders;
+	private ReadConnectionPool archiveReaders;
+	private ReadConnectionPool configReaders;
+	private AliasIndex aliasIndex;
+	private DatabaseBackup databaseBackup;
+	private String backupCronId;
+
+	private final int READ_CONNECTIONS = 3;
+	private final HistoryBatch historyBatch = new HistoryBatch(this.READ_CONNECTIONS);
+	private final String BUSY_TIMEOUT = "5000";
+	// Kept small, the server also runs on 32 bit boards
+	private final long MMAP_SIZE = 64L * 1024 * 1024;
 
 	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
 	private static volatile DatabaseConnector instance;
 	private static Object lock = new Object();
 
-	private boolean cleaning = false;
-
 	private DatabaseConnector() {
 		File dbPath = new File(this.DBPATH);
 		if (!dbPath.exists()) {
@@ -104,7 +147,6 @@ public class DatabaseConnector {
 					dbFileWeekly.createNewFile();
 					this.weeklylHistoryConnection = this.connect(this.PATH_WEEKLY);
 					this.createInitialZWaveArchive(this.weeklylHistoryConnection);
-					this.createInitialSettingsDatabase(this.weeklylHistoryConnection);
 				}
 			} catch (IOException e) {
 				DatabaseConnector.log.error("Database file could not be created (" + e.getMessage() + ')');
@@ -112,13 +154,92 @@ public class DatabaseConnector {
 		} else {
 			this.weeklylHistoryConnection = this.connect(this.PATH_WEEKLY);
 		}
+
+		/*
+		 * Configuration lives in its own database, so history maintenance
+		 * never blocks it. Older installs (and the default database) still
+		 * have the tables in the weekly database, they are moved over once.
+		 */
+		this.configConnection = this.connect(this.PATH_CONFIG);
+		if (this.configConnection == null) {
+			throw new IllegalStateException("Configuration database " + this.PATH_CONFIG + " could not be opened");
+		}
+		this.configStatements = new StatementCache(this.configConnection);
+		try {
+			ConfigMigration.migrate(this.configConnection, this.PATH_WEEKLY);
+			this.createInitialSettingsDatabase(this.configConnection);
+			this.upgradeValueSettings();
+			this.configReaders = this.createReaders(this.PATH_CONFIG);
+			this.loadZWaveValueSettings();
+		} catch (SQLException e) {
+			// Every setting is read from this database, the server cannot run without it
+			DatabaseConnector.log.error("Configuration database error (" + e.getMessage() + ')', e);
+			throw new IllegalStateException("Configuration database " + this.PATH_CONFIG + " could not be opened", e);
+		}
+		this.aliasIndex = new AliasIndex(this.configConnection);
 		try {
-			this.weeklyHistoryStm = this.weeklylHistoryConnection.prepareStatement(this.INSERT_VALUE_CHANGE);
-			this.historyBatchStm = this.allHistoryConnection.prepareStatement(this.INSERT_VALUE_CHANGE);
+			HistoryMigration.createSeriesSchema(this.weeklylHistoryConnection);
+			HistoryMigration.createSchema(this.allHistoryConnection);
+			this.weeklyPartitions = new HistoryPartitions(this.weeklylHistoryConnection);
+			HistoryMigration.createIndexes(this.allHistoryConnection, "archive");
+			HistoryMigration.checkQueryPlan(this.weeklylHistoryConnection, "weekly");
+			HistoryMigration.checkQueryPlan(this.allHistoryConnection, "archive");
+			this.weeklyReaders = this.createReaders(this.PATH_WEEKLY);
+			this.archiveReaders = this.createReaders(this.PATH_ARCHIVE);
+			this.weeklySeries = new SeriesDictionary(this.weeklylHistoryConnection);
+			this.archiveSeries = new SeriesDictionary(this.allHistoryConnection);
+			this.historyRollups = new HistoryRollups(this.allHistoryConnection);
+			this.historyWriter = new HistoryWriter(this.weeklylHistoryConnection, this.weeklySeries, this.weeklyPartitions);
+			this.historyTiering = new HistoryTiering(this.PATH_WEEKLY, this.weeklylHistoryConnection, this.weeklyPartitions, this.weeklySeries, this.historyRollups, this.archiveSeries, this.historyWriter.getPendingHistory());
+			this.coldHistory = new ColdHistory(new File(this.PATH_COLD), this.allHistoryConnection, this.archiveSeries, this.historyRollups, this.historyWriter.getPendingHistory());
+			this.sqliteHistoryStore = new SqliteHistoryStore(this.historyWriter, this.weeklySeries, this.weeklyReaders, this.archiveSeries, this.archiveReaders, this.historyRollups, this.historyTiering, this.coldHistory);
+			this.historyStore = this.sqliteHistoryStore;
+			this.meterAggregates = new MeterAggregates(this.weeklylHistoryConnection, this.weeklySeries);
+			this.percentileSketches = new PercentileSketches(this.weeklylHistoryConnection, this.weeklySeries, this.weeklyReaders);
+			this.historyWriter.start();
+
+			// Convert databases that still use the Home_History table
+			if (HistoryMigration.isRequired(this.weeklylHistoryConnection)) {
+				new HistoryMigration("weekly", this.weeklylHistoryConnection, this.weeklySeries, HistoryPartitions.LEGACY_PARTITION).start();
+			}
+			if (HistoryMigration.isRequired(this.allHistoryConnection)) {
+				new HistoryMigration("archive", this.allHistoryConnection, this.archiveSeries).start();
+			}
+			if (!this.historyRollups.isBackfilled()) {
+				this.historyRollups.startBackfill();
+			}
 		} catch (SQLException e) {
             DatabaseConnector.log.error("Database error (" + e.getMessage() + ')',e);
         }
 
+		/*
+		 * The archive is copied before the weekly database, so its tiering
+		 * marks are never ahead of the weekly partitions in the same backup
+		 */
+		Map<String, String> backupDatabases = new LinkedHashMap<String, String>();
+		backupDatabases.put(new File(this.PATH_CONFIG).getName(), this.PATH_CONFIG);
+		backupDatabases.put(new File(this.PATH_ARCHIVE).getName(), this.PATH_ARCHIVE);
+		backupDatabases.put(new File(this.PATH_WEEKLY).getName(), this.PATH_WEEKLY);
+		this.databaseBackup = new DatabaseBackup(new File(this.PATH_BACKUP), backupDatabases);
+		this.databaseBackup.attach(new File(this.PATH_ARCHIVE).getName(), new File(this.PATH_COLD).getName(), new DatabaseBackup.Attachment() {
+			@Override
+			public long copy(File database, File destination) throws IOException, SQLException {
+				return DatabaseConnector.this.coldHistory == null ? 0 : DatabaseConnector.this.coldHistory.backup(database, destination);
+			}
+		});
+		// The series ids of the mapped engine are those of the weekly database
+		this.databaseBackup.attach(new File(this.PATH_WEEKLY).getName(), new File(this.PATH_MAPPED).getName(), new DatabaseBackup.Attachment() {
+			@Override
+			public long copy(File database, File destination) throws IOException, SQLException {
+				HistoryStore store = DatabaseConnector.this.historyStore;
+				if (store instanceof MappedHistoryStore) {
+					return ((MappedHistoryStore) store).backup(destination);
+				}
+				return MappedHistoryStore.copy(new File(DatabaseConnector.this.PATH_MAPPED), destination);
+			}
+		});
+		this.scheduleBackups(DatabaseBackup.DEFAULT_SCHEDULE);
+
 		// Schedule data cleanup every morning at 3am
 		Scheduler.getInstance().scheduleCron(new TimerTask() {
 			@Override
@@ -138,48 +259,90 @@ public class DatabaseConnector {
 			}
 		}, "10 03 01,15 * *");
 
+		// Copy new values to the archive every 5 minutes
+		Scheduler.getInstance().scheduleCron(new TimerTask() {
+			@Override
+			public void run() {
+				DatabaseConnector.this.flushWeeklyDb();
+				DatabaseConnector.this.tierHistory();
+				if (DatabaseConnector.this.meterAggregates != null) {
+					DatabaseConnector.this.meterAggregates.checkpoint();
+				}
+				if (DatabaseConnector.this.percentileSketches != null) {
+					DatabaseConnector.this.percentileSketches.checkpoint();
+				}
+			}
+		}, "*/5 * * * *");
+
 		this.cleanWeeklyDB();
 	}
 
 	public void flushWeeklyDb() {
-		if (this.weeklyHistoryStm != null && this.currentWeeklyBatchSize > 0) {
-			try {
-				this.weeklylHistoryConnection.setAutoCommit(false);
-				DatabaseConnector.log.debug("Inserting remaining " + this.currentWeeklyBatchSize + " batch values into weekly db");
-				this.weeklyHistoryStm.executeBatch();
-				DatabaseConnector.log.debug("Inserting remaining " + this.currentWeeklyBatchSize + " batch values into weekly db - done");
-				this.currentWeeklyBatchSize = 0;
-			} catch (SQLException e) {
-				DatabaseConnector.log.error("Error with batch insert", e);
-			} finally {
-				try {
-					this.weeklylHistoryConnection.commit();
-					this.weeklylHistoryConnection.setAutoCommit(true);
-				} catch (SQLException e) {
-					DatabaseConnector.log.error("Error with batch commit", e);
-				}
-			}
+		if (this.historyWriter != null) {
+			this.historyWriter.flush();
+		}
+		HistoryStore store = this.historyStore;
+		if (store != null && store != this.sqliteHistoryStore) {
+			store.flush();
 		}
 	}
 
+	/*
+	 * The archive only receives values through the tiering, so flushing it
+	 * means committing the writer and copying everything over.
+	 */
 	private void flushHistoryDb() {
-		if (this.historyBatchStm != null && this.currentHistoryBatchSize > 0) {
-			try {
-				this.allHistoryConnection.setAutoCommit(false);
-				DatabaseConnector.log.debug("Inserting remaining " + this.currentHistoryBatchSize + " batch values");
-				this.historyBatchStm.executeBatch();
-				DatabaseConnector.log.debug("Inserting remaining " + this.currentHistoryBatchSize + " batch values - done");
-				this.currentHistoryBatchSize = 0;
-			} catch (SQLException e) {
-				DatabaseConnector.log.error("Error with batch insert", e);
-			} finally {
-				try {
-					this.allHistoryConnection.commit();
-					this.allHistoryConnection.setAutoCommit(true);
-				} catch (SQLException e) {
-					DatabaseConnector.log.error("Error with batch commit", e);
+		this.flushWeeklyDb();
+		this.tierHistory();
+	}
+
+	/*
+	 * Schedules the backups with a cron pattern, DatabaseBackup.SCHEDULE_OFF
+	 * disables them
+	 */
+	public synchronized void scheduleBackups(String cronPattern) {
+		if (this.backupCronId != null) {
+			Scheduler.getInstance().descheduleCron(this.backupCronId);
+			this.backupCronId = null;
+		}
+		if (!DatabaseBackup.SCHEDULE_OFF.equalsIgnoreCase(cronPattern)) {
+			this.backupCronId = Scheduler.getInstance().scheduleCron(new TimerTask() {
+				@Override
+				public void run() {
+					if (DatabaseConnector.this.databaseBackup.isRunning()) {
+						return;
+					}
+					try {
+						DatabaseConnector.this.backup();
+					} catch (IOException | SQLException e) {
+						DatabaseConnector.log.error("Backup failed", e);
+					}
 				}
-			}
+			}, cronPattern);
+		}
+	}
+
+	/*
+	 * Writes the pending history first, so it ends up in the snapshot. The
+	 * history compaction waits for the backup, it deletes segment files.
+	 */
+	public DatabaseBackup.BackupResult backup() throws IOException, SQLException {
+		this.flushWeeklyDb();
+		if (this.coldHistory == null) {
+			return this.databaseBackup.run();
+		}
+		synchronized (this.coldHistory) {
+			return this.databaseBackup.run();
+		}
+	}
+
+	public DatabaseBackup getDatabaseBackup() {
+		return this.databaseBackup;
+	}
+
+	private void tierHistory() {
+		if (this.historyTiering != null) {
+			this.historyTiering.run();
 		}
 	}
 
@@ -200,71 +363,91 @@ public class DatabaseConnector {
 	}
 
 	private Connection connect(String path) {
+		return this.connect(path, false);
+	}
+
+	/*
+	 * Every database is used in WAL mode: the writer connection appends to
+	 * the log while the read connections keep reading the last committed
+	 * state. With WAL, synchronous NORMAL only syncs on checkpoints and can not
+	 * corrupt the database on a power loss.
+	 */
+	private Connection connect(String path, boolean readOnly) {
 		try {
 			Class.forName("org.sqlite.JDBC");
-			return DriverManager.getConnection("jdbc:sqlite:" + path);
+			SQLiteConfig config = new SQLiteConfig();
+			config.setReadOnly(readOnly);
+			config.setBusyTimeout(this.BUSY_TIMEOUT);
+			if (!readOnly) {
+				config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+				config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+			}
+			Connection connection = DriverManager.getConnection("jdbc:sqlite:" + path, config.toProperties());
+			Statement stmt = connection.createStatement();
+			try {
+				stmt.execute("PRAGMA mmap_size = " + this.MMAP_SIZE);
+			} finally {
+				stmt.close();
+			}
+			return connection;
 		} catch (Exception e) {
 			DatabaseConnector.log.fatal("Could not connect to database", e);
 		}
 		return null;
 	}
 
-	public ResultSet executeSelect(String sql, boolean flushFirst) throws SQLException {
-		if (flushFirst) {
-			this.flushWeeklyDb();
-		}
-		return this.executeSelect(sql);
+	private ReadConnectionPool createReaders(final String path) throws SQLException {
+		return new ReadConnectionPool(new ReadConnectionPool.ConnectionFactory() {
+			@Override
+			public Connection open() throws SQLException {
+				Connection connection = DatabaseConnector.this.connect(path, true);
+				if (connection == null) {
+					throw new SQLException("Could not open read connection on " + path);
+				}
+				return connection;
+			}
+		}, this.READ_CONNECTIONS);
 	}
 
+	/*
+	 * Reads from the configuration database
+	 */
 	public ResultSet executeSelect(String sql) throws SQLException {
-		if (!this.cleaning) {
-			ResultSet rs = null;
-			Statement stmt = this.weeklylHistoryConnection.createStatement();
-			rs = stmt.executeQuery(sql);
-			return rs;
-		}
-		return null;
-	}
-
-	public ResultSet executeSelectArchiving(String sql, boolean flushFirst) throws SQLException {
-		if (flushFirst) {
-			this.flushHistoryDb();
-		}
-		return this.executeSelectArchiving(sql);
+		return this.configReaders.executeQuery(sql);
 	}
 
 	public ResultSet executeSelectArchiving(String sql) throws SQLException {
-		if (!this.cleaning) {
-			ResultSet rs = null;
-			Statement stmt = this.allHistoryConnection.createStatement();
-			rs = stmt.executeQuery(sql);
-			return rs;
-		}
-		return null;
+		return this.archiveReaders.executeQuery(sql);
 	}
 
 	public PreparedStatement prepareStatement(String sql) throws SQLException {
-		return this.weeklylHistoryConnection.prepareStatement(sql);
+		return this.configConnection.prepareStatement(sql);
 	}
 
 	public ResultSet executePreparedStatement(PreparedStatement stmt) throws SQLException {
 		return stmt.executeQuery();
 	}
 
+	/*
+	 * Writes go through the single writer connection of the configuration
+	 * database and are synchronized on it.
+	 */
 	public int executePreparedUpdate(PreparedStatement stmt) throws SQLException {
 		int returnId = 0;
-		stmt.executeUpdate();
-		ResultSet keys = stmt.getGeneratedKeys();
-		if (keys != null) {
-			try {
-				returnId = keys.getInt("last_insert_rowid()");
-			} catch (SQLException e) {
-				// Set status of returnId?
-			} finally {
+		synchronized (this.configConnection) {
+			stmt.executeUpdate();
+			ResultSet keys = stmt.getGeneratedKeys();
+			if (keys != null) {
 				try {
-					keys.close();
+					returnId = keys.getInt("last_insert_rowid()");
 				} catch (SQLException e) {
-					DatabaseConnector.log.error("Exception occured: ", e);
+					// Set status of returnId?
+				} finally {
+					try {
+						keys.close();
+					} catch (SQLException e) {
+						DatabaseConnector.log.error("Exception occured: ", e);
+					}
 				}
 			}
 		}
@@ -272,70 +455,86 @@ public class DatabaseConnector {
 	}
 
 	public boolean executeQuery(String sql) throws SQLException {
-		if (!this.cleaning) {
-			boolean result = false;
-			// try {
-			Statement stmt = this.weeklylHistoryConnection.createStatement();
+		boolean result = false;
+		// try {
+		synchronized (this.configConnection) {
+			Statement stmt = this.configConnection.createStatement();
 			result = stmt.execute(sql);
 			stmt.close();
-			result = true;
-			// } catch (SQLException e) {
-			// log.error("Exception occured: ",e);
-			// }
-			return result;
-		} else {
-			return false;
 		}
+		result = true;
+		// } catch (SQLException e) {
+		// log.error("Exception occured: ",e);
+		// }
+		return result;
 	}
 
+	/*
+	 * The archive is kept small by moving old values to segment files, see
+	 * ColdHistory. The freed pages are reused, so no VACUUM is needed.
+	 */
 	private void cleanArchivingDB() {
-		this.cleaning = true;
-
-		try {
-			String vacuumSQL = "VACUUM";
-			DatabaseConnector.log.debug("Cleaning: " + vacuumSQL);
-			Statement vacuumStm = this.allHistoryConnection.createStatement();
-			vacuumStm.execute(vacuumSQL);
-			vacuumStm.close();
-
-		} catch (SQLException e) {
-			DatabaseConnector.log.error("Exception occured: ", e);
+		if (this.coldHistory != null) {
+			this.coldHistory.compact();
 		}
-
-		this.cleaning = false;
 	}
 
+	/*
+	 * Retention of the weekly database: the partitions with values older than
+	 * 32 days are dropped, reads keep working while this runs. Partitions
+	 * that are not completely copied to the archive are kept.
+	 */
 	private void cleanWeeklyDB() {
 		DatabaseConnector.log.debug("Daily database cleanup for week db started!");
 		Calendar today = Calendar.getInstance();
 		long lastMonth = (today.getTimeInMillis() - (1000L * 60 * 60 * 24 * 32)) / 1000L;
-		this.cleaning = true;
-
-		try {
-			String cleanSQL = "DELETE from Home_History where cast(strftime('%s', time) as integer) < '" + lastMonth + "'";
-			DatabaseConnector.log.debug("Cleaning: " + cleanSQL);
-			Statement cleanStm = this.weeklylHistoryConnection.createStatement();
-			cleanStm.execute(cleanSQL);
-			cleanStm.close();
-
-			String vacuumSQL = "VACUUM";
-			DatabaseConnector.log.debug("Cleaning: " + vacuumSQL);
-			Statement vacuumStm = this.weeklylHistoryConnection.createStatement();
-			vacuumStm.execute(vacuumSQL);
-			vacuumStm.close();
-
-		} catch (SQLException e) {
-			DatabaseConnector.log.error("Exception occured: ", e);
+		if (this.weeklyPartitions != null) {
+			this.tierHistory();
+			int dropped = this.weeklyPartitions.dropBefore(lastMonth, this.historyTiering);
+			DatabaseConnector.log.debug("Cleaning: dropped " + dropped + " history partitions, " + this.weeklyPartitions.size() + " left");
+		}
+		if (this.percentileSketches != null) {
+			// Percentiles can be asked for the last 400 days
+			long oldest = (today.getTimeInMillis() - (1000L * 60 * 60 * 24 * 400)) / 1000L;
+			int removed = this.percentileSketches.clean(oldest);
+			DatabaseConnector.log.debug("Cleaning: removed " + removed + " percentile sketches");
 		}
+	}
 
-		this.cleaning = false;
+	/*
+	 * Adds the history compression columns to the ZWave_Value_Settings table
+	 * of older databases
+	 */
+	private void upgradeValueSettings() throws SQLException {
+		Set<String> columns = new HashSet<String>();
+		synchronized (this.configConnection) {
+			Statement stmt = this.configConnection.createStatement();
+			try {
+				ResultSet result = stmt.executeQuery("PRAGMA table_info(ZWave_Value_Settings)");
+				while (result.next()) {
+					columns.add(result.getString("name"));
+				}
+				result.close();
+				if (columns.isEmpty()) {
+					return;
+				}
+				String[][] newColumns = { { "history_deadband", "REAL" }, { "history_deadband_percent", "REAL" }, { "history_deviation", "REAL" }, { "history_heartbeat", "INTEGER" } };
+				for (String[] column : newColumns) {
+					if (!columns.contains(column[0])) {
+						stmt.executeUpdate("ALTER TABLE ZWave_Value_Settings ADD COLUMN " + column[0] + " " + column[1]);
+					}
+				}
+			} finally {
+				stmt.close();
+			}
+		}
 	}
 
 	private void createInitialSettingsDatabase(Connection connection) {
 
 		String createCommand = " CREATE TABLE IF NOT EXISTS Scenes (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL UNIQUE, name VARCHAR, json TEXT);" + " CREATE TABLE IF NOT EXISTS Http_Nodes (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL UNIQUE, name VARCHAR, parentId INTEGER);" + " CREATE TABLE IF NOT EXISTS Radio_Channels (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL UNIQUE, channelUrl VARCHAR, channelName VARCHAR);" + " CREATE TABLE IF NOT EXISTS Rules (id INTEGER PRIMARY KEY NOT NULL, name VARCHAR, json TEXT DEFAULT (NULL), active BOOLEAN);" + " CREATE TABLE IF NOT EXISTS IP_Cameras (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, name VARCHAR, snapshotUrl VARCHAR, videoUrl VARCHAR);"
-				+ " CREATE TABLE IF NOT EXISTS Notification_GCM (registration_id VARCHAR PRIMARY KEY NOT NULL UNIQUE, name VARCHAR (200), width INTEGER (6),height INTEGER (6) );" + " CREATE TABLE IF NOT EXISTS Home_History (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, controller_identifier VARCHAR DEFAULT (NULL), node_identifier VARCHAR DEFAULT (NULL), value_identifier VARCHAR DEFAULT (NULL), time INTEGER DEFAULT (CURRENT_TIMESTAMP), unit VARCHAR, value VARCHAR, value_d VARCHAR);" + " CREATE TABLE IF NOT EXISTS Aliases (controller_identifier NOT NULL, node_identifier, value_identifier, alias, PRIMARY KEY (controller_identifier, node_identifier, value_identifier));"
-				+ " CREATE TABLE IF NOT EXISTS Http_Commands (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL UNIQUE, parentNodeId INTEGER, name VARCHAR, description VARCHAR, url VARCHAR, httpMethod VARCHAR, messageType VARCHAR,header_1_key VARCHAR,header_1_value VARCHAR,header_2_key VARCHAR,header_2_value VARCHAR,header_3_key VARCHAR,header_3_value VARCHAR,header_4_key VARCHAR,header_4_value VARCHAR, messageBody VARCHAR,json TEXT DEFAULT (NULL));" + " CREATE TABLE IF NOT EXISTS ZWave_Value_Settings (homeId INTEGER NOT NULL, nodeId INTEGER NOT NULL, valueId INTEGER NOT NULL, nodeInstance INTEGER, subscribed BOOL, polled BOOL, PRIMARY KEY (homeId, nodeId, valueId, nodeInstance));";
+				+ " CREATE TABLE IF NOT EXISTS Notification_GCM (registration_id VARCHAR PRIMARY KEY NOT NULL UNIQUE, name VARCHAR (200), width INTEGER (6),height INTEGER (6) );" + " CREATE TABLE IF NOT EXISTS Aliases (controller_identifier NOT NULL, node_identifier, value_identifier, alias, PRIMARY KEY (controller_identifier, node_identifier, value_identifier));"
+				+ " CREATE TABLE IF NOT EXISTS Http_Commands (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL UNIQUE, parentNodeId INTEGER, name VARCHAR, description VARCHAR, url VARCHAR, httpMethod VARCHAR, messageType VARCHAR,header_1_key VARCHAR,header_1_value VARCHAR,header_2_key VARCHAR,header_2_value VARCHAR,header_3_key VARCHAR,header_3_value VARCHAR,header_4_key VARCHAR,header_4_value VARCHAR, messageBody VARCHAR,json TEXT DEFAULT (NULL));" + " CREATE TABLE IF NOT EXISTS ZWave_Value_Settings (homeId INTEGER NOT NULL, nodeId INTEGER NOT NULL, valueId INTEGER NOT NULL, nodeInstance INTEGER, subscribed BOOL, polled BOOL, history_deadband REAL, history_deadband_percent REAL, history_deviation REAL, history_heartbeat INTEGER, PRIMARY KEY (homeId, nodeId, valueId, nodeInstance));";
 		try {
 			Statement stmt = connection.createStatement();
 			stmt.executeUpdate(createCommand);
@@ -346,194 +545,396 @@ public class DatabaseConnector {
 	}
 
 	public String getAlias(String controlIdentifier) {
-		return (this.getAliasFromSql("SELECT alias FROM aliases WHERE controller_identifier='" + controlIdentifier + "'"));
+		return this.aliasIndex.get(controlIdentifier, null, null);
 	}
 
 	public String getAlias(String controlIdentifier, String nodeIdentifier) {
-		return (this.getAliasFromSql("SELECT alias FROM aliases WHERE controller_identifier='" + controlIdentifier + "' and node_identifier='" + nodeIdentifier + "' and value_identifier IS NULL"));
+		return this.aliasIndex.get(controlIdentifier, nodeIdentifier, null);
 	}
 
 	public String getAlias(String controlIdentifier, String nodeIdentifier, String valueIdentifier) {
-		return (this.getAliasFromSql("SELECT alias FROM aliases WHERE controller_identifier='" + controlIdentifier + "' and node_identifier='" + nodeIdentifier + "' and value_identifier='" + valueIdentifier + "'"));
+		return this.aliasIndex.get(controlIdentifier, nodeIdentifier, valueIdentifier);
+	}
+
+	public boolean setAlias(String controllerIdentifier, String alias) throws SQLException {
+		this.aliasIndex.set(controllerIdentifier, null, null, alias);
+		return true;
+	}
+
+	public boolean setAlias(String controllerIdentifier, String nodeIdentifier, String alias) throws SQLException {
+		this.aliasIndex.set(controllerIdentifier, nodeIdentifier, null, alias);
+		return true;
 	}
 
-	private Map<String, String> aliasCache = new LRUMap(1000);
+	public boolean setAlias(String controllerIdentifier, String nodeIdentifier, String valueIdentifier, String alias) throws SQLException {
+		this.aliasIndex.set(controllerIdentifier, nodeIdentifier, valueIdentifier, alias);
+		return true;
+	}
 
-	private String getAliasFromSql(String sql) {
-		String alias = this.aliasCache.get(sql);
-		if (alias != null) {
-			return alias;
+	private void createInitialZWaveArchive(Connection connection) {
+		try {
+			HistoryMigration.createSchema(connection);
+		} catch (SQLException e) {
+			DatabaseConnector.log.error("Exception occured: ", e);
+		}
+	}
+
+	public SeriesDictionary getWeeklySeries() {
+		return this.weeklySeries;
+	}
+
+	public SeriesDictionary getArchiveSeries() {
+		return this.archiveSeries;
+	}
+
+	public HistoryRollups getHistoryRollups() {
+		return this.historyRollups;
+	}
+
+	/*
+	 * Storage engine of the value history, see setHistoryEngine
+	 */
+	public HistoryStore getHistoryStore() {
+		return this.historyStore;
+	}
+
+	/*
+	 * Selects the engine that stores new values and answers history
+	 * requests. Values that were stored by the other engine are not moved.
+	 */
+	public synchronized void setHistoryEngine(String engine) {
+		if (this.sqliteHistoryStore == null) {
+			return;
+		}
+		HistoryStore current = this.historyStore;
+		if (DatabaseConnector.ENGINE_MAPPED.equalsIgnoreCase(engine)) {
+			if (!(current instanceof MappedHistoryStore)) {
+				this.historyStore = new MappedHistoryStore(new File(this.PATH_MAPPED), this.weeklySeries);
+				DatabaseConnector.log.info("History is stored in memory-mapped files in " + this.PATH_MAPPED);
+			}
+		} else if (DatabaseConnector.ENGINE_SQLITE.equalsIgnoreCase(engine)) {
+			if (current != this.sqliteHistoryStore) {
+				this.historyStore = this.sqliteHistoryStore;
+				current.close();
+				DatabaseConnector.log.info("History is stored in the SQLite databases");
+			}
 		} else {
-			ResultSet result = null;
+			DatabaseConnector.log.error("Unknown history engine: " + engine);
+		}
+		if (this.historyStore != current) {
+			this.historyQueryCache.clear();
+		}
+	}
+
+	public ColdHistory getColdHistory() {
+		return this.coldHistory;
+	}
+
+	public HistoryTiering getHistoryTiering() {
+		return this.historyTiering;
+	}
+
+	public HistoryCompression getHistoryCompression() {
+		return this.historyCompression;
+	}
+
+	/*
+	 * Runs the series of a multi-series history request in parallel
+	 */
+	public HistoryBatch getHistoryBatch() {
+		return this.historyBatch;
+	}
+
+	/*
+	 * Day and month totals of cumulative meters, null when the history
+	 * databases could not be opened
+	 */
+	public MeterAggregates getMeterAggregates() {
+		return this.meterAggregates;
+	}
+
+	/*
+	 * Quantile sketches per series and day, null when the history databases
+	 * could not be opened
+	 */
+	public PercentileSketches getPercentileSketches() {
+		return this.percentileSketches;
+	}
+
+	/*
+	 * Aggregated history results, invalidated by store
+	 */
+	public HistoryQueryCache getHistoryQueryCache() {
+		return this.historyQueryCache;
+	}
+
+	public RecentHistory getRecentHistory() {
+		return this.recentHistory;
+	}
+
+	/*
+	 * Value changes that are not committed yet, see HistoryQuery.pending
+	 */
+	public PendingHistory getPendingHistory() {
+		return this.historyWriter == null ? null : this.historyWriter.getPendingHistory();
+	}
+
+	/*
+	 * Value changes the history writer could not queue because its buffer was full
+	 */
+	public long getDroppedHistoryEvents() {
+		return this.historyWriter == null ? 0 : this.historyWriter.getDroppedEvents();
+	}
+
+	/*
+	 * Read connections of the configuration database, see ReadConnectionPool.acquire
+	 */
+	public ReadConnectionPool getConfigReaders() {
+		return this.configReaders;
+	}
+
+	/*
+	 * Runs an UPDATE or DELETE on the configuration database with a cached
+	 * prepared statement, returns the number of changed rows
+	 */
+	public int executeConfigUpdate(String sql, Object... parameters) throws SQLException {
+		return this.executeConfigWrite(sql, parameters, false);
+	}
+
+	/*
+	 * Runs an INSERT on the configuration database with a cached prepared
+	 * statement, returns the id of the new row
+	 */
+	public int executeConfigInsert(String sql, Object... parameters) throws SQLException {
+		return this.executeConfigWrite(sql, parameters, true);
+	}
+
+	private int executeConfigWrite(String sql, Object[] parameters, boolean returnId) throws SQLException {
+		synchronized (this.configConnection) {
+			PreparedStatement stmt = this.configStatements.borrow(sql);
 			try {
-				result = this.executeSelect(sql);
-				if (result.next()) {
-					return result.getString("alias");
+				DatabaseConnector.setParameters(stmt, parameters);
+				int changed = stmt.executeUpdate();
+				if (!returnId) {
+					return changed;
 				}
-			} catch (SQLException e) {
-				DatabaseConnector.log.error("Exception occured: ", e);
-			} finally {
-				if (result != null) {
-					try {
-						result.getStatement().close();
-						result.close();
-					} catch (SQLException e) {
-					}
+				ResultSet keys = stmt.getGeneratedKeys();
+				try {
+					return keys.next() ? keys.getInt(1) : 0;
+				} finally {
+					keys.close();
 				}
+			} finally {
+				this.configStatements.release(sql, stmt);
 			}
 		}
-		return null;
 	}
 
-	public boolean setAlias(String controllerIdentifier, String alias) throws SQLException {
-		String existingAlias = this.getAlias(controllerIdentifier);
-		this.aliasCache.clear();
-		if (existingAlias == null) {
-			return this.executeQuery("INSERT INTO aliases (controller_identifier, alias) VALUES ('" + controllerIdentifier + "', '" + alias + "')");
-		} else {
-			return this.executeQuery("UPDATE aliases SET alias='" + alias + "' WHERE controller_identifier = '" + controllerIdentifier + "' and node_identifier is null and value_identifier is null");
+	public static void setParameters(PreparedStatement stmt, Object[] parameters) throws SQLException {
+		for (int i = 0; i < parameters.length; i++) {
+			stmt.setObject(i + 1, parameters[i]);
 		}
 	}
 
-	public boolean setAlias(String controllerIdentifier, String nodeIdentifier, String alias) throws SQLException {
-		String existingAlias = this.getAlias(controllerIdentifier, nodeIdentifier);
-		this.aliasCache.clear();
-		if (existingAlias == null) {
-			return this.executeQuery("INSERT INTO aliases (controller_identifier,node_identifier, alias) VALUES ('" + controllerIdentifier + "', '" + nodeIdentifier + "','" + alias + "')");
-		} else {
-			return this.executeQuery("UPDATE aliases SET alias='" + alias + "' WHERE controller_identifier = '" + controllerIdentifier + "' and node_identifier = '" + nodeIdentifier + "' and value_identifier is null");
-		}
-
+	public void insertValueChange(ControlIdentifiers controlIdentifiers, String unit, String valueString, Double valueDouble) {
+		this.insertValueChange(controlIdentifiers, unit, valueString, valueDouble, null);
 	}
 
-	public boolean setAlias(String controllerIdentifier, String nodeIdentifier, String valueIdentifier, String alias) throws SQLException {
-		String existingAlias = this.getAlias(controllerIdentifier, nodeIdentifier, valueIdentifier);
-		this.aliasCache.clear();
-		if (existingAlias == null) {
-			return this.executeQuery("INSERT INTO aliases (controller_identifier, node_identifier,value_identifier, alias) VALUES ('" + controllerIdentifier + "', '" + nodeIdentifier + "', '" + valueIdentifier + "','" + alias + "')");
-		} else {
-			return this.executeQuery("UPDATE aliases SET alias='" + alias + "' WHERE controller_identifier = '" + controllerIdentifier + "' and node_identifier = '" + nodeIdentifier + "' and value_identifier = '" + valueIdentifier + "'");
+	/*
+	 * Value change that goes through the deadband / swinging door compression
+	 * of the series first
+	 */
+	public void insertValueChange(ControlIdentifiers controlIdentifiers, String unit, String valueString, Double valueDouble, CompressionSettings compression) {
+		// Only numeric values are kept, a made up value would end up in the averages and rollups
+		if (this.historyStore != null && valueDouble != null) {
+			HistoryEvent event = new HistoryEvent(controlIdentifiers, unit, valueDouble, System.currentTimeMillis());
+			List<HistoryEvent> store = new ArrayList<HistoryEvent>(2);
+			this.historyCompression.offer(event, compression, store);
+			this.store(store);
 		}
 	}
 
-	private void createInitialZWaveArchive(Connection connection) {
-		String createCommand = "CREATE TABLE \"Home_History\" ( \"id\" INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL ,\"controller_identifier\" VARCHAR DEFAULT (null) ,\"node_identifier\" VARCHAR DEFAULT (null) ,\"value_identifier\" VARCHAR DEFAULT (null) ,\"time\" INTEGER DEFAULT (CURRENT_TIMESTAMP) ,\"unit\" VARCHAR,\"value\" VARCHAR,\"value_d\" VARCHAR);";
-
-		try {
-			Statement stmt = connection.createStatement();
-			stmt.executeUpdate(createCommand);
-			stmt.close();
-		} catch (SQLException e) {
-			DatabaseConnector.log.error("Exception occured: ", e);
+	private void store(List<HistoryEvent> events) {
+		for (HistoryEvent event : events) {
+			// Only keep in memory what will also be stored
+			if (this.historyStore.append(event)) {
+				this.recentHistory.add(event);
+				this.historyQueryCache.invalidate(event.getSeriesKey(), event.getTime() / 1000L);
+				if (this.meterAggregates != null) {
+					this.meterAggregates.offer(event);
+				}
+				if (this.percentileSketches != null) {
+					this.percentileSketches.offer(event);
+				}
+			}
 		}
+	}
 
+	// Settings of every Z-Wave value by getValueSettingsKey, loaded at once
+	private final ConcurrentHashMap<Long, ValueSettings> valueSettingsCache = new ConcurrentHashMap<Long, ValueSettings>();
+	// Values whose key is already taken by another value, by getValueSettingsExactKey
+	private final ConcurrentHashMap<String, ValueSettings> valueSettingsCollisions = new ConcurrentHashMap<String, ValueSettings>();
+	private volatile boolean valueSettingsLoaded = false;
+
+	/*
+	 * Packs a value into one long: the lower 32 bits of the OpenZWave value
+	 * id (node, genre, command class, index and type), 8 bits of instance
+	 * and the lower 24 bits of the home id. The full ids of a hit are
+	 * compared, see ValueSettings.matches.
+	 */
+	private static long getValueSettingsKey(long homeId, BigInteger valueId, short nodeInstance) {
+		return (valueId.longValue() << 32) | ((nodeInstance & 0xFFL) << 24) | (homeId & 0xFFFFFFL);
 	}
 
-	public void insertValueChange(ControlIdentifiers controlIdentifiers, String unit, String valueString, Double valueDouble) {
-		String currentTime = getTimestamp();
-		try {
-			this.historyBatchStm.setString(1, controlIdentifiers.getControllerIdentifier().convert());
-			this.historyBatchStm.setString(2, controlIdentifiers.getNodeIdentifier());
-			this.historyBatchStm.setString(3, controlIdentifiers.getValueIdentifier());
-			this.historyBatchStm.setString(4, currentTime);
-			this.historyBatchStm.setString(5, unit);
-			this.historyBatchStm.setString(6, valueString);
-			this.historyBatchStm.setDouble(7, valueDouble);
-			this.historyBatchStm.addBatch();
-			this.currentHistoryBatchSize++;
-			if (this.currentHistoryBatchSize >= this.HISTORY_BATCH_SIZE) {
-				this.flushHistoryDb();
+	private static String getValueSettingsExactKey(long homeId, short nodeId, BigInteger valueId, short nodeInstance) {
+		return homeId + "/" + nodeId + "/" + valueId + "/" + nodeInstance;
+	}
+
+	/*
+	 * Puts the settings in the cache, in valueSettingsCollisions when the key
+	 * belongs to another value. Returns the cached settings of the value,
+	 * which are the ones that were already there when replace is false.
+	 */
+	private ValueSettings cacheValueSettings(ValueSettings settings, boolean replace) {
+		long key = DatabaseConnector.getValueSettingsKey(settings.homeId, settings.valueId, settings.nodeInstance);
+		ValueSettings existing = this.valueSettingsCache.putIfAbsent(key, settings);
+		if (existing == null) {
+			return settings;
+		} else if (existing.matches(settings.homeId, settings.nodeId, settings.valueId, settings.nodeInstance)) {
+			if (replace) {
+				this.valueSettingsCache.put(key, settings);
+				return settings;
 			}
-		} catch (SQLException e) {
-			DatabaseConnector.log.error("Exception occured: ", e);
-			e.printStackTrace();
+			return existing;
+		}
+		String exactKey = DatabaseConnector.getValueSettingsExactKey(settings.homeId, settings.nodeId, settings.valueId, settings.nodeInstance);
+		if (replace) {
+			this.valueSettingsCollisions.put(exactKey, settings);
+			return settings;
 		}
+		existing = this.valueSettingsCollisions.putIfAbsent(exactKey, settings);
+		return existing == null ? settings : existing;
+	}
+
+	/*
+	 * Reads the whole ZWave_Value_Settings table in one query
+	 */
+	private void loadZWaveValueSettings() {
+		ResultSet resultTable = null;
 		try {
-			this.weeklyHistoryStm.setString(1, controlIdentifiers.getControllerIdentifier().convert());
-			this.weeklyHistoryStm.setString(2, controlIdentifiers.getNodeIdentifier());
-			this.weeklyHistoryStm.setString(3, controlIdentifiers.getValueIdentifier());
-			this.weeklyHistoryStm.setString(4, currentTime);
-			this.weeklyHistoryStm.setString(5, unit);
-			this.weeklyHistoryStm.setString(6, valueString);
-			this.weeklyHistoryStm.setDouble(7, valueDouble);
-			this.weeklyHistoryStm.addBatch();
-			this.currentWeeklyBatchSize++;
-
-			if (this.currentWeeklyBatchSize >= this.WEEKLY_BATCH_SIZE) {
-				this.flushWeeklyDb();
+			resultTable = this.executeSelect("SELECT * FROM ZWave_Value_Settings");
+			int rows = 0;
+			while (resultTable.next()) {
+				ValueSettings settings = new ValueSettings(resultTable.getLong("homeId"), resultTable.getShort("nodeId"), BigInteger.valueOf(resultTable.getLong("valueId")), resultTable.getShort("nodeInstance"), resultTable);
+				this.cacheValueSettings(settings, true);
+				rows++;
 			}
+			this.valueSettingsLoaded = true;
+			DatabaseConnector.log.debug("Loaded " + rows + " Z-Wave value settings (" + this.valueSettingsCollisions.size() + " with colliding keys)");
 		} catch (SQLException e) {
 			DatabaseConnector.log.error("Exception occured: ", e);
-			e.printStackTrace();
-		}
-
-	}
-
-	private String getTimestamp() {
-		Date date = new Date();
-		if (sqliteTimestampFormat == null) {
-			sqliteTimestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-			sqliteTimestampFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		} finally {
+			if (resultTable != null) {
+				try {
+					resultTable.getStatement().close();
+				} catch (SQLException e) {
+				}
+			}
 		}
-		return sqliteTimestampFormat.format(date);
 	}
 
-	private Map<String, ValueSettings> valueSettingsCache = new HashMap<String, ValueSettings>();
-
 	public boolean insertOrUpdateZWaveValueSettings(ValueSettings settings) throws SQLException {
 		if (settings.homeId != 0 & settings.nodeId != 0 && settings.valueId.intValue() != 0) {
 			int polledFlag = (settings.polled) ? 1 : 0;
 			int subscribedflag = (settings.subscribed) ? 1 : 0;
-			String setValueSetting = "INSERT or REPLACE INTO ZWave_Value_Settings (homeId,nodeId,valueId,nodeInstance,subscribed,polled)" + " VALUES  ('" + settings.homeId + "','" + settings.nodeId + "','" + settings.valueId + "','" + settings.nodeInstance + "','" + subscribedflag + "','" + polledFlag + "')";
+			String setValueSetting = "INSERT or REPLACE INTO ZWave_Value_Settings (homeId,nodeId,valueId,nodeInstance,subscribed,polled,history_deadband,history_deadband_percent,history_deviation,history_heartbeat)" + " VALUES  ('" + settings.homeId + "','" + settings.nodeId + "','" + settings.valueId + "','" + settings.nodeInstance + "','" + subscribedflag + "','" + polledFlag + "'," + settings.historyDeadband + "," + settings.historyDeadbandPercent + "," + settings.historyDeviation + "," + settings.historyHeartbeat + ")";
 			this.executeQuery(setValueSetting);
 
-			ZWaveValue value = new ZWaveValue((short) 0, settings.nodeId, settings.valueId, settings.homeId, settings.nodeInstance);
-			this.valueSettingsCache.put(value.toControlId(), settings);
+			settings.stored = true;
+			this.cacheValueSettings(settings, true);
 		}
 		return false;
 	}
 
 	public ValueSettings getZWaveValueSettings(long homeId, short nodeId, BigInteger valueId, short nodeInstance) {
-		ZWaveValue value = new ZWaveValue((short) 0, nodeId, valueId, homeId, nodeInstance);
-		ValueSettings settings = this.valueSettingsCache.get(value.toControlId());
+		long key = DatabaseConnector.getValueSettingsKey(homeId, valueId, nodeInstance);
+		ValueSettings settings = this.valueSettingsCache.get(key);
+		if (settings != null && !settings.matches(homeId, nodeId, valueId, nodeInstance)) {
+			settings = this.valueSettingsCollisions.get(DatabaseConnector.getValueSettingsExactKey(homeId, nodeId, valueId, nodeInstance));
+		}
 		if (settings != null) {
 			return settings;
+		} else if (this.valueSettingsLoaded) {
+			// Not in the table, so the defaults
+			return this.cacheValueSettings(new ValueSettings(homeId, nodeId, valueId, nodeInstance, null), false);
 		} else {
 			ResultSet resultTable = null;
 			try {
 				String getValueSetting = "SELECT * FROM ZWave_Value_Settings WHERE homeId = '" + homeId + "' AND nodeId = '" + nodeId + "' AND valueId = '" + valueId + "' AND nodeInstance = '" + nodeInstance + "'";
 				resultTable = this.executeSelect(getValueSetting);
-
-				// //resultTable.next();
+				settings = new ValueSettings(homeId, nodeId, valueId, nodeInstance, resultTable.next() ? resultTable : null);
 			} catch (SQLException e) {
 				DatabaseConnector.log.error("Exception occured: ", e);
+				settings = new ValueSettings(homeId, nodeId, valueId, nodeInstance, null);
+			} finally {
+				if (resultTable != null) {
+					try {
+						resultTable.getStatement().close();
+					} catch (SQLException e) {
+					}
+				}
 			}
-			settings = new ValueSettings(homeId, nodeId, valueId, nodeInstance, resultTable);
-			this.valueSettingsCache.put(value.toControlId(), settings);
-			return settings;
+			return this.cacheValueSettings(settings, false);
 		}
 	}
 
+	/*
+	 * Stored settings of the values of one node
+	 */
 	public List<ValueSettings> getAllZWaveValueSettings(long homeId, short nodeId) {
 		List<ValueSettings> valueSettingsList = new ArrayList<ValueSettings>();
-		try {
-			String getValueSetting = "SELECT * FROM ZWave_Value_Settings WHERE homeId = '" + homeId + "' AND nodeId = '" + nodeId + "'";
-			ResultSet resultTable = this.executeSelect(getValueSetting);
+		for (ValueSettings settings : this.getAllZWaveValueSettings(homeId)) {
+			if (settings.nodeId == nodeId) {
+				valueSettingsList.add(settings);
+			}
+		}
+		return valueSettingsList;
+	}
 
+	/*
+	 * Stored settings of all values of a network
+	 */
+	public List<ValueSettings> getAllZWaveValueSettings(long homeId) {
+		List<ValueSettings> valueSettingsList = new ArrayList<ValueSettings>();
+		if (this.valueSettingsLoaded) {
+			for (ValueSettings settings : this.valueSettingsCache.values()) {
+				if (settings.homeId == homeId && settings.stored) {
+					valueSettingsList.add(settings);
+				}
+			}
+			for (ValueSettings settings : this.valueSettingsCollisions.values()) {
+				if (settings.homeId == homeId && settings.stored) {
+					valueSettingsList.add(settings);
+				}
+			}
+			return valueSettingsList;
+		}
+		ResultSet resultTable = null;
+		try {
+			resultTable = this.executeSelect("SELECT * FROM ZWave_Value_Settings WHERE homeId = '" + homeId + "'");
 			while (resultTable.next()) {
-				BigInteger valueId = BigInteger.valueOf(resultTable.getLong("valueId"));
-				short nodeInstance = resultTable.getShort("nodeInstance");
-				ValueSettings vs = new ValueSettings(homeId, nodeId, valueId, nodeInstance, resultTable);
-				valueSettingsList.add(vs);
-
-				ZWaveValue value = new ZWaveValue((short) 0, nodeId, valueId, homeId, nodeInstance);
-				this.valueSettingsCache.put(value.toControlId(), vs);
-
+				valueSettingsList.add(new ValueSettings(homeId, resultTable.getShort("nodeId"), BigInteger.valueOf(resultTable.getLong("valueId")), resultTable.getShort("nodeInstance"), resultTable));
 			}
 		} catch (SQLException e) {
 			DatabaseConnector.log.error("Exception occured: ", e);
+		} finally {
+			if (resultTable != null) {
+				try {
+					resultTable.getStatement().close();
+				} catch (SQLException e) {
+				}
+			}
 		}
-
 		return valueSettingsList;
 	}
 
@@ -545,8 +946,13 @@ public class DatabaseConnector {
 			this.nodeInstance = nodeInstance;
 			if (resultRow != null) {
 				try {
+					this.stored = true;
 					this.subscribed = resultRow.getBoolean("subscribed");
 					this.polled = resultRow.getBoolean("polled");
+					this.historyDeadband = resultRow.getDouble("history_deadband");
+					this.historyDeadbandPercent = resultRow.getDouble("history_deadband_percent");
+					this.historyDeviation = resultRow.getDouble("history_deviation");
+					this.historyHeartbeat = resultRow.getInt("history_heartbeat");
 					this.alias = resultRow.getString("alias");
 				} catch (SQLException e) {
 					// Record does not exist
@@ -561,17 +967,33 @@ public class DatabaseConnector {
 		public boolean subscribed;
 		public boolean polled;
 		public String alias;
+		public double historyDeadband;
+		public double historyDeadbandPercent;
+		public double historyDeviation;
+		public int historyHeartbeat;
+		// Whether the settings are in the table, or only the defaults
+		public boolean stored;
+
+		public boolean matches(long homeId, short nodeId, BigInteger valueId, short nodeInstance) {
+			return this.homeId == homeId && this.nodeId == nodeId && this.nodeInstance == nodeInstance && this.valueId.equals(valueId);
+		}
 
+		/*
+		 * Null when the value changes are stored as they are
+		 */
+		public CompressionSettings getCompressionSettings() {
+			CompressionSettings compression = new CompressionSettings(this.historyDeadband, this.historyDeadbandPercent, this.historyDeviation, this.historyHeartbeat);
+			return compression.isEnabled() ? compression : null;
+		}
 	}
 
 	public int insertConfigurationValue(String insertString) throws SQLException {
 
-		// Insert in temporary weekly db
 		int returnId = 0;
-		if (!this.cleaning) {
-			Statement stmt = null;
+		Statement stmt = null;
+		synchronized (this.configConnection) {
 			try {
-				stmt = this.weeklylHistoryConnection.createStatement();
+				stmt = this.configConnection.createStatement();
 				stmt.executeUpdate(insertString);
 				ResultSet keys = stmt.getGeneratedKeys();
 				if (keys != null) {
@@ -600,8 +1022,40 @@ public class DatabaseConnector {
 	}
 
 	public void destroy() {
-		this.flushWeeklyDb();
-		this.flushHistoryDb();
+		this.historyBatch.close();
+		if (this.historyWriter != null) {
+			List<HistoryEvent> held = new ArrayList<HistoryEvent>();
+			this.historyCompression.flush(held);
+			this.store(held);
+			if (this.historyStore != null) {
+				this.historyStore.close();
+			}
+			this.historyWriter.stop();
+			if (this.meterAggregates != null) {
+				this.meterAggregates.close();
+			}
+			if (this.percentileSketches != null) {
+				this.percentileSketches.close();
+			}
+		}
+		if (this.weeklyReaders != null) {
+			this.weeklyReaders.close();
+		}
+		if (this.archiveReaders != null) {
+			this.archiveReaders.close();
+		}
+		if (this.configReaders != null) {
+			this.configReaders.close();
+		}
+		if (this.configStatements != null) {
+			this.configStatements.clear();
+		}
+		try {
+			if (this.configConnection != null) {
+				this.configConnection.close();
+			}
+		} catch (SQLException e) {
+		}
 		try {
 			if (this.weeklylHistoryConnection != null) {
 				this.weeklylHistoryConnection.close();
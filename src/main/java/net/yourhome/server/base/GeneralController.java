@@ -39,6 +39,16 @@ import net.yourhome.server.AbstractController;
 import net.yourhome.server.ControllerNode;
 import net.yourhome.server.ControllerValue;
 import net.yourhome.server.IController;
+import net.yourhome.server.base.history.ColdHistory;
+import net.yourhome.server.base.history.HistoryOperation;
+import net.yourhome.server.base.history.HistoryPoints;
+import net.yourhome.server.base.history.HistoryQueryCache;
+import net.yourhome.server.base.history.HistoryStore;
+import net.yourhome.server.base.history.MeterAggregates;
+import net.yourhome.server.base.history.PercentileSketches;
+import net.yourhome.server.base.history.RecentHistory;
+import net.yourhome.server.base.history.RecentValues;
+import net.yourhome.server.base.history.RollupPeriod;
 import net.yourhome.server.base.rules.scenes.Scene;
 import net.yourhome.server.base.rules.scenes.SceneManager;
 import net.yourhome.server.base.rules.scenes.actions.notifications.PushNotificationService;
@@ -53,7 +63,6 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -90,6 +99,16 @@ public class GeneralController extends AbstractController {
 				new Setting("SUNSET_LAT", "Server Latitude (see www.latlong.net)", "50.8503")
 		), SUNSET_LONG(
 				new Setting("SUNSET_LONG", "Server Longitude", "4.3517")
+		), HISTORY_MEMORY_DEPTH(
+				new Setting("HISTORY_MEMORY_DEPTH", "Number of recent values per sensor kept in memory for realtime graphs", "" + RecentHistory.DEFAULT_DEPTH)
+		), HISTORY_COLD_AGE(
+				new Setting("HISTORY_COLD_AGE", "Months of history kept in the archive database before it is moved to compressed segment files", "" + ColdHistory.DEFAULT_AGE_MONTHS)
+		), HISTORY_ENGINE(
+				new Setting("HISTORY_ENGINE", "History storage engine (" + DatabaseConnector.ENGINE_SQLITE + " or " + DatabaseConnector.ENGINE_MAPPED + " files)", DatabaseConnector.ENGINE_SQLITE)
+		), BACKUP_SCHEDULE(
+				new Setting("BACKUP_SCHEDULE", "When to back up the databases (cron pattern, " + DatabaseBackup.SCHEDULE_OFF + " to disable)", DatabaseBackup.DEFAULT_SCHEDULE)
+		), BACKUP_KEEP(
+				new Setting("BACKUP_KEEP", "Number of database backups to keep", "" + DatabaseBackup.DEFAULT_KEEP)
 		);
 		private Setting setting;
 
@@ -153,6 +172,43 @@ public class GeneralController extends AbstractController {
 		} catch (Exception e) {
 			log.error("Error on scheduling sunrise/sunset events", e);
 		}
+		String historyDepth = SettingsManager.getStringValue(this.getIdentifier(), Settings.HISTORY_MEMORY_DEPTH.get());
+		if (historyDepth != null && !historyDepth.isEmpty()) {
+			try {
+				this.dbConnector.getRecentHistory().setDepth(Integer.parseInt(historyDepth.trim()));
+			} catch (NumberFormatException e) {
+				log.error("Invalid history memory depth: " + historyDepth);
+			}
+		}
+		String historyColdAge = SettingsManager.getStringValue(this.getIdentifier(), Settings.HISTORY_COLD_AGE.get());
+		if (historyColdAge != null && !historyColdAge.isEmpty() && this.dbConnector.getColdHistory() != null) {
+			try {
+				this.dbConnector.getColdHistory().setAgeMonths(Integer.parseInt(historyColdAge.trim()));
+			} catch (NumberFormatException e) {
+				log.error("Invalid history cold age: " + historyColdAge);
+			}
+		}
+		String historyEngine = SettingsManager.getStringValue(this.getIdentifier(), Settings.HISTORY_ENGINE.get());
+		if (historyEngine != null && !historyEngine.isEmpty()) {
+			this.dbConnector.setHistoryEngine(historyEngine.trim());
+		}
+		String backupKeep = SettingsManager.getStringValue(this.getIdentifier(), Settings.BACKUP_KEEP.get());
+		if (backupKeep != null && !backupKeep.isEmpty()) {
+			try {
+				this.dbConnector.getDatabaseBackup().setKeep(Integer.parseInt(backupKeep.trim()));
+			} catch (NumberFormatException e) {
+				log.error("Invalid number of backups: " + backupKeep);
+			}
+		}
+		String backupSchedule = SettingsManager.getStringValue(this.getIdentifier(), Settings.BACKUP_SCHEDULE.get());
+		if (backupSchedule != null && !backupSchedule.isEmpty()) {
+			try {
+				this.dbConnector.scheduleBackups(backupSchedule.trim());
+			} catch (RuntimeException e) {
+				log.error("Invalid backup schedule: " + backupSchedule, e);
+				this.dbConnector.scheduleBackups(DatabaseBackup.DEFAULT_SCHEDULE);
+			}
+		}
 		Server.getInstance().init();
 
 		log.info("Initialized");
@@ -397,99 +453,110 @@ public class GeneralController extends AbstractController {
         historyMessage.offset = message2.offset;
 
         try {
-            String operation = "value as value";
-            switch (message2.operation) {
-                case AVERAGE:
-                    operation = "avg(value_d) as value_d";
-                    break;
-                case DELTA:
-                    operation = "max(value_d)-min(value_d) as value_d";
-                    break;
-                case MAX:
-                    operation = "max(value_d) as value_d";
-                    break;
-                case MIN:
-                    operation = "min(value_d) as value_d";
-                    break;
-            }
-            String select = null;
-            ResultSet dataTable = null;
-            switch (message2.periodType) {
-                case REALTIME:
-                    // Select data from database (no operation possible)
-                    select = "SELECT time as datetime,strftime('%s', time) as time,value_d, unit " + "  FROM home_history" + " WHERE value_identifier='" + message2.controlIdentifiers.getValueIdentifier() + "' " + "   AND " + " node_identifier = '" + message2.controlIdentifiers.getNodeIdentifier() + "' " + "   AND " + " controller_identifier = '" + message2.controlIdentifiers.getControllerIdentifier().convert() + "' " + "GROUP BY datetime " + "ORDER BY datetime DESC LIMIT " + message2.offset + "," + message2.historyAmount;
-                    dataTable = this.dbConnector.executeSelect(select, true);
-                    break;
-                case DAILY:
-                    select = "SELECT strftime('%s',date(day)) as time,unit," + operation + " from ( SELECT time,strftime('%Y-%m-%d', time) as day,value_d, unit" + " 		FROM home_history" + " WHERE value_identifier='" + message2.controlIdentifiers.getValueIdentifier() + "' " + "   AND " + " node_identifier = '" + message2.controlIdentifiers.getNodeIdentifier() + "' " + "   AND " + "controller_identifier = '" + message2.controlIdentifiers.getControllerIdentifier().convert() + "' " + " 		GROUP BY time) as deltaPerDay" + " GROUP BY day" + " ORDER BY time DESC LIMIT " + message2.offset + "," + message2.historyAmount;
-
-                    if (message2.historyAmount > 31 && message2.offset == 0) {
-                        dataTable = this.dbConnector.executeSelectArchiving(select, true);
-                    } else {
-                        dataTable = this.dbConnector.executeSelect(select, true);
-                    }
-                    break;
-                case WEEKLY:
-                    select = "SELECT strftime('%s',date(time,'weekday 0','-6 days')) as time,unit," + operation + " from ( SELECT time,strftime('%Y-%W', time) as week,value_d, unit" + " 		FROM home_history" + " WHERE value_identifier='" + message2.controlIdentifiers.getValueIdentifier() + "' " + "   AND " + " node_identifier = '" + message2.controlIdentifiers.getNodeIdentifier() + "' " + "   AND " + "controller_identifier = '" + message2.controlIdentifiers.getControllerIdentifier().convert() + "' " + " 		GROUP BY time) as deltaPerWeek" + " GROUP BY week" + " ORDER BY time DESC LIMIT " + message2.offset + "," + message2.historyAmount;
-
-                    if (message2.historyAmount > 4 && message2.offset == 0) {
-                        dataTable = this.dbConnector.executeSelectArchiving(select, true);
-                    } else {
-                        dataTable = this.dbConnector.executeSelect(select, true);
-                    }
-					/*
-					 * SELECT strftime('%s',date(time,'weekday 0','-6 days')) as
-					 * time,max(value)-min(value) as value from ( SELECT time,
-					 * strftime('%Y-%W', time) as week, value FROM home_history
-					 * WHERE nodeid='39' AND valueid = '659324930' AND homeId =
-					 * '3239454784' AND instance = '1' GROUP BY time) as
-					 * deltaPerWeek group by week
-					 */
-                    break;
-                case MONTHLY:
-					/*
-					 * SELECT strftime('%s',date(month)) as
-					 * time,max(value)-min(value) as value from ( SELECT
-					 * strftime('%Y-%m-01', time) as month,value FROM
-					 * home_history WHERE nodeid='39' AND valueid = '659324930'
-					 * AND homeId = '3239454784' AND instance = '1' GROUP BY
-					 * time) as deltaPerMonth group by month
-					 */
-                    select = "SELECT strftime('%s',date(month)) as time,unit," + operation + " from ( SELECT time,strftime('%Y-%m-01', time) as month,value_d,unit" + " 		FROM home_history" + " WHERE value_identifier='" + message2.controlIdentifiers.getValueIdentifier() + "' " + "   AND " + " node_identifier = '" + message2.controlIdentifiers.getNodeIdentifier() + "' " + "   AND " + "controller_identifier = '" + message2.controlIdentifiers.getControllerIdentifier().convert() + "' " + " 		GROUP BY time) as deltaPerMonth" + " GROUP BY month" + " ORDER BY time DESC LIMIT " + message2.offset + "," + message2.historyAmount;
-                    dataTable = this.dbConnector.executeSelectArchiving(select, true);
-
-                    break;
-            }
-            if (dataTable != null) {
-                while (dataTable.next()) {
-                    historyMessage.sensorValues.time.add(dataTable.getInt("time"));
-                    if (historyMessage.sensorValues.valueUnit == null || historyMessage.sensorValues.valueUnit == "") {
-                        historyMessage.sensorValues.valueUnit = dataTable.getString("unit");
-                    }
-                    Double value = dataTable.getDouble("value_d");
-                    if (value != null) {
-                        historyMessage.sensorValues.value.add(value);
-                    }
-                }
-                dataTable.close();
+            HistoryOperation operation = HistoryOperation.fromName(message2.operation == null ? null : message2.operation.name());
+            RollupPeriod period = RollupPeriod.fromPeriodType(message2.periodType.name());
+            HistoryPoints points = this.getHistory(message2.controlIdentifiers, period, operation, message2.offset, message2.historyAmount);
+            for (int i = 0; i < points.size(); i++) {
+                historyMessage.sensorValues.time.add((int) points.getTime(i));
+                historyMessage.sensorValues.value.add(points.getValue(i));
             }
+            historyMessage.sensorValues.valueUnit = this.getHistoryUnit(message2.controlIdentifiers, period);
 
-            // Get name of value and use as graph title
-            IController sourceController = Server.getInstance().getControllers().get(message2.controlIdentifiers.getControllerIdentifier().convert());
-            String title = "";
-            if (sourceController != null) {
-                title = sourceController.getValueName(message2.controlIdentifiers);
-                if (title == null) {
-                    title = "";
-                }
-            }
-            historyMessage.title = title;
-        } catch (SQLException e) {
+            historyMessage.title = this.getHistoryTitle(message2.controlIdentifiers);
+        } catch (IOException e) {
             log.error("Exception occured: ", e);
         }
         return historyMessage;
     }
 
+    /*
+     * Raw values (period null) or aggregates of one value, newest first, as
+     * answered to a ValueHistoryRequest
+     */
+    public HistoryPoints getHistory(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, int offset, int amount) throws IOException {
+        // Realtime windows that fit in the recent values do not need the database
+        RecentValues recentValues = period == null ? this.dbConnector.getRecentHistory().get(controlIdentifiers) : null;
+        HistoryPoints recentPoints = recentValues == null ? null : recentValues.get(offset, amount);
+        if (recentPoints != null) {
+            return recentPoints;
+        }
+        if (period == null) {
+            return this.dbConnector.getHistoryStore().query(controlIdentifiers, period, operation, offset, amount);
+        }
+
+        String seriesKey = HistoryQueryCache.getSeriesKey(controlIdentifiers);
+        // Day and month consumption of meters is kept up to date in memory
+        MeterAggregates meters = this.dbConnector.getMeterAggregates();
+        if (operation == HistoryOperation.DELTA && meters != null) {
+            HistoryPoints deltas = meters.getDeltas(seriesKey, period, offset, amount);
+            if (deltas != null) {
+                return deltas;
+            }
+        }
+
+        // Aggregates of closed buckets do not change, see HistoryQueryCache
+        HistoryQueryCache cache = this.dbConnector.getHistoryQueryCache();
+        HistoryPoints points = cache.get(seriesKey, period, operation, offset, amount);
+        if (points == null) {
+            long version = cache.getVersion(seriesKey);
+            points = this.dbConnector.getHistoryStore().query(controlIdentifiers, period, operation, offset, amount);
+            cache.put(seriesKey, period, operation, offset, amount, points, version);
+        }
+        return points;
+    }
+
+    /*
+     * Same as getHistory, paging back from a time instead of an offset
+     */
+    public HistoryPoints getHistoryBefore(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, long before, int amount) throws IOException {
+        if (before > System.currentTimeMillis() / 1000L + 86400L) {
+            // Nothing is stored in the future, this is the first page
+            return this.getHistory(controlIdentifiers, period, operation, 0, amount);
+        }
+        RecentValues recentValues = period == null ? this.dbConnector.getRecentHistory().get(controlIdentifiers) : null;
+        HistoryPoints recentPoints = recentValues == null ? null : recentValues.getBefore(before, amount);
+        if (recentPoints != null) {
+            return recentPoints;
+        }
+        return this.dbConnector.getHistoryStore().queryBefore(controlIdentifiers, period, operation, before, amount);
+    }
+
+    /*
+     * Percentile (0 - 100) per day, week or month, newest first. Paged back
+     * from before when it is set, otherwise from offset.
+     */
+    public HistoryPoints getHistoryPercentile(ControlIdentifiers controlIdentifiers, RollupPeriod period, double percentile, Long before, int offset, int amount) throws IOException {
+        PercentileSketches sketches = this.dbConnector.getPercentileSketches();
+        if (sketches == null) {
+            return new HistoryPoints();
+        }
+        if (before != null && before > System.currentTimeMillis() / 1000L + 86400L) {
+            before = null;
+        }
+        return sketches.getPercentiles(controlIdentifiers, period, percentile, before, offset, amount);
+    }
+
+    public String getHistoryUnit(ControlIdentifiers controlIdentifiers, RollupPeriod period) {
+        RecentValues recentValues = period == null ? this.dbConnector.getRecentHistory().get(controlIdentifiers) : null;
+        if (recentValues != null && recentValues.getUnit() != null) {
+            return recentValues.getUnit();
+        }
+        return this.dbConnector.getHistoryStore().getUnit(controlIdentifiers);
+    }
+
+    public String getHistoryTitle(ControlIdentifiers controlIdentifiers) {
+        // Get name of value and use as graph title
+        IController sourceController = Server.getInstance().getControllers().get(controlIdentifiers.getControllerIdentifier().convert());
+        String title = "";
+        if (sourceController != null) {
+            title = sourceController.getValueName(controlIdentifiers);
+            if (title == null) {
+                title = "";
+            }
+        }
+        return title;
+    }
+
     private JSONMessage processActivationRequest(ActivationMessage message) {
         // Scenes
         if (message.controlIdentifiers.getNodeIdentifier().equals("Scenes")) {
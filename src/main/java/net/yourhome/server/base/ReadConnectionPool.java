@@ -0,0 +1,220 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base;
+
+import net.yourhome.server.base.history.StatementCache;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * A few read-only connections on one database file. With the database in
+ * WAL mode a reader sees the last committed state and does not wait for the
+ * writer connection, so history scans and configuration lookups run next to
+ * the ingestion.
+ *
+ * A connection is checked out with acquire() and given back with release(),
+ * nobody else reads on it in between. A result set that is still open keeps
+ * its connection on the snapshot it started on, so everything read on a
+ * connection has to be closed before it is released. Cursors that stay open
+ * for long, like exports, get a connection of their own with
+ * openConnection() instead of holding one of the pool.
+ */
+public class ReadConnectionPool {
+	private final long ACQUIRE_TIMEOUT = 30000;
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	public interface ConnectionFactory {
+		Connection open() throws SQLException;
+	}
+
+	private final ConnectionFactory factory;
+	private final List<Reader> readers = new ArrayList<Reader>();
+	private final BlockingQueue<Reader> idle;
+
+	public ReadConnectionPool(ConnectionFactory factory, int size) throws SQLException {
+		this.factory = factory;
+		this.idle = new ArrayBlockingQueue<Reader>(size);
+		try {
+			for (int i = 0; i < size; i++) {
+				Reader reader = new Reader(factory.open());
+				this.readers.add(reader);
+				this.idle.add(reader);
+			}
+		} catch (SQLException e) {
+			this.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Waits up to ACQUIRE_TIMEOUT for a free connection
+	 */
+	public Reader acquire() throws SQLException {
+		try {
+			Reader reader = this.idle.poll(this.ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (reader == null) {
+				throw new SQLException("No read connection became free in " + this.ACQUIRE_TIMEOUT + " ms");
+			}
+			return reader;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a read connection", e);
+		}
+	}
+
+	public void release(Reader reader) {
+		if (reader != null) {
+			this.idle.offer(reader);
+		}
+	}
+
+	/*
+	 * A new read connection outside of the pool, the caller closes it
+	 */
+	public Connection openConnection() throws SQLException {
+		return this.factory.open();
+	}
+
+	/*
+	 * The connection stays checked out until the caller closes the statement
+	 * (or the result set), which gives it back to the pool.
+	 */
+	public ResultSet executeQuery(String sql) throws SQLException {
+		Reader reader = this.acquire();
+		Statement stmt = null;
+		try {
+			stmt = reader.connection.createStatement();
+			ResultSet result = stmt.executeQuery(sql);
+			return new Lent(this, reader, stmt, result).result;
+		} catch (SQLException e) {
+			if (stmt != null) {
+				stmt.close();
+			}
+			this.release(reader);
+			throw e;
+		}
+	}
+
+	public int size() {
+		return this.readers.size();
+	}
+
+	public void close() {
+		for (Reader reader : this.readers) {
+			reader.statements.clear();
+			try {
+				reader.connection.close();
+			} catch (SQLException e) {
+				ReadConnectionPool.log.error("Exception occured: ", e);
+			}
+		}
+		this.idle.clear();
+	}
+
+	public static class Reader {
+		private final Connection connection;
+		private final StatementCache statements;
+
+		private Reader(Connection connection) {
+			this.connection = connection;
+			this.statements = new StatementCache(connection);
+		}
+
+		public Connection getConnection() {
+			return this.connection;
+		}
+
+		public StatementCache getStatements() {
+			return this.statements;
+		}
+	}
+
+	/*
+	 * The sqlite driver has no way to tell that a statement was closed, so
+	 * the statement and the result set of executeQuery are wrapped to
+	 * release the connection when either of them is closed.
+	 */
+	private static class Lent implements InvocationHandler {
+		private final ReadConnectionPool pool;
+		private final Reader reader;
+		private final Statement statement;
+		private final ResultSet delegate;
+		private final Statement statementProxy;
+		private final ResultSet result;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Lent(ReadConnectionPool pool, Reader reader, Statement statement, ResultSet delegate) {
+			this.pool = pool;
+			this.reader = reader;
+			this.statement = statement;
+			this.delegate = delegate;
+			this.statementProxy = (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] { Statement.class }, this);
+			this.result = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				this.close();
+				return null;
+			} else if (proxy == this.result && name.equals("getStatement")) {
+				return this.statementProxy;
+			}
+			try {
+				return method.invoke(proxy == this.result ? this.delegate : this.statement, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		private void close() throws SQLException {
+			if (this.released.compareAndSet(false, true)) {
+				try {
+					this.statement.close();
+				} finally {
+					this.pool.release(this.reader);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import com.google.common.io.Files;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Moves archive values older than a number of months out of SQLite into one
+ * ColdSegment file per series per month. The rows are deleted in the same
+ * transaction that adds the segment to History_Cold_Segments, so the archive
+ * file stops growing: the freed pages are reused for new values and the
+ * archive does not need a VACUUM.
+ *
+ * A segment that receives late values is written again under a new name and
+ * the old file is removed after the commit, so an interrupted run never
+ * leaves values both in a segment and in the table.
+ *
+ * Aggregate queries keep using History_Rollups, which hold the same summary
+ * as the segment footers. Compaction therefore waits for the rollup backfill.
+ */
+public class ColdHistory {
+	public static final String CREATE_COLD_SCHEMA = "CREATE TABLE IF NOT EXISTS History_Cold_Segments (series_id INTEGER NOT NULL, month INTEGER NOT NULL, file VARCHAR NOT NULL, count INTEGER NOT NULL, first_time INTEGER NOT NULL, last_time INTEGER NOT NULL, min REAL, max REAL, sum REAL, PRIMARY KEY (series_id, month))";
+	public static final int DEFAULT_AGE_MONTHS = 3;
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final File directory;
+	private final Connection connection;
+	private final SeriesDictionary series;
+	private final HistoryRollups rollups;
+	private final PendingHistory pending;
+	// Segments per series id, by month
+	private final Map<Integer, ConcurrentSkipListMap<Long, Entry>> segments = new ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Entry>>();
+	private volatile int ageMonths = ColdHistory.DEFAULT_AGE_MONTHS;
+
+	public ColdHistory(File directory, Connection connection, SeriesDictionary series, HistoryRollups rollups, PendingHistory pending) throws SQLException {
+		this.directory = directory;
+		this.connection = connection;
+		this.series = series;
+		this.rollups = rollups;
+		this.pending = pending;
+
+		synchronized (this.connection) {
+			Statement stmt = this.connection.createStatement();
+			try {
+				stmt.executeUpdate(ColdHistory.CREATE_COLD_SCHEMA);
+				ResultSet result = stmt.executeQuery("SELECT series_id, month, file, first_time, last_time FROM History_Cold_Segments");
+				while (result.next()) {
+					this.put(result.getInt("series_id"), result.getLong("month"), new Entry(new File(this.directory, result.getString("file")), result.getLong("first_time"), result.getLong("last_time")));
+				}
+				result.close();
+			} finally {
+				stmt.close();
+			}
+		}
+	}
+
+	public int getAgeMonths() {
+		return this.ageMonths;
+	}
+
+	public void setAgeMonths(int ageMonths) {
+		this.ageMonths = Math.max(1, ageMonths);
+	}
+
+	/*
+	 * Values of the series in segments with from <= time < to, oldest first
+	 */
+	public HistoryPoints scan(int seriesId, long from, long to) throws IOException {
+		HistoryPoints points = new HistoryPoints(1);
+		ConcurrentSkipListMap<Long, Entry> months = this.segments.get(seriesId);
+		if (months == null) {
+			return points;
+		}
+		for (Entry entry : months.headMap(to, false).tailMap(RollupPeriod.MONTH.getBucket(from), true).values()) {
+			if (entry.lastTime >= from && entry.firstTime < to) {
+				points = HistoryPoints.merge(points, ColdSegment.open(entry.file).read().between(from, to));
+			}
+		}
+		return points;
+	}
+
+	/*
+	 * Like scan, but only one segment is read into memory at a time
+	 */
+	public HistoryCursor cursor(int seriesId, long from, long to) {
+		ConcurrentSkipListMap<Long, Entry> months = this.segments.get(seriesId);
+		List<Entry> entries = new ArrayList<Entry>();
+		if (months != null) {
+			for (Entry entry : months.headMap(to, false).tailMap(RollupPeriod.MONTH.getBucket(from), true).values()) {
+				if (entry.lastTime >= from && entry.firstTime < to) {
+					entries.add(entry);
+				}
+			}
+		}
+		return new SegmentCursor(entries, from, to);
+	}
+
+	/*
+	 * Compacts every month that ended more than ageMonths ago
+	 */
+	public synchronized void compact() {
+		try {
+			if (!this.rollups.isBackfilled() || HistoryMigration.isRequired(this.connection)) {
+				ColdHistory.log.info("History compaction postponed until the archive migration and rollup backfill are done");
+				return;
+			}
+			Calendar calendar = Calendar.getInstance();
+			calendar.add(Calendar.MONTH, -this.ageMonths);
+			long cutoff = RollupPeriod.MONTH.getBucket(calendar.getTimeInMillis() / 1000L);
+			int months = 0;
+			long rows = 0;
+			for (HistorySeries historySeries : this.series.getAll()) {
+				Long oldest;
+				while ((oldest = this.getOldest(historySeries.getId())) != null && oldest < cutoff) {
+					long month = RollupPeriod.MONTH.getBucket(oldest);
+					rows += this.compact(historySeries.getId(), month, RollupPeriod.MONTH.getNextBucket(month));
+					months++;
+				}
+			}
+			if (months > 0) {
+				ColdHistory.log.info("Moved " + rows + " history values of " + months + " series months to segment files");
+			}
+		} catch (SQLException e) {
+			ColdHistory.log.error("History compaction failed, it will be retried on the next run", e);
+		} catch (IOException e) {
+			ColdHistory.log.error("History compaction failed, it will be retried on the next run", e);
+		}
+	}
+
+	private Long getOldest(int seriesId) throws SQLException {
+		synchronized (this.connection) {
+			PreparedStatement select = this.connection.prepareStatement("SELECT min(time) FROM History_Values WHERE series_id = ?");
+			try {
+				select.setInt(1, seriesId);
+				ResultSet result = select.executeQuery();
+				result.next();
+				long oldest = result.getLong(1);
+				return result.wasNull() ? null : oldest;
+			} finally {
+				select.close();
+			}
+		}
+	}
+
+	private int compact(int seriesId, long month, long end) throws SQLException, IOException {
+		// Nothing may be added to the month between reading and deleting its rows
+		synchronized (this.connection) {
+			HistoryPoints points = new HistoryPoints(1024);
+			PreparedStatement select = this.connection.prepareStatement("SELECT time, value_d FROM History_Values WHERE series_id = ? AND time >= ? AND time < ? ORDER BY time");
+			try {
+				select.setInt(1, seriesId);
+				select.setLong(2, month);
+				select.setLong(3, end);
+				ResultSet result = select.executeQuery();
+				while (result.next()) {
+					points.add(result.getLong(1), result.getDouble(2));
+				}
+				result.close();
+			} finally {
+				select.close();
+			}
+			int rows = points.size();
+
+			Entry previous = this.get(seriesId, month);
+			if (previous != null) {
+				points = HistoryPoints.merge(ColdSegment.open(previous.file).read(), points);
+			}
+			String name = seriesId + File.separator + this.getMonthName(month) + "-" + System.currentTimeMillis() + ".seg";
+			File file = new File(this.directory, name);
+			if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+				throw new IOException("Could not create " + file.getParentFile());
+			}
+			ColdSegment.write(file, points);
+			ColdSegment segment = ColdSegment.open(file);
+			if (segment.getCount() != points.size()) {
+				throw new IOException(file + " holds " + segment.getCount() + " values instead of " + points.size());
+			}
+
+			PreparedStatement replace = null;
+			PreparedStatement delete = null;
+			try {
+				this.connection.setAutoCommit(false);
+				replace = this.connection.prepareStatement("INSERT OR REPLACE INTO History_Cold_Segments (series_id, month, file, count, first_time, last_time, min, max, sum) VALUES (?,?,?,?,?,?,?,?,?)");
+				replace.setInt(1, seriesId);
+				replace.setLong(2, month);
+				replace.setString(3, name);
+				replace.setInt(4, segment.getCount());
+				replace.setLong(5, segment.getFirstTime());
+				replace.setLong(6, segment.getLastTime());
+				replace.setDouble(7, segment.getMin());
+				replace.setDouble(8, segment.getMax());
+				replace.setDouble(9, segment.getSum());
+				replace.executeUpdate();
+				delete = this.connection.prepareStatement("DELETE FROM History_Values WHERE series_id = ? AND time >= ? AND time < ?");
+				delete.setInt(1, seriesId);
+				delete.setLong(2, month);
+				delete.setLong(3, end);
+				delete.executeUpdate();
+
+				// Scans must not see the values in both places or in neither
+				this.pending.writeLock().lock();
+				try {
+					this.connection.commit();
+					this.put(seriesId, month, new Entry(file, segment.getFirstTime(), segment.getLastTime()));
+				} finally {
+					this.pending.writeLock().unlock();
+				}
+			} catch (SQLException e) {
+				this.connection.rollback();
+				if (!file.delete()) {
+					ColdHistory.log.warn("Could not remove " + file);
+				}
+				throw e;
+			} finally {
+				this.connection.setAutoCommit(true);
+				if (replace != null) {
+					replace.close();
+				}
+				if (delete != null) {
+					delete.close();
+				}
+			}
+			if (previous != null && !previous.file.delete()) {
+				ColdHistory.log.warn("Could not remove " + previous.file);
+			}
+			return rows;
+		}
+	}
+
+	private String getMonthName(long month) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMM");
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(month * 1000L));
+	}
+
+	private Entry get(int seriesId, long month) {
+		ConcurrentSkipListMap<Long, Entry> months = this.segments.get(seriesId);
+		return months == null ? null : months.get(month);
+	}
+
+	private void put(int seriesId, long month, Entry entry) {
+		ConcurrentSkipListMap<Long, Entry> months = this.segments.get(seriesId);
+		if (months == null) {
+			months = new ConcurrentSkipListMap<Long, Entry>();
+			this.segments.put(seriesId, months);
+		}
+		months.put(month, entry);
+	}
+
+	/*
+	 * Copies the segment files that History_Cold_Segments of the given copy
+	 * of the archive refers to. Compaction deletes the segments it replaces,
+	 * so the caller holds the monitor of this object from before the archive
+	 * was copied.
+	 */
+	public synchronized long backup(File archive, File destination) throws IOException, SQLException {
+		long bytes = 0;
+		Connection copy = DriverManager.getConnection("jdbc:sqlite:" + archive.getAbsolutePath());
+		try {
+			Statement stmt = copy.createStatement();
+			try {
+				ResultSet result = stmt.executeQuery("SELECT file FROM History_Cold_Segments");
+				while (result.next()) {
+					File source = new File(this.directory, result.getString("file"));
+					File target = new File(destination, result.getString("file"));
+					Files.createParentDirs(target);
+					Files.copy(source, target);
+					bytes += target.length();
+				}
+				result.close();
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			copy.close();
+		}
+		return bytes;
+	}
+
+	private static class SegmentCursor implements HistoryCursor {
+		private final Iterator<Entry> entries;
+		private final long from;
+		private final long to;
+		private HistoryPoints points = new HistoryPoints(1);
+		private int index = -1;
+
+		private SegmentCursor(List<Entry> entries, long from, long to) {
+			this.entries = entries.iterator();
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			while (++this.index >= this.points.size()) {
+				if (!this.entries.hasNext()) {
+					return false;
+				}
+				this.points = ColdSegment.open(this.entries.next().file).read().between(this.from, this.to);
+				this.index = -1;
+			}
+			return true;
+		}
+
+		@Override
+		public long getTime() {
+			return this.points.getTime(this.index);
+		}
+
+		@Override
+		public double getValue() {
+			return this.points.getValue(this.index);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class Entry {
+		private final File file;
+		private final long firstTime;
+		private final long lastTime;
+
+		private Entry(File file, long firstTime, long lastTime) {
+			this.file = file;
+			this.firstTime = firstTime;
+			this.lastTime = lastTime;
+		}
+	}
+}
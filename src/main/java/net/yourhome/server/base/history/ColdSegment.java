@@ -0,0 +1,270 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/*
+ * Immutable file with the values of one series in one month. The times and
+ * the values are stored as two separate deflated columns:
+ *
+ * times: zigzag varint of the difference with the previous time
+ * values: the bits of the value XOR the bits of the previous value
+ *
+ * followed by a footer of FOOTER_SIZE bytes with the column lengths and the
+ * count, first, last, min, max and sum of the month, so a summary can be
+ * read without inflating anything.
+ */
+public class ColdSegment {
+	private static final int MAGIC = 0x59484353;
+	private static final int FOOTER_SIZE = 84;
+
+	private final File file;
+	private final long timesLength;
+	private final long valuesLength;
+	private final int count;
+	private final long firstTime;
+	private final long lastTime;
+	private final double first;
+	private final double last;
+	private final double min;
+	private final double max;
+	private final double sum;
+	private final int checksum;
+
+	private ColdSegment(File file, ByteBuffer footer) throws IOException {
+		this.file = file;
+		this.timesLength = footer.getLong();
+		this.valuesLength = footer.getLong();
+		this.count = footer.getInt();
+		this.firstTime = footer.getLong();
+		this.lastTime = footer.getLong();
+		this.first = footer.getDouble();
+		this.last = footer.getDouble();
+		this.min = footer.getDouble();
+		this.max = footer.getDouble();
+		this.sum = footer.getDouble();
+		this.checksum = footer.getInt();
+		if (footer.getInt() != ColdSegment.MAGIC) {
+			throw new IOException(file + " is not a history segment");
+		}
+	}
+
+	/*
+	 * Reads the footer only
+	 */
+	public static ColdSegment open(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			if (input.length() < ColdSegment.FOOTER_SIZE) {
+				throw new IOException(file + " is not a history segment");
+			}
+			byte[] footer = new byte[ColdSegment.FOOTER_SIZE];
+			input.seek(input.length() - ColdSegment.FOOTER_SIZE);
+			input.readFully(footer);
+			return new ColdSegment(file, ByteBuffer.wrap(footer));
+		} finally {
+			input.close();
+		}
+	}
+
+	/*
+	 * Writes the points, sorted oldest first, to a temporary file that
+	 * replaces the file once it is synced
+	 */
+	public static ColdSegment write(File file, HistoryPoints points) throws IOException {
+		ByteArrayOutputStream times = new ByteArrayOutputStream();
+		ByteArrayOutputStream values = new ByteArrayOutputStream();
+		DataOutputStream timeColumn = new DataOutputStream(new DeflaterOutputStream(times, new Deflater(Deflater.BEST_COMPRESSION)));
+		DataOutputStream valueColumn = new DataOutputStream(new DeflaterOutputStream(values, new Deflater(Deflater.BEST_COMPRESSION)));
+		long previousTime = 0;
+		long previousBits = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+		for (int i = 0; i < points.size(); i++) {
+			long delta = points.getTime(i) - previousTime;
+			long zigzag = (delta << 1) ^ (delta >> 63);
+			while ((zigzag & ~0x7FL) != 0) {
+				timeColumn.writeByte((int) ((zigzag & 0x7F) | 0x80));
+				zigzag >>>= 7;
+			}
+			timeColumn.writeByte((int) zigzag);
+			previousTime = points.getTime(i);
+
+			long bits = Double.doubleToRawLongBits(points.getValue(i));
+			valueColumn.writeLong(bits ^ previousBits);
+			previousBits = bits;
+
+			min = Math.min(min, points.getValue(i));
+			max = Math.max(max, points.getValue(i));
+			sum += points.getValue(i);
+		}
+		timeColumn.close();
+		valueColumn.close();
+
+		CRC32 crc = new CRC32();
+		crc.update(times.toByteArray());
+		crc.update(values.toByteArray());
+		int last = points.size() - 1;
+		ByteBuffer footer = ByteBuffer.allocate(ColdSegment.FOOTER_SIZE);
+		footer.putLong(times.size());
+		footer.putLong(values.size());
+		footer.putInt(points.size());
+		footer.putLong(last < 0 ? 0 : points.getTime(0));
+		footer.putLong(last < 0 ? 0 : points.getTime(last));
+		footer.putDouble(last < 0 ? 0 : points.getValue(0));
+		footer.putDouble(last < 0 ? 0 : points.getValue(last));
+		footer.putDouble(min);
+		footer.putDouble(max);
+		footer.putDouble(sum);
+		footer.putInt((int) crc.getValue());
+		footer.putInt(ColdSegment.MAGIC);
+
+		File temporary = new File(file.getPath() + ".tmp");
+		FileOutputStream output = new FileOutputStream(temporary);
+		try {
+			times.writeTo(output);
+			values.writeTo(output);
+			output.write(footer.array());
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		if (file.exists() && !file.delete() || !temporary.renameTo(file)) {
+			throw new IOException("Could not replace " + file);
+		}
+		footer.flip();
+		return new ColdSegment(file, footer);
+	}
+
+	/*
+	 * All points, oldest first
+	 */
+	public HistoryPoints read() throws IOException {
+		byte[] columns = new byte[(int) (this.timesLength + this.valuesLength)];
+		RandomAccessFile input = new RandomAccessFile(this.file, "r");
+		try {
+			input.readFully(columns);
+		} finally {
+			input.close();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(columns);
+		if ((int) crc.getValue() != this.checksum) {
+			throw new IOException(this.file + " is corrupt");
+		}
+		ByteBuffer times = ByteBuffer.wrap(this.inflate(columns, 0, (int) this.timesLength, this.count * 10));
+		ByteBuffer values = ByteBuffer.wrap(this.inflate(columns, (int) this.timesLength, (int) this.valuesLength, this.count * 8));
+
+		HistoryPoints points = new HistoryPoints(this.count);
+		long time = 0;
+		long bits = 0;
+		for (int i = 0; i < this.count; i++) {
+			long zigzag = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = times.get();
+				zigzag |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			time += (zigzag >>> 1) ^ -(zigzag & 1);
+			bits ^= values.getLong();
+			points.add(time, Double.longBitsToDouble(bits));
+		}
+		return points;
+	}
+
+	private byte[] inflate(byte[] input, int offset, int length, int maxSize) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(input, offset, length);
+			byte[] output = new byte[Math.max(maxSize, 1)];
+			int size = 0;
+			while (!inflater.finished() && size < output.length) {
+				int inflated = inflater.inflate(output, size, output.length - size);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				size += inflated;
+			}
+			return output;
+		} catch (DataFormatException e) {
+			throw new IOException(this.file + " is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+
+	public int getCount() {
+		return this.count;
+	}
+
+	public long getFirstTime() {
+		return this.firstTime;
+	}
+
+	public long getLastTime() {
+		return this.lastTime;
+	}
+
+	public double getFirst() {
+		return this.first;
+	}
+
+	public double getLast() {
+		return this.last;
+	}
+
+	public double getMin() {
+		return this.min;
+	}
+
+	public double getMax() {
+		return this.max;
+	}
+
+	public double getSum() {
+		return this.sum;
+	}
+}
@@ -0,0 +1,92 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+/*
+ * Ingestion compression of one series, see SeriesCompressor. A value of 0
+ * disables that part.
+ */
+public class CompressionSettings {
+	private final double deadband;
+	private final double deadbandPercent;
+	private final double deviation;
+	private final int heartbeat;
+
+	/**
+	 * @param deadband
+	 *            changes up to this absolute amount are not stored
+	 * @param deadbandPercent
+	 *            changes up to this percentage of the last value are not
+	 *            stored
+	 * @param deviation
+	 *            swinging door compression deviation, the maximum error of
+	 *            the line between two stored values
+	 * @param heartbeat
+	 *            a value is stored at least every heartbeat seconds
+	 */
+	public CompressionSettings(double deadband, double deadbandPercent, double deviation, int heartbeat) {
+		this.deadband = Math.max(0, deadband);
+		this.deadbandPercent = Math.max(0, deadbandPercent);
+		this.deviation = Math.max(0, deviation);
+		this.heartbeat = Math.max(0, heartbeat);
+	}
+
+	public boolean isEnabled() {
+		return this.deadband > 0 || this.deadbandPercent > 0 || this.deviation > 0;
+	}
+
+	/*
+	 * Allowed change around the reference value before a value passes
+	 */
+	public double getDeadband(double reference) {
+		return Math.max(this.deadband, Math.abs(reference) * this.deadbandPercent / 100.0);
+	}
+
+	public double getDeviation() {
+		return this.deviation;
+	}
+
+	public int getHeartbeat() {
+		return this.heartbeat;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CompressionSettings)) {
+			return false;
+		}
+		CompressionSettings other = (CompressionSettings) obj;
+		return this.deadband == other.deadband && this.deadbandPercent == other.deadbandPercent && this.deviation == other.deviation && this.heartbeat == other.heartbeat;
+	}
+
+	@Override
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(this.deadband) * 31 + Double.doubleToLongBits(this.deadbandPercent);
+		bits = bits * 31 + Double.doubleToLongBits(this.deviation);
+		return (int) (bits ^ (bits >>> 32)) * 31 + this.heartbeat;
+	}
+}
@@ -0,0 +1,144 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Answers the history of several values in one request. The series are
+ * queried in parallel by as many threads as there are read connections,
+ * every query checks out a connection of its own. The aggregates are
+ * aligned on the union of their buckets so a dashboard can draw all graphs
+ * on one time axis.
+ */
+public class HistoryBatch {
+
+	/*
+	 * Work done for a single value, usually what answers a single request
+	 */
+	public interface Source<T> {
+		T get(ControlIdentifiers controlIdentifiers) throws IOException;
+	}
+
+	private final ExecutorService executor;
+
+	public HistoryBatch(int threads) {
+		final AtomicInteger number = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "History batch " + number.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * Result of every series, in the order of the series list
+	 */
+	public <T> List<T> query(List<ControlIdentifiers> series, final Source<T> source) throws IOException {
+		List<Future<T>> futures = new ArrayList<Future<T>>(series.size());
+		for (final ControlIdentifiers controlIdentifiers : series) {
+			futures.add(this.executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws IOException {
+					return source.get(controlIdentifiers);
+				}
+			}));
+		}
+		List<T> results = new ArrayList<T>(series.size());
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("History batch was interrupted", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	/*
+	 * Union of the times of all points, newest first and at most amount
+	 */
+	public static long[] align(List<HistoryPoints> points, int amount) {
+		TreeSet<Long> times = new TreeSet<Long>();
+		for (HistoryPoints seriesPoints : points) {
+			for (int i = 0; i < seriesPoints.size(); i++) {
+				times.add(seriesPoints.getTime(i));
+			}
+		}
+		long[] aligned = new long[Math.min(Math.max(amount, 0), times.size())];
+		int index = 0;
+		for (Long time : times.descendingSet()) {
+			if (index == aligned.length) {
+				break;
+			}
+			aligned[index++] = time;
+		}
+		return aligned;
+	}
+
+	/*
+	 * Values of one series on the aligned times (newest first), NaN for the
+	 * buckets the series has no value in
+	 */
+	public static double[] align(HistoryPoints points, long[] times) {
+		double[] values = new double[times.length];
+		int pointIndex = 0;
+		for (int i = 0; i < times.length; i++) {
+			while (pointIndex < points.size() && points.getTime(pointIndex) > times[i]) {
+				pointIndex++;
+			}
+			values[i] = pointIndex < points.size() && points.getTime(pointIndex) == times[i] ? points.getValue(pointIndex) : Double.NaN;
+		}
+		return values;
+	}
+
+	public void close() {
+		this.executor.shutdownNow();
+	}
+}
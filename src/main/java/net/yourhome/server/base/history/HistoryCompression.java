@@ -0,0 +1,83 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * SeriesCompressor of every series that has compression enabled.
+ */
+public class HistoryCompression {
+	private final ConcurrentHashMap<String, SeriesCompressor> compressors = new ConcurrentHashMap<String, SeriesCompressor>();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong stored = new AtomicLong();
+
+	/*
+	 * Adds the events that have to be stored to store. Without (enabled)
+	 * settings that is the event itself.
+	 */
+	public void offer(HistoryEvent event, CompressionSettings settings, List<HistoryEvent> store) {
+		int before = store.size();
+		String key = event.getSeriesKey();
+		SeriesCompressor compressor = this.compressors.get(key);
+		if (settings == null || !settings.isEnabled()) {
+			if (compressor != null && this.compressors.remove(key, compressor)) {
+				compressor.flush(store);
+			}
+			store.add(event);
+		} else {
+			if (compressor == null) {
+				this.compressors.putIfAbsent(key, new SeriesCompressor(settings));
+				compressor = this.compressors.get(key);
+			} else if (!settings.equals(compressor.getSettings())) {
+				compressor.setSettings(settings, store);
+			}
+			compressor.offer(event, store);
+		}
+		this.received.incrementAndGet();
+		this.stored.addAndGet(store.size() - before);
+	}
+
+	/*
+	 * Stores everything that is held back, on shutdown
+	 */
+	public void flush(List<HistoryEvent> store) {
+		for (SeriesCompressor compressor : this.compressors.values()) {
+			compressor.flush(store);
+		}
+	}
+
+	public long getReceivedEvents() {
+		return this.received.get();
+	}
+
+	public long getStoredEvents() {
+		return this.stored.get();
+	}
+}
@@ -0,0 +1,338 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * The HistoryCursor implementations that the engines are built from
+ */
+public class HistoryCursors {
+
+	private HistoryCursors() {
+	}
+
+	public static HistoryCursor of(HistoryPoints points) {
+		return new PointsCursor(points);
+	}
+
+	/*
+	 * Reads the time and the value from the first two columns. The
+	 * statement is closed together with the cursor.
+	 */
+	public static HistoryCursor of(Statement statement, ResultSet result) {
+		return new ResultSetCursor(statement, result);
+	}
+
+	/*
+	 * Closes the connection the cursor reads on when it is read to the end
+	 * or closed
+	 */
+	public static HistoryCursor closing(HistoryCursor cursor, Connection connection) {
+		return new ConnectionCursor(cursor, connection);
+	}
+
+	/*
+	 * Merges two cursors that are both sorted oldest first
+	 */
+	public static HistoryCursor merge(HistoryCursor first, HistoryCursor second) {
+		return new MergeCursor(first, second);
+	}
+
+	/*
+	 * Concatenates cursors that cover consecutive time ranges
+	 */
+	public static HistoryCursor concat(HistoryCursor first, HistoryCursor second) {
+		return new ConcatCursor(first, second);
+	}
+
+	/*
+	 * One point per bucket of the period, aggregated on the fly. Only the
+	 * open bucket is kept in memory.
+	 */
+	public static HistoryCursor aggregate(HistoryCursor values, RollupPeriod period, HistoryOperation operation) {
+		return new AggregateCursor(values, period, operation);
+	}
+
+	private static class PointsCursor implements HistoryCursor {
+		private final HistoryPoints points;
+		private int index = -1;
+
+		private PointsCursor(HistoryPoints points) {
+			this.points = points;
+		}
+
+		@Override
+		public boolean next() {
+			return ++this.index < this.points.size();
+		}
+
+		@Override
+		public long getTime() {
+			return this.points.getTime(this.index);
+		}
+
+		@Override
+		public double getValue() {
+			return this.points.getValue(this.index);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class ResultSetCursor implements HistoryCursor {
+		private final Statement statement;
+		private final ResultSet result;
+		private long time;
+		private double value;
+
+		private ResultSetCursor(Statement statement, ResultSet result) {
+			this.statement = statement;
+			this.result = result;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			try {
+				if (!this.result.next()) {
+					this.close();
+					return false;
+				}
+				this.time = this.result.getLong(1);
+				this.value = this.result.getDouble(2);
+				return true;
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public long getTime() {
+			return this.time;
+		}
+
+		@Override
+		public double getValue() {
+			return this.value;
+		}
+
+		@Override
+		public void close() {
+			try {
+				// Releases the read snapshot of the connection
+				this.statement.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	private static class ConnectionCursor implements HistoryCursor {
+		private final HistoryCursor cursor;
+		private final Connection connection;
+
+		private ConnectionCursor(HistoryCursor cursor, Connection connection) {
+			this.cursor = cursor;
+			this.connection = connection;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (!this.cursor.next()) {
+				this.close();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public long getTime() {
+			return this.cursor.getTime();
+		}
+
+		@Override
+		public double getValue() {
+			return this.cursor.getValue();
+		}
+
+		@Override
+		public void close() {
+			this.cursor.close();
+			try {
+				this.connection.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	private static class MergeCursor implements HistoryCursor {
+		private final HistoryCursor first;
+		private final HistoryCursor second;
+		private boolean firstValid;
+		private boolean secondValid;
+		private boolean started = false;
+		private HistoryCursor current;
+
+		private MergeCursor(HistoryCursor first, HistoryCursor second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (!this.started) {
+				this.firstValid = this.first.next();
+				this.secondValid = this.second.next();
+				this.started = true;
+			} else if (this.current == this.first) {
+				this.firstValid = this.first.next();
+			} else if (this.current == this.second) {
+				this.secondValid = this.second.next();
+			}
+			if (this.firstValid && (!this.secondValid || this.first.getTime() <= this.second.getTime())) {
+				this.current = this.first;
+			} else if (this.secondValid) {
+				this.current = this.second;
+			} else {
+				this.current = null;
+			}
+			return this.current != null;
+		}
+
+		@Override
+		public long getTime() {
+			return this.current.getTime();
+		}
+
+		@Override
+		public double getValue() {
+			return this.current.getValue();
+		}
+
+		@Override
+		public void close() {
+			this.first.close();
+			this.second.close();
+		}
+	}
+
+	private static class ConcatCursor implements HistoryCursor {
+		private final HistoryCursor first;
+		private final HistoryCursor second;
+		private HistoryCursor current;
+
+		private ConcatCursor(HistoryCursor first, HistoryCursor second) {
+			this.first = first;
+			this.second = second;
+			this.current = first;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (this.current == this.first) {
+				if (this.first.next()) {
+					return true;
+				}
+				this.current = this.second;
+			}
+			return this.second.next();
+		}
+
+		@Override
+		public long getTime() {
+			return this.current.getTime();
+		}
+
+		@Override
+		public double getValue() {
+			return this.current.getValue();
+		}
+
+		@Override
+		public void close() {
+			this.first.close();
+			this.second.close();
+		}
+	}
+
+	private static class AggregateCursor implements HistoryCursor {
+		private final HistoryCursor values;
+		private final RollupPeriod period;
+		private final HistoryOperation operation;
+		private boolean valid;
+		private boolean started = false;
+		private long time;
+		private double value;
+
+		private AggregateCursor(HistoryCursor values, RollupPeriod period, HistoryOperation operation) {
+			this.values = values;
+			this.period = period;
+			this.operation = operation;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (!this.started) {
+				this.valid = this.values.next();
+				this.started = true;
+			}
+			if (!this.valid) {
+				return false;
+			}
+			long bucketStart = this.period.getBucket(this.values.getTime());
+			long bucketEnd = this.period.getNextBucket(bucketStart);
+			RollupBucket bucket = new RollupBucket(0, this.period, bucketStart);
+			do {
+				bucket.add(this.values.getTime(), this.values.getValue());
+				this.valid = this.values.next();
+			} while (this.valid && this.values.getTime() >= bucketStart && this.values.getTime() < bucketEnd);
+			this.time = bucketStart;
+			this.value = this.operation.getValue(bucket);
+			return true;
+		}
+
+		@Override
+		public long getTime() {
+			return this.time;
+		}
+
+		@Override
+		public double getValue() {
+			return this.value;
+		}
+
+		@Override
+		public void close() {
+			this.values.close();
+		}
+	}
+}
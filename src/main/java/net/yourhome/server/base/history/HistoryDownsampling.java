@@ -0,0 +1,237 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.io.IOException;
+
+/*
+ * Largest-Triangle-Three-Buckets downsampling: reduces a series to about
+ * the number of points a graph can draw, keeping the peaks and dips that
+ * plain averaging or skipping would flatten. The first and the last point
+ * are always kept, every bucket in between contributes the point that
+ * forms the largest triangle with the point chosen before it and the
+ * average of the next bucket.
+ */
+public class HistoryDownsampling {
+	public static final int MIN_THRESHOLD = 3;
+
+	private HistoryDownsampling() {
+	}
+
+	/*
+	 * At most threshold points, in the order of the given points (oldest or
+	 * newest first). Buckets hold the same number of points.
+	 */
+	public static HistoryPoints lttb(HistoryPoints points, int threshold) {
+		threshold = Math.max(threshold, HistoryDownsampling.MIN_THRESHOLD);
+		int size = points.size();
+		if (size <= threshold) {
+			return points;
+		}
+		HistoryPoints sampled = new HistoryPoints(threshold);
+		double bucketSize = (double) (size - 2) / (threshold - 2);
+		int selected = 0;
+		sampled.add(points.getTime(0), points.getValue(0));
+		for (int bucket = 0; bucket < threshold - 2; bucket++) {
+			int start = (int) (bucket * bucketSize) + 1;
+			int end = (int) ((bucket + 1) * bucketSize) + 1;
+			// Average of the next bucket, the last point for the last bucket
+			int nextStart = end;
+			int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, size);
+			double averageTime = 0;
+			double averageValue = 0;
+			for (int i = nextStart; i < nextEnd; i++) {
+				averageTime += points.getTime(i);
+				averageValue += points.getValue(i);
+			}
+			averageTime /= nextEnd - nextStart;
+			averageValue /= nextEnd - nextStart;
+
+			double maxArea = -1;
+			int maxIndex = start;
+			for (int i = start; i < end; i++) {
+				double area = HistoryDownsampling.area(points.getTime(selected), points.getValue(selected), points.getTime(i), points.getValue(i), averageTime, averageValue);
+				if (area > maxArea) {
+					maxArea = area;
+					maxIndex = i;
+				}
+			}
+			sampled.add(points.getTime(maxIndex), points.getValue(maxIndex));
+			selected = maxIndex;
+		}
+		sampled.add(points.getTime(size - 1), points.getValue(size - 1));
+		return sampled;
+	}
+
+	/*
+	 * Streaming variant for a cursor over from <= time < to, oldest first.
+	 * The number of points is not known up front, so the range is split in
+	 * threshold - 2 buckets of equal duration instead. Only two buckets are
+	 * kept in memory.
+	 */
+	public static HistoryCursor lttb(HistoryCursor values, long from, long to, int threshold) {
+		return new DownsampleCursor(values, from, to, Math.max(threshold, HistoryDownsampling.MIN_THRESHOLD));
+	}
+
+	private static double area(double timeA, double valueA, double timeB, double valueB, double timeC, double valueC) {
+		return Math.abs((timeA - timeC) * (valueB - valueA) - (timeA - timeB) * (valueC - valueA));
+	}
+
+	private static class DownsampleCursor implements HistoryCursor {
+		private final HistoryCursor values;
+		private final long from;
+		private final double bucketDuration;
+		// Points that are selected but not returned yet
+		private final HistoryPoints output = new HistoryPoints(4);
+		private int outputIndex = 0;
+		private boolean started = false;
+		private boolean finished = false;
+		private long selectedTime;
+		private double selectedValue;
+		private HistoryPoints current = new HistoryPoints();
+		private long currentBucket;
+		private HistoryPoints next = new HistoryPoints();
+		private long nextBucket;
+
+		private DownsampleCursor(HistoryCursor values, long from, long to, int threshold) {
+			this.values = values;
+			this.from = from;
+			this.bucketDuration = Math.max(1.0, (double) (to - from) / (threshold - 2));
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			this.outputIndex++;
+			while (this.outputIndex >= this.output.size() && !this.finished) {
+				this.output.clear();
+				this.outputIndex = 0;
+				if (this.values.next()) {
+					this.add(this.values.getTime(), this.values.getValue());
+				} else {
+					this.finish();
+				}
+			}
+			return this.outputIndex < this.output.size();
+		}
+
+		private void add(long time, double value) {
+			if (!this.started) {
+				this.started = true;
+				this.select(time, value);
+				return;
+			}
+			long bucket = (long) ((time - this.from) / this.bucketDuration);
+			if (this.current.isEmpty()) {
+				this.current.add(time, value);
+				this.currentBucket = bucket;
+			} else if (this.next.isEmpty() && bucket <= this.currentBucket) {
+				this.current.add(time, value);
+			} else if (this.next.isEmpty()) {
+				this.next.add(time, value);
+				this.nextBucket = bucket;
+			} else if (bucket <= this.nextBucket) {
+				this.next.add(time, value);
+			} else {
+				// The next bucket is complete, so the current one can be decided
+				this.selectFrom(this.current, this.average(this.next));
+				HistoryPoints done = this.current;
+				done.clear();
+				this.current = this.next;
+				this.currentBucket = this.nextBucket;
+				this.next = done;
+				this.next.add(time, value);
+				this.nextBucket = bucket;
+			}
+		}
+
+		/*
+		 * The last point is always kept, the buckets before it are decided
+		 * against it
+		 */
+		private void finish() {
+			this.finished = true;
+			HistoryPoints last = this.next.isEmpty() ? this.current : this.next;
+			if (last.isEmpty()) {
+				return;
+			}
+			long lastTime = last.getTime(last.size() - 1);
+			double lastValue = last.getValue(last.size() - 1);
+			last.removeLast();
+			if (!this.current.isEmpty()) {
+				this.selectFrom(this.current, this.next.isEmpty() ? new double[] { lastTime, lastValue } : this.average(this.next));
+			}
+			if (!this.next.isEmpty()) {
+				this.selectFrom(this.next, new double[] { lastTime, lastValue });
+			}
+			this.select(lastTime, lastValue);
+		}
+
+		private double[] average(HistoryPoints points) {
+			double time = 0;
+			double value = 0;
+			for (int i = 0; i < points.size(); i++) {
+				time += points.getTime(i);
+				value += points.getValue(i);
+			}
+			return new double[] { time / points.size(), value / points.size() };
+		}
+
+		private void selectFrom(HistoryPoints bucket, double[] average) {
+			double maxArea = -1;
+			int maxIndex = 0;
+			for (int i = 0; i < bucket.size(); i++) {
+				double area = HistoryDownsampling.area(this.selectedTime, this.selectedValue, bucket.getTime(i), bucket.getValue(i), average[0], average[1]);
+				if (area > maxArea) {
+					maxArea = area;
+					maxIndex = i;
+				}
+			}
+			this.select(bucket.getTime(maxIndex), bucket.getValue(maxIndex));
+		}
+
+		private void select(long time, double value) {
+			this.selectedTime = time;
+			this.selectedValue = value;
+			this.output.add(time, value);
+		}
+
+		@Override
+		public long getTime() {
+			return this.output.getTime(this.outputIndex);
+		}
+
+		@Override
+		public double getValue() {
+			return this.output.getValue(this.outputIndex);
+		}
+
+		@Override
+		public void close() {
+			this.values.close();
+		}
+	}
+}
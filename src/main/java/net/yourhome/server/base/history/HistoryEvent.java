@@ -0,0 +1,82 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+
+/*
+ * Compact value change as queued by the producers (controller notification
+ * threads) and consumed by the HistoryWriter thread.
+ */
+public class HistoryEvent {
+	private final String controllerIdentifier;
+	private final String nodeIdentifier;
+	private final String valueIdentifier;
+	private final String unit;
+	private final double valueDouble;
+	private final long time;
+
+	public HistoryEvent(ControlIdentifiers controlIdentifiers, String unit, double valueDouble, long time) {
+		this.controllerIdentifier = controlIdentifiers.getControllerIdentifier().convert();
+		this.nodeIdentifier = controlIdentifiers.getNodeIdentifier();
+		this.valueIdentifier = controlIdentifiers.getValueIdentifier();
+		this.unit = unit;
+		this.valueDouble = valueDouble;
+		this.time = time;
+	}
+
+	public String getControllerIdentifier() {
+		return this.controllerIdentifier;
+	}
+
+	public String getNodeIdentifier() {
+		return this.nodeIdentifier;
+	}
+
+	public String getValueIdentifier() {
+		return this.valueIdentifier;
+	}
+
+	public String getSeriesKey() {
+		return HistorySeries.getKey(this.controllerIdentifier, this.nodeIdentifier, this.valueIdentifier);
+	}
+
+	public String getUnit() {
+		return this.unit;
+	}
+
+	public double getValueDouble() {
+		return this.valueDouble;
+	}
+
+	/**
+	 * @return the time of the value change in milliseconds since epoch
+	 */
+	public long getTime() {
+		return this.time;
+	}
+}
@@ -0,0 +1,250 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * Creates the dictionary encoded history schema and moves the rows of the
+ * legacy Home_History table (string identifiers and 'yyyy-MM-dd HH:mm:ss'
+ * timestamps) into it. The migration runs in the background in small
+ * transactions, newest rows first, so the server keeps logging and serving
+ * recent history while an archive of several GB is being converted. When
+ * all rows are moved the legacy table is dropped. The file is not vacuumed,
+ * that would hold the connection for minutes on a large archive, and the
+ * freed pages are reused by the new tables.
+ */
+public class HistoryMigration implements Runnable {
+	public static final String CREATE_SERIES_SCHEMA = "CREATE TABLE IF NOT EXISTS History_Series (series_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, controller_identifier VARCHAR NOT NULL, node_identifier VARCHAR, value_identifier VARCHAR, unit VARCHAR, UNIQUE (controller_identifier, node_identifier, value_identifier));";
+	public static final String CREATE_HISTORY_SCHEMA = HistoryMigration.CREATE_SERIES_SCHEMA + " CREATE TABLE IF NOT EXISTS History_Values (series_id INTEGER NOT NULL, time INTEGER NOT NULL, value_d REAL);";
+
+	public static final String SERIES_TIME_INDEX = "History_Values_Series_Time";
+
+	private final int CHUNK_SIZE = 20000;
+	private final long CHUNK_PAUSE = 200;
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final String name;
+	private final Connection connection;
+	private final SeriesDictionary seriesDictionary;
+	private final String valuesTable;
+
+	public HistoryMigration(String name, Connection connection, SeriesDictionary seriesDictionary) {
+		this(name, connection, seriesDictionary, "History_Values");
+	}
+
+	public HistoryMigration(String name, Connection connection, SeriesDictionary seriesDictionary, String valuesTable) {
+		this.name = name;
+		this.connection = connection;
+		this.seriesDictionary = seriesDictionary;
+		this.valuesTable = valuesTable;
+	}
+
+	public static void createSchema(Connection connection) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.executeUpdate(HistoryMigration.CREATE_HISTORY_SCHEMA);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/*
+	 * Only the series table, for databases that keep their values in
+	 * HistoryPartitions
+	 */
+	public static void createSeriesSchema(Connection connection) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.executeUpdate(HistoryMigration.CREATE_SERIES_SCHEMA);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/*
+	 * Adds the covering (series_id, time, value_d) index that every history
+	 * read depends on. Building it on an existing archive takes a while, but
+	 * only happens once.
+	 */
+	public static void createIndexes(Connection connection, String name) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet result = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = '" + HistoryMigration.SERIES_TIME_INDEX + "'");
+			boolean exists = result.next();
+			result.close();
+			if (!exists) {
+				HistoryMigration.log.info("Creating history index on the " + name + " database, this can take a few minutes");
+				stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + HistoryMigration.SERIES_TIME_INDEX + " ON History_Values (series_id, time, value_d)");
+				HistoryMigration.log.info("Creating history index on the " + name + " database - done");
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/*
+	 * Warns when SQLite would not use an index for a history range read
+	 */
+	public static boolean checkQueryPlan(Connection connection, String name) {
+		Statement stmt = null;
+		try {
+			stmt = connection.createStatement();
+			ResultSet result = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT time, value_d FROM History_Values WHERE series_id = 1 AND time > 0 ORDER BY time DESC LIMIT 10");
+			StringBuilder plan = new StringBuilder();
+			while (result.next()) {
+				plan.append(result.getString("detail")).append("; ");
+			}
+			result.close();
+			if (plan.indexOf("USING COVERING INDEX") < 0 && plan.indexOf("USING INDEX") < 0) {
+				HistoryMigration.log.warn("History reads on the " + name + " database do not use an index and will scan the whole table (plan: " + plan + ")");
+				return false;
+			}
+			return true;
+		} catch (SQLException e) {
+			HistoryMigration.log.error("Could not check the query plan of the " + name + " database", e);
+			return false;
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+				}
+			}
+		}
+	}
+
+	public static boolean isRequired(Connection connection) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet result = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'Home_History'");
+			return result.next();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	public void start() {
+		Thread thread = new Thread(this, "HistoryMigration-" + this.name);
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			long[] idRange = this.getIdRange();
+			HistoryMigration.log.info("Migrating " + this.name + " history to the series schema (ids " + idRange[0] + " - " + idRange[1] + ")");
+			long migrated = 0;
+			for (long upper = idRange[1]; upper >= idRange[0]; upper -= this.CHUNK_SIZE) {
+				migrated += this.migrateChunk(Math.max(idRange[0], upper - this.CHUNK_SIZE + 1), upper);
+				this.seriesDictionary.reload();
+				Thread.sleep(this.CHUNK_PAUSE);
+			}
+			this.finish();
+			HistoryMigration.log.info("Migration of " + this.name + " history done, " + migrated + " rows converted");
+		} catch (SQLException e) {
+			HistoryMigration.log.error("Migration of " + this.name + " history failed, it will be resumed on the next start", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private long[] getIdRange() throws SQLException {
+		Statement stmt = this.connection.createStatement();
+		try {
+			ResultSet result = stmt.executeQuery("SELECT ifnull(min(id), 0) as min_id, ifnull(max(id), -1) as max_id FROM Home_History");
+			result.next();
+			return new long[] { result.getLong("min_id"), result.getLong("max_id") };
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private int migrateChunk(long fromId, long toId) throws SQLException {
+		synchronized (this.connection) {
+			PreparedStatement series = null;
+			PreparedStatement values = null;
+			PreparedStatement delete = null;
+			try {
+				this.connection.setAutoCommit(false);
+				// NULL identifiers are never equal in a UNIQUE constraint, so check with IS
+				series = this.connection.prepareStatement("INSERT INTO History_Series (controller_identifier, node_identifier, value_identifier, unit)" + " SELECT h.controller_identifier, h.node_identifier, h.value_identifier, max(h.unit) FROM Home_History h" + " WHERE h.id BETWEEN ? AND ? AND h.controller_identifier IS NOT NULL" + " AND NOT EXISTS (SELECT 1 FROM History_Series s WHERE s.controller_identifier = h.controller_identifier" + " AND s.node_identifier IS h.node_identifier AND s.value_identifier IS h.value_identifier)" + " GROUP BY h.controller_identifier, h.node_identifier, h.value_identifier");
+				series.setLong(1, fromId);
+				series.setLong(2, toId);
+				series.executeUpdate();
+
+				values = this.connection.prepareStatement("INSERT INTO " + this.valuesTable + " (series_id, time, value_d)" + " SELECT s.series_id, cast(strftime('%s', h.time) as integer), cast(h.value_d as real)" + " FROM Home_History h JOIN History_Series s ON s.controller_identifier = h.controller_identifier" + " AND s.node_identifier IS h.node_identifier AND s.value_identifier IS h.value_identifier" + " WHERE h.id BETWEEN ? AND ? AND h.time IS NOT NULL");
+				values.setLong(1, fromId);
+				values.setLong(2, toId);
+				int migrated = values.executeUpdate();
+
+				delete = this.connection.prepareStatement("DELETE FROM Home_History WHERE id BETWEEN ? AND ?");
+				delete.setLong(1, fromId);
+				delete.setLong(2, toId);
+				delete.executeUpdate();
+
+				this.connection.commit();
+				return migrated;
+			} catch (SQLException e) {
+				this.connection.rollback();
+				throw e;
+			} finally {
+				this.connection.setAutoCommit(true);
+				if (series != null) {
+					series.close();
+				}
+				if (values != null) {
+					values.close();
+				}
+				if (delete != null) {
+					delete.close();
+				}
+			}
+		}
+	}
+
+	private void finish() throws SQLException {
+		synchronized (this.connection) {
+			Statement stmt = this.connection.createStatement();
+			try {
+				stmt.execute("DROP TABLE Home_History");
+			} finally {
+				stmt.close();
+			}
+		}
+		this.seriesDictionary.reload();
+	}
+}
@@ -0,0 +1,85 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+/*
+ * Server side counterpart of the operation of a ValueHistoryRequest
+ */
+public enum HistoryOperation {
+	VALUE("last", "value_d"), AVERAGE("sum / count", "avg(value_d)"), DELTA("max - min", "max(value_d) - min(value_d)"), MAX("max", "max(value_d)"), MIN("min", "min(value_d)");
+
+	private final String rollupExpression;
+	private final String rawExpression;
+
+	private HistoryOperation(String rollupExpression, String rawExpression) {
+		this.rollupExpression = rollupExpression;
+		this.rawExpression = rawExpression;
+	}
+
+	public static HistoryOperation fromName(String name) {
+		if (name != null) {
+			for (HistoryOperation operation : HistoryOperation.values()) {
+				if (operation.name().equalsIgnoreCase(name)) {
+					return operation;
+				}
+			}
+		}
+		return VALUE;
+	}
+
+	/*
+	 * Expression on the columns of History_Rollups
+	 */
+	public String getRollupExpression() {
+		return this.rollupExpression;
+	}
+
+	/*
+	 * Aggregate expression on the rows of History_Values
+	 */
+	public String getRawExpression() {
+		return this.rawExpression;
+	}
+
+	/*
+	 * Same as getRollupExpression, on a bucket in memory
+	 */
+	public double getValue(RollupBucket bucket) {
+		switch (this) {
+		case AVERAGE:
+			return bucket.getAverage();
+		case DELTA:
+			return bucket.getMax() - bucket.getMin();
+		case MAX:
+			return bucket.getMax();
+		case MIN:
+			return bucket.getMin();
+		default:
+			return bucket.getLast();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * The weekly database keeps its raw values in one table per week
+ * (History_Values_yyyyMMdd, starting on monday) instead of one big table.
+ * History_Values is a view over all partitions, so readers do not need to
+ * know about them. Retention drops the tables of expired weeks, which takes
+ * the same time no matter how many rows they hold and does not need a
+ * DELETE or VACUUM that locks the database for minutes.
+ */
+public class HistoryPartitions {
+	public static final String VIEW_NAME = "History_Values";
+	public static final String LEGACY_PARTITION = "History_Values_Legacy";
+	public static final String CREATE_CATALOG = "CREATE TABLE IF NOT EXISTS History_Partitions (name VARCHAR PRIMARY KEY NOT NULL, start_time INTEGER NOT NULL, end_time INTEGER NOT NULL)";
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final Connection connection;
+	// Partitions by start time
+	private final ConcurrentSkipListMap<Long, Partition> partitions = new ConcurrentSkipListMap<Long, Partition>();
+
+	public HistoryPartitions(Connection connection) throws SQLException {
+		this.connection = connection;
+		synchronized (connection) {
+			Statement stmt = connection.createStatement();
+			try {
+				stmt.executeUpdate(HistoryPartitions.CREATE_CATALOG);
+				this.convertValuesTable(stmt);
+				ResultSet result = stmt.executeQuery("SELECT name, start_time, end_time FROM History_Partitions");
+				while (result.next()) {
+					Partition partition = new Partition(result.getString("name"), result.getLong("start_time"), result.getLong("end_time"));
+					this.partitions.put(partition.start, partition);
+				}
+				result.close();
+			} finally {
+				stmt.close();
+			}
+		}
+		this.getTable(System.currentTimeMillis() / 1000L);
+		this.createView();
+	}
+
+	/*
+	 * Turns the History_Values table of an older weekly database into the
+	 * legacy partition. It is dropped once its newest row is older than the
+	 * retention, like any other partition. A database that still has to be
+	 * migrated gets an empty legacy partition to receive the converted rows.
+	 */
+	private void convertValuesTable(Statement stmt) throws SQLException {
+		ResultSet result = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = '" + HistoryPartitions.VIEW_NAME + "'");
+		boolean valuesTable = result.next();
+		result.close();
+		boolean migrating = HistoryMigration.isRequired(this.connection);
+		long now = System.currentTimeMillis() / 1000L;
+
+		if (valuesTable) {
+			result = stmt.executeQuery("SELECT count(*) FROM (SELECT 1 FROM " + HistoryPartitions.VIEW_NAME + " LIMIT 1)");
+			result.next();
+			boolean empty = result.getInt(1) == 0;
+			result.close();
+			if (empty && !migrating) {
+				stmt.executeUpdate("DROP TABLE " + HistoryPartitions.VIEW_NAME);
+				return;
+			}
+			HistoryPartitions.log.info("Converting weekly history table to the legacy partition");
+			stmt.executeUpdate("ALTER TABLE " + HistoryPartitions.VIEW_NAME + " RENAME TO " + HistoryPartitions.LEGACY_PARTITION);
+			stmt.executeUpdate("INSERT OR IGNORE INTO History_Partitions (name, start_time, end_time) VALUES ('" + HistoryPartitions.LEGACY_PARTITION + "', 0, " + now + ")");
+		} else if (migrating) {
+			this.createTable(stmt, HistoryPartitions.LEGACY_PARTITION);
+			stmt.executeUpdate("INSERT OR IGNORE INTO History_Partitions (name, start_time, end_time) VALUES ('" + HistoryPartitions.LEGACY_PARTITION + "', 0, " + now + ")");
+		}
+	}
+
+	private void createTable(Statement stmt, String name) throws SQLException {
+		stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + name + " (series_id INTEGER NOT NULL, time INTEGER NOT NULL, value_d REAL)");
+		stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + name + "_Series_Time ON " + name + " (series_id, time, value_d)");
+	}
+
+	/*
+	 * Name of the partition that stores the given epoch second. The partition
+	 * is created when it does not exist yet.
+	 */
+	public String getTable(long time) {
+		long start = RollupPeriod.WEEK.getBucket(time);
+		Partition partition = this.partitions.get(start);
+		if (partition != null) {
+			return partition.name;
+		}
+		synchronized (this.connection) {
+			partition = this.partitions.get(start);
+			if (partition == null) {
+				partition = new Partition(HistoryPartitions.getName(start), start, RollupPeriod.WEEK.getNextBucket(start));
+				try {
+					this.connection.setAutoCommit(false);
+					Statement stmt = this.connection.createStatement();
+					try {
+						this.createTable(stmt, partition.name);
+						stmt.executeUpdate("INSERT OR REPLACE INTO History_Partitions (name, start_time, end_time) VALUES ('" + partition.name + "', " + partition.start + ", " + partition.end + ")");
+					} finally {
+						stmt.close();
+					}
+					this.partitions.put(start, partition);
+					this.createView();
+					this.connection.commit();
+					HistoryPartitions.log.debug("Created history partition " + partition.name);
+				} catch (SQLException e) {
+					this.partitions.remove(start);
+					HistoryPartitions.log.error("Could not create history partition " + partition.name, e);
+					this.rollback();
+				} finally {
+					this.setAutoCommit();
+				}
+			}
+		}
+		return partition.name;
+	}
+
+	/*
+	 * Drops every partition that only holds values older than the given epoch
+	 * second and is copied to the archive by the tiering, if given. Readers
+	 * keep working on the other partitions in the meantime.
+	 */
+	public int dropBefore(long time, HistoryTiering tiering) {
+		int dropped = 0;
+		List<Partition> expired = new ArrayList<Partition>();
+		for (Partition partition : this.partitions.values()) {
+			if (partition.end <= time && (tiering == null || tiering.isTiered(partition.name))) {
+				expired.add(partition);
+			}
+		}
+		for (Partition partition : expired) {
+			if (this.drop(partition)) {
+				dropped++;
+			}
+		}
+		return dropped;
+	}
+
+	private boolean drop(Partition partition) {
+		synchronized (this.connection) {
+			try {
+				if (partition.name.equals(HistoryPartitions.LEGACY_PARTITION) && HistoryMigration.isRequired(this.connection)) {
+					return false;
+				}
+				this.connection.setAutoCommit(false);
+				this.partitions.remove(partition.start);
+				this.createView();
+				PreparedStatement delete = this.connection.prepareStatement("DELETE FROM History_Partitions WHERE name = ?");
+				delete.setString(1, partition.name);
+				delete.executeUpdate();
+				delete.close();
+				Statement stmt = this.connection.createStatement();
+				stmt.executeUpdate("DROP TABLE IF EXISTS " + partition.name);
+				stmt.close();
+				this.connection.commit();
+				HistoryPartitions.log.info("Dropped history partition " + partition.name);
+				return true;
+			} catch (SQLException e) {
+				// Usually a reader still has a cursor open on the table, try again next time
+				HistoryPartitions.log.warn("Could not drop history partition " + partition.name + " (" + e.getMessage() + ")");
+				this.partitions.put(partition.start, partition);
+				this.rollback();
+				return false;
+			} finally {
+				this.setAutoCommit();
+			}
+		}
+	}
+
+	private void createView() throws SQLException {
+		StringBuilder select = new StringBuilder();
+		for (Partition partition : this.partitions.values()) {
+			if (select.length() > 0) {
+				select.append(" UNION ALL ");
+			}
+			select.append("SELECT series_id, time, value_d FROM ").append(partition.name);
+		}
+		synchronized (this.connection) {
+			Statement stmt = this.connection.createStatement();
+			try {
+				stmt.executeUpdate("DROP VIEW IF EXISTS " + HistoryPartitions.VIEW_NAME);
+				stmt.executeUpdate("CREATE VIEW " + HistoryPartitions.VIEW_NAME + " AS " + select);
+			} finally {
+				stmt.close();
+			}
+		}
+	}
+
+	private void rollback() {
+		try {
+			this.connection.rollback();
+		} catch (SQLException e) {
+			HistoryPartitions.log.error("Error on rollback", e);
+		}
+	}
+
+	private void setAutoCommit() {
+		try {
+			this.connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			HistoryPartitions.log.error("Exception occured: ", e);
+		}
+	}
+
+	/*
+	 * Partition names, oldest first
+	 */
+	public List<String> getTables() {
+		List<String> tables = new ArrayList<String>();
+		for (Partition partition : this.partitions.values()) {
+			tables.add(partition.name);
+		}
+		return tables;
+	}
+
+	public int size() {
+		return this.partitions.size();
+	}
+
+	private static String getName(long start) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return HistoryPartitions.VIEW_NAME + "_" + format.format(new Date(start * 1000L));
+	}
+
+	private static class Partition {
+		private final String name;
+		private final long start;
+		private final long end;
+
+		private Partition(String name, long start, long end) {
+			this.name = name;
+			this.start = start;
+			this.end = end;
+		}
+	}
+}
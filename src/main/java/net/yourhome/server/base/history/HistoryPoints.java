@@ -0,0 +1,151 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.util.Arrays;
+
+/*
+ * Growable list of (epoch second, value) points backed by primitive arrays.
+ */
+public class HistoryPoints {
+	private long[] times;
+	private double[] values;
+	private int size = 0;
+
+	public HistoryPoints() {
+		this(64);
+	}
+
+	public HistoryPoints(int capacity) {
+		this.times = new long[Math.max(1, capacity)];
+		this.values = new double[Math.max(1, capacity)];
+	}
+
+	public void add(long time, double value) {
+		if (this.size == this.times.length) {
+			int capacity = this.times.length * 2;
+			this.times = Arrays.copyOf(this.times, capacity);
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+		this.times[this.size] = time;
+		this.values[this.size] = value;
+		this.size++;
+	}
+
+	public long getTime(int index) {
+		return this.times[index];
+	}
+
+	public double getValue(int index) {
+		return this.values[index];
+	}
+
+	/*
+	 * Copy of at most amount points starting at offset
+	 */
+	public HistoryPoints slice(int offset, int amount) {
+		int from = Math.min(Math.max(offset, 0), this.size);
+		int to = Math.min(from + Math.max(amount, 0), this.size);
+		HistoryPoints slice = new HistoryPoints(to - from);
+		for (int i = from; i < to; i++) {
+			slice.add(this.times[i], this.values[i]);
+		}
+		return slice;
+	}
+
+	/*
+	 * Copy of the points with from <= time < to
+	 */
+	public HistoryPoints between(long from, long to) {
+		HistoryPoints between = new HistoryPoints(this.size);
+		for (int i = 0; i < this.size; i++) {
+			if (this.times[i] >= from && this.times[i] < to) {
+				between.add(this.times[i], this.values[i]);
+			}
+		}
+		return between;
+	}
+
+	/*
+	 * Sorts oldest first. Insertion sort, the points are expected to be
+	 * nearly sorted already.
+	 */
+	public void sort() {
+		for (int i = 1; i < this.size; i++) {
+			long time = this.times[i];
+			double value = this.values[i];
+			int j = i - 1;
+			while (j >= 0 && this.times[j] > time) {
+				this.times[j + 1] = this.times[j];
+				this.values[j + 1] = this.values[j];
+				j--;
+			}
+			this.times[j + 1] = time;
+			this.values[j + 1] = value;
+		}
+	}
+
+	/*
+	 * Merges two lists that are both sorted oldest first
+	 */
+	public static HistoryPoints merge(HistoryPoints first, HistoryPoints second) {
+		HistoryPoints merged = new HistoryPoints(first.size + second.size);
+		int f = 0;
+		int s = 0;
+		while (f < first.size || s < second.size) {
+			if (s == second.size || (f < first.size && first.times[f] <= second.times[s])) {
+				merged.add(first.times[f], first.values[f]);
+				f++;
+			} else {
+				merged.add(second.times[s], second.values[s]);
+				s++;
+			}
+		}
+		return merged;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public void removeLast() {
+		if (this.size > 0) {
+			this.size--;
+		}
+	}
+
+	/*
+	 * Empties the list, keeping its capacity
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+}
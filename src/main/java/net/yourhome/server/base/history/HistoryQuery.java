@@ -0,0 +1,334 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Builds and runs the history SELECTs. The SQL only depends on the period and
+ * the operation, the series and the window are bound as parameters, so every
+ * combination is parsed once and then reused from the StatementCache.
+ *
+ * HistoryPoints points = HistoryQuery.forSeries(series).period(RollupPeriod.DAY)
+ *     .operation(HistoryOperation.DELTA).fromRollups(true).limit(0, 31).execute(cache);
+ *
+ * Paging back with before() instead of an offset seeks on the time index,
+ * so every page costs the same no matter how far back it is. Raw values
+ * are returned once per second, so the oldest time of a page is a complete
+ * cursor for the next one.
+ */
+public class HistoryQuery {
+	private final HistorySeries series;
+	private RollupPeriod period = null;
+	private HistoryOperation operation = HistoryOperation.VALUE;
+	private boolean fromRollups = false;
+	private PendingHistory pending = null;
+	private HistoryTiering tiering = null;
+	private StatementCache weeklyStatements = null;
+	private int offset = 0;
+	private int amount = 100;
+	private Long before = null;
+
+	private HistoryQuery(HistorySeries series) {
+		this.series = series;
+	}
+
+	public static HistoryQuery forSeries(HistorySeries series) {
+		return new HistoryQuery(series);
+	}
+
+	/*
+	 * Bucket to aggregate on, null returns the raw values
+	 */
+	public HistoryQuery period(RollupPeriod period) {
+		this.period = period;
+		return this;
+	}
+
+	public HistoryQuery operation(HistoryOperation operation) {
+		this.operation = operation == null ? HistoryOperation.VALUE : operation;
+		return this;
+	}
+
+	public HistoryQuery fromRollups(boolean fromRollups) {
+		this.fromRollups = fromRollups;
+		return this;
+	}
+
+	/*
+	 * Values of the HistoryWriter that are not committed yet and have to be
+	 * merged with the result
+	 */
+	public HistoryQuery pending(PendingHistory pending) {
+		this.pending = pending;
+		return this;
+	}
+
+	/*
+	 * Archive queries also merge the values that are in the weekly database
+	 * but not copied to the archive yet. Requires pending() as well.
+	 */
+	public HistoryQuery untiered(HistoryTiering tiering, StatementCache weeklyStatements) {
+		this.tiering = tiering;
+		this.weeklyStatements = weeklyStatements;
+		return this;
+	}
+
+	public HistoryQuery limit(int offset, int amount) {
+		this.offset = offset;
+		this.amount = amount;
+		return this;
+	}
+
+	/*
+	 * Only values (or buckets) before the given epoch second. An unaligned
+	 * time includes the whole bucket it falls in.
+	 */
+	public HistoryQuery before(long before) {
+		this.before = before;
+		return this;
+	}
+
+	private long getBefore() {
+		return this.period == null ? this.before : this.period.getBucketsEnd(this.before);
+	}
+
+	public String getSql() {
+		String before = this.before == null ? "" : " AND time < ?";
+		if (this.period == null) {
+			// Limited while reading, see readValues
+			return "SELECT time, value_d FROM History_Values WHERE series_id = ?" + before + " ORDER BY time DESC";
+		} else if (this.fromRollups) {
+			return "SELECT bucket as time, " + this.operation.getRollupExpression() + " as value_d FROM History_Rollups" + " WHERE series_id = ? AND period = " + this.period.getCode() + (this.before == null ? "" : " AND bucket < ?") + " ORDER BY bucket DESC LIMIT ?, ?";
+		} else {
+			return "SELECT " + this.period.getBucketExpression("time") + " as bucket, " + this.operation.getRawExpression() + " as value_d FROM History_Values" + " WHERE series_id = ?" + before + " GROUP BY bucket ORDER BY bucket DESC LIMIT ?, ?";
+		}
+	}
+
+	/*
+	 * Newest point first, the same order as the history messages
+	 */
+	public HistoryPoints execute(StatementCache statements) throws SQLException {
+		if (this.pending == null) {
+			return this.select(statements, this.offset, this.amount);
+		}
+		this.pending.readLock().lock();
+		try {
+			HistoryPoints pendingPoints = this.pending.get(this.series);
+			if (this.tiering != null) {
+				pendingPoints = HistoryPoints.merge(this.tiering.getUntiered(this.series, this.weeklyStatements), pendingPoints);
+			}
+			if (this.before != null) {
+				pendingPoints = pendingPoints.between(Long.MIN_VALUE, this.getBefore());
+			}
+			if (pendingPoints.isEmpty()) {
+				return this.select(statements, this.offset, this.amount);
+			}
+			// Pending values can add points in front of the stored ones, so read the window from the start
+			HistoryPoints stored = this.select(statements, 0, this.offset + this.amount);
+			HistoryPoints merged = this.period == null ? this.mergeValues(stored, pendingPoints) : this.mergeBuckets(statements, stored, pendingPoints);
+			return merged.slice(this.offset, this.amount);
+		} finally {
+			this.pending.readLock().unlock();
+		}
+	}
+
+	private HistoryPoints select(StatementCache statements, int offset, int amount) throws SQLException {
+		String sql = this.getSql();
+		PreparedStatement stm = statements.borrow(sql);
+		HistoryPoints points = new HistoryPoints(Math.max(1, Math.min(amount, 1024)));
+		try {
+			int parameter = 1;
+			stm.setInt(parameter++, this.series.getId());
+			if (this.before != null) {
+				stm.setLong(parameter++, this.getBefore());
+			}
+			if (this.period != null) {
+				stm.setInt(parameter++, offset);
+				stm.setInt(parameter, amount);
+			}
+			ResultSet result = stm.executeQuery();
+			try {
+				if (this.period == null) {
+					this.readValues(result, offset, amount, points);
+				} else {
+					while (result.next()) {
+						points.add(result.getLong(1), result.getDouble(2));
+					}
+				}
+			} finally {
+				result.close();
+			}
+		} finally {
+			statements.release(sql, stm);
+		}
+		return points;
+	}
+
+	/*
+	 * One value per second, like a GROUP BY time. Offset and amount count
+	 * seconds. A GROUP BY on the partition view would read and sort all of
+	 * the partitions, the rows come in time order from the index anyway.
+	 */
+	private void readValues(ResultSet result, int offset, int amount, HistoryPoints points) throws SQLException {
+		int seconds = 0;
+		long last = 0;
+		while (points.size() < amount && result.next()) {
+			long time = result.getLong(1);
+			if (seconds > 0 && time == last) {
+				continue;
+			}
+			last = time;
+			seconds++;
+			if (seconds > offset) {
+				points.add(time, result.getDouble(2));
+			}
+		}
+	}
+
+	/*
+	 * Stored values are newest first, pending values oldest first. A pending
+	 * value replaces a stored one of the same second.
+	 */
+	private HistoryPoints mergeValues(HistoryPoints stored, HistoryPoints pendingPoints) {
+		HistoryPoints merged = new HistoryPoints(stored.size() + pendingPoints.size());
+		int s = 0;
+		int p = pendingPoints.size() - 1;
+		while (s < stored.size() || p >= 0) {
+			long time;
+			double value;
+			if (p >= 0 && (s == stored.size() || pendingPoints.getTime(p) >= stored.getTime(s))) {
+				time = pendingPoints.getTime(p);
+				value = pendingPoints.getValue(p);
+				p--;
+			} else {
+				time = stored.getTime(s);
+				value = stored.getValue(s);
+				s++;
+			}
+			if (merged.isEmpty() || merged.getTime(merged.size() - 1) != time) {
+				merged.add(time, value);
+			}
+		}
+		return merged;
+	}
+
+	/*
+	 * Recalculates the buckets that received pending values from their stored
+	 * aggregate plus the pending values.
+	 */
+	private HistoryPoints mergeBuckets(StatementCache statements, HistoryPoints stored, HistoryPoints pendingPoints) throws SQLException {
+		Map<Long, RollupBucket> pendingBuckets = new HashMap<Long, RollupBucket>();
+		long oldestBucket = Long.MAX_VALUE;
+		for (int i = 0; i < pendingPoints.size(); i++) {
+			long bucket = this.period.getBucket(pendingPoints.getTime(i));
+			RollupBucket rollupBucket = pendingBuckets.get(bucket);
+			if (rollupBucket == null) {
+				rollupBucket = new RollupBucket(this.series.getId(), this.period, bucket);
+				pendingBuckets.put(bucket, rollupBucket);
+			}
+			rollupBucket.add(pendingPoints.getTime(i), pendingPoints.getValue(i));
+			oldestBucket = Math.min(oldestBucket, bucket);
+		}
+		Map<Long, RollupBucket> storedBuckets = this.fromRollups ? this.selectRollups(statements, oldestBucket) : this.aggregateValues(statements, oldestBucket);
+
+		TreeMap<Long, Double> values = new TreeMap<Long, Double>(Collections.reverseOrder());
+		for (int i = 0; i < stored.size(); i++) {
+			values.put(stored.getTime(i), stored.getValue(i));
+		}
+		for (RollupBucket pendingBucket : pendingBuckets.values()) {
+			RollupBucket bucket = storedBuckets.get(pendingBucket.getBucket());
+			if (bucket == null) {
+				bucket = pendingBucket;
+			} else {
+				bucket.merge(pendingBucket);
+			}
+			values.put(bucket.getBucket(), this.operation.getValue(bucket));
+		}
+		HistoryPoints merged = new HistoryPoints(values.size());
+		for (Map.Entry<Long, Double> value : values.entrySet()) {
+			merged.add(value.getKey(), value.getValue());
+		}
+		return merged;
+	}
+
+	private Map<Long, RollupBucket> selectRollups(StatementCache statements, long fromBucket) throws SQLException {
+		String sql = "SELECT * FROM History_Rollups WHERE series_id = ? AND period = " + this.period.getCode() + " AND bucket >= ?";
+		Map<Long, RollupBucket> buckets = new HashMap<Long, RollupBucket>();
+		PreparedStatement stm = statements.borrow(sql);
+		try {
+			stm.setInt(1, this.series.getId());
+			stm.setLong(2, fromBucket);
+			ResultSet result = stm.executeQuery();
+			try {
+				while (result.next()) {
+					RollupBucket bucket = RollupBucket.read(result);
+					buckets.put(bucket.getBucket(), bucket);
+				}
+			} finally {
+				result.close();
+			}
+		} finally {
+			statements.release(sql, stm);
+		}
+		return buckets;
+	}
+
+	private Map<Long, RollupBucket> aggregateValues(StatementCache statements, long fromBucket) throws SQLException {
+		String sql = "SELECT time, value_d FROM History_Values WHERE series_id = ? AND time >= ? ORDER BY time";
+		Map<Long, RollupBucket> buckets = new HashMap<Long, RollupBucket>();
+		PreparedStatement stm = statements.borrow(sql);
+		try {
+			stm.setInt(1, this.series.getId());
+			stm.setLong(2, fromBucket);
+			ResultSet result = stm.executeQuery();
+			try {
+				while (result.next()) {
+					long time = result.getLong(1);
+					long bucket = this.period.getBucket(time);
+					RollupBucket rollupBucket = buckets.get(bucket);
+					if (rollupBucket == null) {
+						rollupBucket = new RollupBucket(this.series.getId(), this.period, bucket);
+						buckets.put(bucket, rollupBucket);
+					}
+					rollupBucket.add(time, result.getDouble(2));
+				}
+			} finally {
+				result.close();
+			}
+		} finally {
+			statements.release(sql, stm);
+		}
+		return buckets;
+	}
+}
@@ -0,0 +1,256 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Least recently used cache of aggregated history query results, so the
+ * same DAILY/WEEKLY graph opened on several tablets is computed once.
+ *
+ * A new value only changes the buckets it falls in. With offset 0 the
+ * newest bucket is part of the result, so those entries are dropped when a
+ * value arrives in the newest bucket. A value that opens a new bucket
+ * shifts the offsets of every entry of the series and period, and a late
+ * value (older than the newest bucket) drops the entries that contain or
+ * precede its bucket. Entries of closed buckets stay cached otherwise.
+ *
+ * The returned points are shared, callers must not change them.
+ */
+public class HistoryQueryCache {
+	public static final int DEFAULT_CAPACITY = 512;
+
+	private final LinkedHashMap<Key, Entry> entries;
+	private final Map<String, Map<Key, Entry>> entriesBySeries = new HashMap<String, Map<Key, Entry>>();
+	// Newest bucket of the stored values per series and period, when known
+	private final Map<String, Long> newestBuckets = new HashMap<String, Long>();
+	// Incremented on every value of a series, so a result that was computed
+	// while a value came in is not cached
+	private final Map<String, Long> versions = new HashMap<String, Long>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public HistoryQueryCache() {
+		this(HistoryQueryCache.DEFAULT_CAPACITY);
+	}
+
+	public HistoryQueryCache(final int capacity) {
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if (this.size() > capacity) {
+					HistoryQueryCache.this.unindex(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public static String getSeriesKey(ControlIdentifiers controlIdentifiers) {
+		return HistorySeries.getKey(controlIdentifiers.getControllerIdentifier().convert(), controlIdentifiers.getNodeIdentifier(), controlIdentifiers.getValueIdentifier());
+	}
+
+	/*
+	 * Version to pass to put, taken before the query runs
+	 */
+	public synchronized long getVersion(String seriesKey) {
+		Long version = this.versions.get(seriesKey);
+		return version == null ? 0 : version;
+	}
+
+	public synchronized HistoryPoints get(String seriesKey, RollupPeriod period, HistoryOperation operation, int offset, int amount) {
+		Entry entry = this.entries.get(new Key(seriesKey, period, operation, offset, amount));
+		if (entry == null) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		this.hits.incrementAndGet();
+		return entry.points;
+	}
+
+	public synchronized void put(String seriesKey, RollupPeriod period, HistoryOperation operation, int offset, int amount, HistoryPoints points, long version) {
+		if (version != this.getVersion(seriesKey)) {
+			return;
+		}
+		Key key = new Key(seriesKey, period, operation, offset, amount);
+		Entry entry = new Entry(points);
+		this.entries.put(key, entry);
+		Map<Key, Entry> seriesEntries = this.entriesBySeries.get(seriesKey);
+		if (seriesEntries == null) {
+			seriesEntries = new HashMap<Key, Entry>();
+			this.entriesBySeries.put(seriesKey, seriesEntries);
+		}
+		seriesEntries.put(key, entry);
+		if (offset == 0 && points.size() > 0) {
+			// Results are newest first
+			this.newestBuckets.put(key.getBucketsKey(), points.getTime(0));
+		}
+	}
+
+	/*
+	 * Drops the entries a new value changes, time in epoch seconds
+	 */
+	public synchronized void invalidate(String seriesKey, long time) {
+		this.versions.put(seriesKey, this.getVersion(seriesKey) + 1);
+		Map<Key, Entry> seriesEntries = this.entriesBySeries.get(seriesKey);
+		if (seriesEntries == null) {
+			return;
+		}
+		Map<RollupPeriod, Long> buckets = new HashMap<RollupPeriod, Long>();
+		Iterator<Map.Entry<Key, Entry>> iterator = seriesEntries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, Entry> cached = iterator.next();
+			Key key = cached.getKey();
+			Entry entry = cached.getValue();
+			Long bucket = buckets.get(key.period);
+			if (bucket == null) {
+				bucket = key.period.getBucket(time);
+				buckets.put(key.period, bucket);
+			}
+			Long newest = this.newestBuckets.get(key.getBucketsKey());
+			boolean changed;
+			if (newest == null || bucket > newest) {
+				// New bucket, every offset moves
+				changed = true;
+			} else if (bucket == newest.longValue()) {
+				changed = entry.newest >= bucket;
+			} else {
+				changed = entry.oldest <= bucket || entry.size < key.amount;
+			}
+			if (changed) {
+				this.entries.remove(key);
+				iterator.remove();
+			}
+		}
+		for (Map.Entry<RollupPeriod, Long> bucket : buckets.entrySet()) {
+			String bucketsKey = Key.getBucketsKey(seriesKey, bucket.getKey());
+			Long newest = this.newestBuckets.get(bucketsKey);
+			if (newest != null && bucket.getValue() > newest) {
+				this.newestBuckets.put(bucketsKey, bucket.getValue());
+			}
+		}
+		if (seriesEntries.isEmpty()) {
+			this.entriesBySeries.remove(seriesKey);
+		}
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+		this.entriesBySeries.clear();
+		this.newestBuckets.clear();
+		for (Map.Entry<String, Long> version : this.versions.entrySet()) {
+			version.setValue(version.getValue() + 1);
+		}
+	}
+
+	private void unindex(Key key) {
+		Map<Key, Entry> seriesEntries = this.entriesBySeries.get(key.seriesKey);
+		if (seriesEntries != null) {
+			seriesEntries.remove(key);
+			if (seriesEntries.isEmpty()) {
+				this.entriesBySeries.remove(key.seriesKey);
+			}
+		}
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	private static class Key {
+		private final String seriesKey;
+		private final RollupPeriod period;
+		private final HistoryOperation operation;
+		private final int offset;
+		private final int amount;
+
+		private Key(String seriesKey, RollupPeriod period, HistoryOperation operation, int offset, int amount) {
+			this.seriesKey = seriesKey;
+			this.period = period;
+			this.operation = operation;
+			this.offset = offset;
+			this.amount = amount;
+		}
+
+		private String getBucketsKey() {
+			return Key.getBucketsKey(this.seriesKey, this.period);
+		}
+
+		private static String getBucketsKey(String seriesKey, RollupPeriod period) {
+			return seriesKey + '\u0000' + period.getCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.seriesKey.equals(other.seriesKey) && this.period == other.period && this.operation == other.operation && this.offset == other.offset && this.amount == other.amount;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = this.seriesKey.hashCode();
+			hash = 31 * hash + this.period.hashCode();
+			hash = 31 * hash + this.operation.hashCode();
+			hash = 31 * hash + this.offset;
+			return 31 * hash + this.amount;
+		}
+	}
+
+	private static class Entry {
+		private final HistoryPoints points;
+		private final long newest;
+		private final long oldest;
+		private final int size;
+
+		private Entry(HistoryPoints points) {
+			this.points = points;
+			this.size = points.size();
+			this.newest = this.size == 0 ? Long.MIN_VALUE : points.getTime(0);
+			this.oldest = this.size == 0 ? Long.MIN_VALUE : points.getTime(this.size - 1);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Bounded lock-free ring buffer for many producers and a single consumer.
+ * Producers claim a slot with a CAS on the tail sequence and publish the
+ * element into it; the consumer empties the slot before advancing the head,
+ * so a claimed slot is always free. offer() never blocks: it returns false
+ * when the buffer is full.
+ */
+public class HistoryRingBuffer<T> {
+	private final AtomicReferenceArray<T> slots;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+
+	public HistoryRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new AtomicReferenceArray<T>(size);
+		this.mask = size - 1;
+	}
+
+	public boolean offer(T element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			long currentTail = this.tail.get();
+			if (currentTail - this.head >= this.slots.length()) {
+				return false;
+			}
+			if (this.tail.compareAndSet(currentTail, currentTail + 1)) {
+				this.slots.lazySet((int) currentTail & this.mask, element);
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Only to be called from the consumer thread. Returns null when the buffer
+	 * is empty or when the producer of the next slot has not published yet.
+	 */
+	public T poll() {
+		long currentHead = this.head;
+		int index = (int) currentHead & this.mask;
+		T element = this.slots.get(index);
+		if (element == null) {
+			return null;
+		}
+		this.slots.lazySet(index, null);
+		this.head = currentHead + 1;
+		return element;
+	}
+
+	public int size() {
+		return (int) Math.max(0, this.tail.get() - this.head);
+	}
+
+	public int capacity() {
+		return this.slots.length();
+	}
+}
@@ -0,0 +1,175 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Builds the rollups for rows that were stored before the rollups were
+ * maintained. Reads all those rows once, ordered by series and time, so that
+ * only one open bucket per period has to be kept in memory. Every series is
+ * merged in its own transaction together with the progress, so the job
+ * resumes where it stopped after a restart. The cursor stays on the archive
+ * connection itself: a reader on a second connection would hold a shared
+ * lock that keeps the writer from committing.
+ */
+public class HistoryRollupBackfill implements Runnable {
+	private final long MIGRATION_POLL_INTERVAL = 60000;
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final HistoryRollups rollups;
+	private final Connection connection;
+
+	public HistoryRollupBackfill(HistoryRollups rollups) {
+		this.rollups = rollups;
+		this.connection = rollups.getConnection();
+	}
+
+	@Override
+	public void run() {
+		try {
+			// Rows that are still in the legacy table would be missed
+			while (HistoryMigration.isRequired(this.connection)) {
+				Thread.sleep(this.MIGRATION_POLL_INTERVAL);
+			}
+			this.backfill();
+		} catch (SQLException e) {
+			HistoryRollupBackfill.log.error("Backfill of history rollups failed, it will be resumed on the next start", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void backfill() throws SQLException {
+		long untilTime;
+		int lastSeriesId;
+		Statement stmt = this.connection.createStatement();
+		try {
+			ResultSet state = stmt.executeQuery("SELECT until_time, last_series_id FROM History_Rollup_Backfill WHERE id = 1");
+			state.next();
+			untilTime = state.getLong("until_time");
+			lastSeriesId = state.getInt("last_series_id");
+		} finally {
+			stmt.close();
+		}
+
+		// Without the (series_id, time) index the ORDER BY sorts the whole table
+		synchronized (this.connection) {
+			HistoryMigration.createIndexes(this.connection, "archive");
+		}
+		PreparedStatement select = this.connection.prepareStatement("SELECT series_id, time, value_d FROM History_Values WHERE series_id > ? AND time < ? ORDER BY series_id, time");
+		select.setFetchSize(1000);
+		long rows = 0;
+		try {
+			select.setInt(1, lastSeriesId);
+			select.setLong(2, untilTime);
+			ResultSet result = select.executeQuery();
+			int currentSeriesId = -1;
+			RollupBucket[] openBuckets = new RollupBucket[RollupPeriod.values().length];
+			List<RollupBucket> closedBuckets = new ArrayList<RollupBucket>();
+			while (result.next()) {
+				int seriesId = result.getInt("series_id");
+				long time = result.getLong("time");
+				double value = result.getDouble("value_d");
+				if (seriesId != currentSeriesId) {
+					if (currentSeriesId >= 0) {
+						this.store(currentSeriesId, openBuckets, closedBuckets);
+					}
+					currentSeriesId = seriesId;
+				}
+				for (RollupPeriod period : RollupPeriod.values()) {
+					long bucket = period.getBucket(time);
+					RollupBucket open = openBuckets[period.ordinal()];
+					if (open == null || open.getBucket() != bucket) {
+						if (open != null) {
+							closedBuckets.add(open);
+						}
+						open = new RollupBucket(seriesId, period, bucket);
+						openBuckets[period.ordinal()] = open;
+					}
+					open.add(time, value);
+				}
+				rows++;
+			}
+			if (currentSeriesId >= 0) {
+				this.store(currentSeriesId, openBuckets, closedBuckets);
+			}
+			result.close();
+		} finally {
+			select.close();
+		}
+
+		synchronized (this.connection) {
+			Statement done = this.connection.createStatement();
+			try {
+				done.executeUpdate("UPDATE History_Rollup_Backfill SET done = 1 WHERE id = 1");
+			} finally {
+				done.close();
+			}
+		}
+		this.rollups.setBackfilled(true);
+		HistoryRollupBackfill.log.info("Backfill of history rollups done, " + rows + " rows aggregated");
+	}
+
+	private void store(int seriesId, RollupBucket[] openBuckets, List<RollupBucket> closedBuckets) throws SQLException {
+		for (int i = 0; i < openBuckets.length; i++) {
+			if (openBuckets[i] != null) {
+				closedBuckets.add(openBuckets[i]);
+				openBuckets[i] = null;
+			}
+		}
+		synchronized (this.connection) {
+			PreparedStatement progress = null;
+			try {
+				this.connection.setAutoCommit(false);
+				this.rollups.merge(closedBuckets);
+				progress = this.connection.prepareStatement("UPDATE History_Rollup_Backfill SET last_series_id = ? WHERE id = 1");
+				progress.setInt(1, seriesId);
+				progress.executeUpdate();
+				this.connection.commit();
+			} catch (SQLException e) {
+				this.connection.rollback();
+				throw e;
+			} finally {
+				this.connection.setAutoCommit(true);
+				if (progress != null) {
+					progress.close();
+				}
+			}
+		}
+		closedBuckets.clear();
+	}
+}
@@ -0,0 +1,155 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Keeps min/max/sum/count/first/last per series per hour, day, week and
+ * month in the History_Rollups table of the archive database. HistoryTiering
+ * adds every row it copies to the archive and merges the touched buckets in
+ * the same transaction as the rows themselves. Rows that were stored before
+ * the rollups existed are added by the HistoryRollupBackfill job.
+ */
+public class HistoryRollups {
+	public static final String CREATE_ROLLUP_SCHEMA = "CREATE TABLE IF NOT EXISTS History_Rollups (series_id INTEGER NOT NULL, period INTEGER NOT NULL, bucket INTEGER NOT NULL, min REAL, max REAL, sum REAL, count INTEGER, first REAL, first_time INTEGER, last REAL, last_time INTEGER, PRIMARY KEY (series_id, period, bucket));"
+			+ " CREATE TABLE IF NOT EXISTS History_Rollup_Backfill (id INTEGER PRIMARY KEY NOT NULL, until_time INTEGER NOT NULL, last_series_id INTEGER NOT NULL, done BOOLEAN NOT NULL);";
+	public static final String REPLACE_ROLLUP = "INSERT OR REPLACE INTO History_Rollups (series_id, period, bucket, min, max, sum, count, first, first_time, last, last_time) VALUES (?,?,?,?,?,?,?,?,?,?,?)";
+	public static final String SELECT_ROLLUP = "SELECT * FROM History_Rollups WHERE series_id = ? AND period = ? AND bucket = ?";
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final Connection connection;
+	private volatile boolean backfilled = false;
+
+	// Buckets touched by the current tiering batch, only used by HistoryTiering
+	private final Map<String, RollupBucket> pendingBuckets = new HashMap<String, RollupBucket>();
+
+	public HistoryRollups(Connection connection) throws SQLException {
+		this.connection = connection;
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.executeUpdate(HistoryRollups.CREATE_ROLLUP_SCHEMA);
+			// Everything stored before this moment needs to be backfilled
+			stmt.executeUpdate("INSERT OR IGNORE INTO History_Rollup_Backfill (id, until_time, last_series_id, done) VALUES (1, " + (System.currentTimeMillis() / 1000L) + ", 0, 0)");
+			ResultSet result = stmt.executeQuery("SELECT done FROM History_Rollup_Backfill WHERE id = 1");
+			this.backfilled = result.next() && result.getBoolean("done");
+		} finally {
+			stmt.close();
+		}
+	}
+
+	public Connection getConnection() {
+		return this.connection;
+	}
+
+	/*
+	 * True when the rollups cover all stored history
+	 */
+	public boolean isBackfilled() {
+		return this.backfilled;
+	}
+
+	void setBackfilled(boolean backfilled) {
+		this.backfilled = backfilled;
+	}
+
+	public void add(int seriesId, long time, double value) {
+		for (RollupPeriod period : RollupPeriod.values()) {
+			long bucket = period.getBucket(time);
+			String key = seriesId + "/" + period.getCode() + "/" + bucket;
+			RollupBucket rollupBucket = this.pendingBuckets.get(key);
+			if (rollupBucket == null) {
+				rollupBucket = new RollupBucket(seriesId, period, bucket);
+				this.pendingBuckets.put(key, rollupBucket);
+			}
+			rollupBucket.add(time, value);
+		}
+	}
+
+	/*
+	 * Merges the buckets of the current batch into the table. Must be called
+	 * from within the transaction that stores the rows of the batch.
+	 */
+	public void write() throws SQLException {
+		if (!this.pendingBuckets.isEmpty()) {
+			this.merge(this.pendingBuckets.values());
+			this.pendingBuckets.clear();
+		}
+	}
+
+	/*
+	 * Forgets the values added since the last write, after a rollback
+	 */
+	public void discard() {
+		this.pendingBuckets.clear();
+	}
+
+	public void merge(Collection<RollupBucket> buckets) throws SQLException {
+		PreparedStatement select = this.connection.prepareStatement(HistoryRollups.SELECT_ROLLUP);
+		PreparedStatement replace = this.connection.prepareStatement(HistoryRollups.REPLACE_ROLLUP);
+		try {
+			for (RollupBucket bucket : buckets) {
+				select.setInt(1, bucket.getSeriesId());
+				select.setInt(2, bucket.getPeriod().getCode());
+				select.setLong(3, bucket.getBucket());
+				ResultSet existing = select.executeQuery();
+				RollupBucket merged = bucket;
+				if (existing.next()) {
+					merged = RollupBucket.read(existing);
+					merged.merge(bucket);
+				}
+				existing.close();
+				merged.bind(replace);
+				replace.addBatch();
+			}
+			replace.executeBatch();
+		} finally {
+			select.close();
+			replace.close();
+		}
+	}
+
+	public void startBackfill() {
+		if (!this.backfilled) {
+			HistoryRollups.log.info("Starting backfill of history rollups");
+			Thread thread = new Thread(new HistoryRollupBackfill(this), "HistoryRollupBackfill");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+	}
+}
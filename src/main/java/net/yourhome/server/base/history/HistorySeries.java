@@ -0,0 +1,79 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+/*
+ * Entry of the History_Series dictionary: maps the controller/node/value
+ * identifier triple on an integer series_id.
+ */
+public class HistorySeries {
+	private final int id;
+	private final String controllerIdentifier;
+	private final String nodeIdentifier;
+	private final String valueIdentifier;
+	private volatile String unit;
+
+	public HistorySeries(int id, String controllerIdentifier, String nodeIdentifier, String valueIdentifier, String unit) {
+		this.id = id;
+		this.controllerIdentifier = controllerIdentifier;
+		this.nodeIdentifier = nodeIdentifier;
+		this.valueIdentifier = valueIdentifier;
+		this.unit = unit;
+	}
+
+	public static String getKey(String controllerIdentifier, String nodeIdentifier, String valueIdentifier) {
+		return controllerIdentifier + '\u0000' + nodeIdentifier + '\u0000' + valueIdentifier;
+	}
+
+	public String getKey() {
+		return HistorySeries.getKey(this.controllerIdentifier, this.nodeIdentifier, this.valueIdentifier);
+	}
+
+	public int getId() {
+		return this.id;
+	}
+
+	public String getControllerIdentifier() {
+		return this.controllerIdentifier;
+	}
+
+	public String getNodeIdentifier() {
+		return this.nodeIdentifier;
+	}
+
+	public String getValueIdentifier() {
+		return this.valueIdentifier;
+	}
+
+	public String getUnit() {
+		return this.unit;
+	}
+
+	public void setUnit(String unit) {
+		this.unit = unit;
+	}
+}
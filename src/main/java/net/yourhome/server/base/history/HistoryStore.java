@@ -0,0 +1,81 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+
+import java.io.IOException;
+
+/*
+ * Storage engine for the value history. Times are epoch seconds, like in
+ * HistoryPoints.
+ */
+public interface HistoryStore {
+
+	/*
+	 * Stores one value change. Returns false when the engine could not accept
+	 * it.
+	 */
+	boolean append(HistoryEvent event);
+
+	/*
+	 * Raw values with from <= time < to, oldest first
+	 */
+	HistoryPoints scan(ControlIdentifiers controlIdentifiers, long from, long to) throws IOException;
+
+	/*
+	 * Raw values (period null) or one aggregate per period, newest first,
+	 * skipping the newest offset points
+	 */
+	HistoryPoints query(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, int offset, int amount) throws IOException;
+
+	/*
+	 * Same as query, paging back from a time instead of an offset: the
+	 * newest amount values (or buckets) before the given epoch second. The
+	 * time of the oldest point is the before of the next page.
+	 */
+	HistoryPoints queryBefore(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, long before, int amount) throws IOException;
+
+	/*
+	 * Forward-only cursor over the raw values (period null) or the
+	 * aggregates of the buckets that start in from <= time < to, oldest
+	 * first. The caller has to close it.
+	 */
+	HistoryCursor cursor(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, long from, long to) throws IOException;
+
+	/*
+	 * Unit of the last stored value, null when nothing was stored
+	 */
+	String getUnit(ControlIdentifiers controlIdentifiers);
+
+	/*
+	 * Makes everything that was appended durable
+	 */
+	void flush();
+
+	void close();
+}
@@ -0,0 +1,347 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Value changes are only written to the weekly database. This job copies
+ * them to the archive afterwards: the weekly file is attached to the archive
+ * connection and every partition is copied with INSERT ... SELECT in
+ * transactions of CHUNK_SIZE rows, updating the rollups in the same
+ * transaction.
+ *
+ * Progress is the highest rowid copied per partition. It is stored in the
+ * archive, in the same transaction as the copied rows, so a job that stops
+ * halfway resumes without copying anything twice. The rowid is used instead
+ * of the time because compressed values can be stored late with an older
+ * time.
+ *
+ * The series ids of both databases differ, the rows are mapped through a
+ * temporary table that is filled from both series dictionaries.
+ */
+public class HistoryTiering {
+	public static final String CREATE_TIERING_SCHEMA = "CREATE TABLE IF NOT EXISTS History_Tiering (partition_name VARCHAR PRIMARY KEY NOT NULL, last_rowid INTEGER NOT NULL)";
+
+	private final int CHUNK_SIZE = 50000;
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final String weeklyPath;
+	private final Connection weeklyConnection;
+	private final HistoryPartitions weeklyPartitions;
+	private final SeriesDictionary weeklySeries;
+	private final Connection archiveConnection;
+	private final SeriesDictionary archiveSeries;
+	private final HistoryRollups rollups;
+	private final PendingHistory pending;
+	// Highest rowid per partition that is in the archive
+	private final Map<String, Long> tiered = new ConcurrentHashMap<String, Long>();
+
+	public HistoryTiering(String weeklyPath, Connection weeklyConnection, HistoryPartitions weeklyPartitions, SeriesDictionary weeklySeries, HistoryRollups rollups, SeriesDictionary archiveSeries, PendingHistory pending) throws SQLException {
+		this.weeklyPath = weeklyPath;
+		this.weeklyConnection = weeklyConnection;
+		this.weeklyPartitions = weeklyPartitions;
+		this.weeklySeries = weeklySeries;
+		this.rollups = rollups;
+		this.archiveConnection = rollups.getConnection();
+		this.archiveSeries = archiveSeries;
+		this.pending = pending;
+
+		synchronized (this.archiveConnection) {
+			Statement stmt = this.archiveConnection.createStatement();
+			try {
+				ResultSet result = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'History_Tiering'");
+				boolean exists = result.next();
+				result.close();
+				stmt.executeUpdate(HistoryTiering.CREATE_TIERING_SCHEMA);
+				if (!exists) {
+					// Until now every value was written to both databases
+					for (String table : this.getWeekTables()) {
+						this.setTiered(stmt, table, this.getMaxRowid(table));
+					}
+				}
+				result = stmt.executeQuery("SELECT partition_name, last_rowid FROM History_Tiering");
+				while (result.next()) {
+					this.tiered.put(result.getString("partition_name"), result.getLong("last_rowid"));
+				}
+				result.close();
+			} finally {
+				stmt.close();
+			}
+		}
+	}
+
+	/*
+	 * Copies everything that is committed in the weekly database and not in
+	 * the archive yet
+	 */
+	public synchronized void run() {
+		long started = System.currentTimeMillis();
+		long copied = 0;
+		try {
+			// Take the limits before mapping the series, so every row below them has a mapped series
+			Map<String, Long> limits = new HashMap<String, Long>();
+			for (String table : this.getWeekTables()) {
+				long max = this.getMaxRowid(table);
+				if (max > this.getTiered(table)) {
+					limits.put(table, max);
+				}
+			}
+			if (!limits.isEmpty()) {
+				synchronized (this.archiveConnection) {
+					this.attach();
+					try {
+						this.mapSeries();
+						for (Map.Entry<String, Long> limit : limits.entrySet()) {
+							for (long from = this.getTiered(limit.getKey()); from < limit.getValue(); from += this.CHUNK_SIZE) {
+								copied += this.copy(limit.getKey(), from, Math.min(from + this.CHUNK_SIZE, limit.getValue()));
+							}
+						}
+					} finally {
+						this.detach();
+					}
+				}
+			}
+			this.removeDropped();
+		} catch (SQLException e) {
+			HistoryTiering.log.error("Copying history to the archive failed, it will be retried on the next run", e);
+		}
+		if (copied > 0) {
+			HistoryTiering.log.debug("Copied " + copied + " history values to the archive in " + (System.currentTimeMillis() - started) + "ms");
+		}
+	}
+
+	private void attach() throws SQLException {
+		PreparedStatement attach = this.archiveConnection.prepareStatement("ATTACH DATABASE ? AS weekly");
+		try {
+			attach.setString(1, this.weeklyPath);
+			attach.execute();
+		} finally {
+			attach.close();
+		}
+	}
+
+	private void detach() {
+		try {
+			Statement stmt = this.archiveConnection.createStatement();
+			try {
+				stmt.execute("DETACH DATABASE weekly");
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			HistoryTiering.log.error("Exception occured: ", e);
+		}
+	}
+
+	private void mapSeries() throws SQLException {
+		Statement stmt = this.archiveConnection.createStatement();
+		PreparedStatement insert = null;
+		try {
+			stmt.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS Tier_Series (weekly_id INTEGER PRIMARY KEY NOT NULL, archive_id INTEGER NOT NULL)");
+			stmt.executeUpdate("DELETE FROM temp.Tier_Series");
+			insert = this.archiveConnection.prepareStatement("INSERT INTO temp.Tier_Series (weekly_id, archive_id) VALUES (?,?)");
+			for (HistorySeries series : this.weeklySeries.getAll()) {
+				HistorySeries archived = this.archiveSeries.getOrCreate(series.getControllerIdentifier(), series.getNodeIdentifier(), series.getValueIdentifier(), series.getUnit());
+				insert.setInt(1, series.getId());
+				insert.setInt(2, archived.getId());
+				insert.executeUpdate();
+			}
+		} finally {
+			stmt.close();
+			if (insert != null) {
+				insert.close();
+			}
+		}
+	}
+
+	private int copy(String table, long fromRowid, long toRowid) throws SQLException {
+		String from = " FROM weekly." + table + " v JOIN temp.Tier_Series t ON t.weekly_id = v.series_id WHERE v.rowid > ? AND v.rowid <= ?";
+		PreparedStatement select = null;
+		PreparedStatement insert = null;
+		Statement stmt = null;
+		try {
+			this.archiveConnection.setAutoCommit(false);
+			select = this.archiveConnection.prepareStatement("SELECT t.archive_id, v.time, v.value_d, v.rowid" + from);
+			select.setLong(1, fromRowid);
+			select.setLong(2, toRowid);
+			// The INSERT below reads in the same transaction, so it copies exactly these rows
+			long lastRowid = fromRowid;
+			ResultSet result = select.executeQuery();
+			while (result.next()) {
+				this.rollups.add(result.getInt(1), result.getLong(2), result.getDouble(3));
+				lastRowid = Math.max(lastRowid, result.getLong(4));
+			}
+			result.close();
+
+			insert = this.archiveConnection.prepareStatement("INSERT INTO main.History_Values (series_id, time, value_d) SELECT t.archive_id, v.time, v.value_d" + from);
+			insert.setLong(1, fromRowid);
+			insert.setLong(2, toRowid);
+			int copied = insert.executeUpdate();
+			this.rollups.write();
+			stmt = this.archiveConnection.createStatement();
+			// Only as far as what was copied, a row committed later can not end up below the mark
+			this.setTiered(stmt, table, lastRowid);
+
+			// Queries merge the rows that are not tiered yet, they must not see both
+			this.pending.writeLock().lock();
+			try {
+				this.archiveConnection.commit();
+				this.tiered.put(table, lastRowid);
+			} finally {
+				this.pending.writeLock().unlock();
+			}
+			return copied;
+		} catch (SQLException e) {
+			this.rollups.discard();
+			this.archiveConnection.rollback();
+			throw e;
+		} finally {
+			this.archiveConnection.setAutoCommit(true);
+			if (select != null) {
+				select.close();
+			}
+			if (insert != null) {
+				insert.close();
+			}
+			if (stmt != null) {
+				stmt.close();
+			}
+		}
+	}
+
+	private void setTiered(Statement stmt, String table, long rowid) throws SQLException {
+		stmt.executeUpdate("INSERT OR REPLACE INTO main.History_Tiering (partition_name, last_rowid) VALUES ('" + table + "', " + rowid + ")");
+	}
+
+	private void removeDropped() throws SQLException {
+		List<String> tables = this.weeklyPartitions.getTables();
+		for (String table : this.tiered.keySet()) {
+			if (!tables.contains(table)) {
+				synchronized (this.archiveConnection) {
+					PreparedStatement delete = this.archiveConnection.prepareStatement("DELETE FROM History_Tiering WHERE partition_name = ?");
+					try {
+						delete.setString(1, table);
+						delete.executeUpdate();
+					} finally {
+						delete.close();
+					}
+				}
+				this.tiered.remove(table);
+			}
+		}
+	}
+
+	private List<String> getWeekTables() {
+		List<String> tables = this.weeklyPartitions.getTables();
+		// The legacy partition holds rows that were written to both databases or are migrated separately
+		tables.remove(HistoryPartitions.LEGACY_PARTITION);
+		return tables;
+	}
+
+	private long getTiered(String table) {
+		Long rowid = this.tiered.get(table);
+		return rowid == null ? 0 : rowid;
+	}
+
+	/*
+	 * Highest committed rowid. The HistoryWriter keeps a batch uncommitted
+	 * while it holds the connection, so the lock keeps its rows out.
+	 */
+	private long getMaxRowid(String table) throws SQLException {
+		synchronized (this.weeklyConnection) {
+			Statement stmt = this.weeklyConnection.createStatement();
+			try {
+				ResultSet result = stmt.executeQuery("SELECT ifnull(max(rowid), 0) FROM " + table);
+				result.next();
+				return result.getLong(1);
+			} finally {
+				stmt.close();
+			}
+		}
+	}
+
+	/*
+	 * True when everything in the partition is in the archive, so it can be
+	 * dropped
+	 */
+	public boolean isTiered(String table) {
+		if (HistoryPartitions.LEGACY_PARTITION.equals(table)) {
+			return true;
+		}
+		try {
+			return this.getTiered(table) >= this.getMaxRowid(table);
+		} catch (SQLException e) {
+			HistoryTiering.log.error("Exception occured: ", e);
+			return false;
+		}
+	}
+
+	/*
+	 * Values of the series that are in the weekly database but not in the
+	 * archive yet, oldest first. The caller holds the read lock of the
+	 * PendingHistory.
+	 */
+	public HistoryPoints getUntiered(HistorySeries series, StatementCache weeklyStatements) throws SQLException {
+		HistoryPoints points = new HistoryPoints(16);
+		HistorySeries weekly = this.weeklySeries.get(series.getControllerIdentifier(), series.getNodeIdentifier(), series.getValueIdentifier());
+		if (weekly == null) {
+			return points;
+		}
+		for (String table : this.getWeekTables()) {
+			// Scan the rowid range, the untiered tail is small
+			String sql = "SELECT time, value_d FROM " + table + " WHERE rowid > ? AND +series_id = ? ORDER BY time";
+			PreparedStatement stm = weeklyStatements.borrow(sql);
+			try {
+				stm.setLong(1, this.getTiered(table));
+				stm.setInt(2, weekly.getId());
+				ResultSet result = stm.executeQuery();
+				try {
+					while (result.next()) {
+						points.add(result.getLong(1), result.getDouble(2));
+					}
+				} finally {
+					result.close();
+				}
+			} finally {
+				weeklyStatements.release(sql, stm);
+			}
+		}
+		return points;
+	}
+}
@@ -0,0 +1,331 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Write-behind pipeline for value changes. Producers only enqueue a
+ * HistoryEvent; a single writer thread drains the ring buffer into batches
+ * that are committed when they reach MAX_BATCH_SIZE rows or when the oldest
+ * row has waited MAX_BATCH_DELAY milliseconds.
+ *
+ * Only the weekly database is written here, HistoryTiering copies the rows
+ * to the archive in the background.
+ */
+public class HistoryWriter implements Runnable {
+	public static final String INSERT_PARTITION_VALUE = "INSERT INTO main.%s (series_id, time, value_d) VALUES (?,?,?)";
+
+	private final int BUFFER_CAPACITY = 16384;
+	private final int MAX_BATCH_SIZE = 1000;
+	private final long MAX_BATCH_DELAY = 10000;
+	private final int MAX_BATCH_ATTEMPTS = 3;
+	private final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private final long DROP_LOG_INTERVAL = 60000;
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final HistoryRingBuffer<HistoryEvent> buffer = new HistoryRingBuffer<HistoryEvent>(this.BUFFER_CAPACITY);
+	private final PendingHistory pending = new PendingHistory();
+	private final Connection weeklyConnection;
+	private final SeriesDictionary weeklySeries;
+	private final HistoryPartitions weeklyPartitions;
+	// Insert statement per weekly partition, a batch can span a week boundary
+	private final Map<String, PreparedStatement> weeklyStms = new LinkedHashMap<String, PreparedStatement>();
+	private String weeklyTable;
+
+	// Only touched while holding the writer monitor
+	private int batchSize = 0;
+	private final List<HistoryEvent> batchEvents = new ArrayList<HistoryEvent>();
+	private long batchStarted = 0;
+	private int batchAttempts = 0;
+
+	private final AtomicLong droppedEvents = new AtomicLong();
+	private final AtomicLong failedEvents = new AtomicLong();
+	private volatile long lastDropLogged = 0;
+	private volatile boolean running = false;
+	private Thread thread;
+
+	public HistoryWriter(Connection weeklyConnection, SeriesDictionary weeklySeries, HistoryPartitions weeklyPartitions) {
+		this.weeklyConnection = weeklyConnection;
+		this.weeklySeries = weeklySeries;
+		this.weeklyPartitions = weeklyPartitions;
+	}
+
+	public void start() {
+		this.running = true;
+		this.thread = new Thread(this, "HistoryWriter");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void stop() {
+		this.running = false;
+		if (this.thread != null) {
+			LockSupport.unpark(this.thread);
+			try {
+				this.thread.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.flush();
+	}
+
+	/*
+	 * Called from the notification threads. Never blocks: when the writer
+	 * cannot keep up the event is dropped and counted.
+	 */
+	public boolean enqueue(HistoryEvent event) {
+		this.pending.add(event);
+		if (this.buffer.offer(event)) {
+			return true;
+		}
+		this.pending.remove(event);
+		long dropped = this.droppedEvents.incrementAndGet();
+		long now = System.currentTimeMillis();
+		if (now - this.lastDropLogged > this.DROP_LOG_INTERVAL) {
+			this.lastDropLogged = now;
+			HistoryWriter.log.warn("History buffer full (" + this.buffer.capacity() + " events), " + dropped + " value changes dropped so far");
+		}
+		return false;
+	}
+
+	@Override
+	public void run() {
+		while (this.running) {
+			try {
+				if (this.drain() == 0) {
+					LockSupport.parkNanos(this.IDLE_PARK_NANOS);
+				}
+			} catch (Exception e) {
+				HistoryWriter.log.error("Exception in history writer: ", e);
+			}
+		}
+	}
+
+	/*
+	 * Write everything that is queued right now and commit the batch,
+	 * regardless of its size or age.
+	 */
+	public synchronized void flush() {
+		this.drain();
+		this.commit();
+	}
+
+	private synchronized int drain() {
+		int drained = 0;
+		HistoryEvent event;
+		// A batch that is waiting for a retry is not grown beyond MAX_BATCH_SIZE
+		while (this.batchSize < this.MAX_BATCH_SIZE && (event = this.buffer.poll()) != null) {
+			this.bind(event);
+			drained++;
+			if (this.batchSize >= this.MAX_BATCH_SIZE && this.batchAttempts == 0) {
+				this.commit();
+			}
+		}
+		if (this.batchSize > 0 && System.currentTimeMillis() - this.batchStarted >= this.MAX_BATCH_DELAY) {
+			this.commit();
+		}
+		return drained;
+	}
+
+	private void bind(HistoryEvent event) {
+		long time = event.getTime() / 1000L;
+		try {
+			this.bind(this.getWeeklyStatement(time), event, time);
+			if (this.batchSize == 0) {
+				this.batchStarted = System.currentTimeMillis();
+			}
+			this.batchSize++;
+			this.batchEvents.add(event);
+		} catch (SQLException e) {
+			HistoryWriter.log.error("Exception occured: ", e);
+			this.pending.remove(event);
+		}
+	}
+
+	private PreparedStatement getWeeklyStatement(long time) throws SQLException {
+		String table = this.weeklyPartitions.getTable(time);
+		PreparedStatement stm = this.weeklyStms.get(table);
+		if (stm == null) {
+			stm = this.weeklyConnection.prepareStatement(String.format(HistoryWriter.INSERT_PARTITION_VALUE, table));
+			this.weeklyStms.put(table, stm);
+		}
+		this.weeklyTable = table;
+		return stm;
+	}
+
+	private void bind(PreparedStatement stm, HistoryEvent event, long time) throws SQLException {
+		HistorySeries series = this.weeklySeries.getOrCreate(event.getControllerIdentifier(), event.getNodeIdentifier(), event.getValueIdentifier(), event.getUnit());
+		stm.setInt(1, series.getId());
+		stm.setLong(2, time);
+		stm.setDouble(3, event.getValueDouble());
+		stm.addBatch();
+	}
+
+	private void commit() {
+		if (this.batchSize > 0) {
+			HistoryWriter.log.debug("Inserting " + this.batchSize + " batch values");
+			boolean committed;
+			// Queries must not see the committed rows and the pending events at the same time
+			this.pending.writeLock().lock();
+			try {
+				committed = this.executeBatch(this.weeklyConnection, this.weeklyStms.values());
+				if (committed) {
+					for (HistoryEvent event : this.batchEvents) {
+						this.pending.remove(event);
+					}
+				}
+			} finally {
+				this.pending.writeLock().unlock();
+			}
+			if (committed) {
+				HistoryWriter.log.debug("Inserting " + this.batchSize + " batch values - done");
+				this.batchAttempts = 0;
+				this.batchSize = 0;
+				this.batchEvents.clear();
+				this.closeOldPartitions();
+			} else {
+				this.retryBatch();
+			}
+		}
+	}
+
+	/*
+	 * The failed batch was rolled back and its events are still pending, so
+	 * queries keep seeing them. They are bound again and retried when the
+	 * batch is MAX_BATCH_DELAY old; after MAX_BATCH_ATTEMPTS the batch is
+	 * given up and counted as failed.
+	 */
+	private void retryBatch() {
+		List<HistoryEvent> events = new ArrayList<HistoryEvent>(this.batchEvents);
+		for (PreparedStatement stm : this.weeklyStms.values()) {
+			try {
+				stm.clearBatch();
+			} catch (SQLException e) {
+				HistoryWriter.log.error("Exception occured: ", e);
+			}
+		}
+		this.batchSize = 0;
+		this.batchEvents.clear();
+		this.batchAttempts++;
+		if (this.batchAttempts >= this.MAX_BATCH_ATTEMPTS) {
+			this.batchAttempts = 0;
+			for (HistoryEvent event : events) {
+				this.pending.remove(event);
+			}
+			long failed = this.failedEvents.addAndGet(events.size());
+			HistoryWriter.log.error("Giving up on " + events.size() + " batch values after " + this.MAX_BATCH_ATTEMPTS + " attempts, " + failed + " value changes failed so far");
+			return;
+		}
+		HistoryWriter.log.warn("Inserting " + events.size() + " batch values failed (attempt " + this.batchAttempts + " of " + this.MAX_BATCH_ATTEMPTS + "), retrying");
+		for (HistoryEvent event : events) {
+			this.bind(event);
+		}
+	}
+
+	/*
+	 * Only keep the statement of the partition that is written to now, older
+	 * partitions will be dropped by the retention at some point.
+	 */
+	private void closeOldPartitions() {
+		Iterator<Map.Entry<String, PreparedStatement>> iterator = this.weeklyStms.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, PreparedStatement> entry = iterator.next();
+			if (!entry.getKey().equals(this.weeklyTable)) {
+				try {
+					entry.getValue().close();
+				} catch (SQLException e) {
+					HistoryWriter.log.error("Exception occured: ", e);
+				}
+				iterator.remove();
+			}
+		}
+	}
+
+	/*
+	 * Returns false when the batch was rolled back, nothing of it is
+	 * committed in that case.
+	 */
+	private boolean executeBatch(Connection connection, Collection<PreparedStatement> stms) {
+		synchronized (connection) {
+			boolean committed = false;
+			try {
+				connection.setAutoCommit(false);
+				for (PreparedStatement stm : stms) {
+					stm.executeBatch();
+				}
+				connection.commit();
+				committed = true;
+			} catch (SQLException e) {
+				HistoryWriter.log.error("Error with batch insert", e);
+				try {
+					connection.rollback();
+				} catch (SQLException e1) {
+					HistoryWriter.log.error("Error with batch rollback", e1);
+				}
+			} finally {
+				try {
+					connection.setAutoCommit(true);
+				} catch (SQLException e) {
+					HistoryWriter.log.error("Exception occured: ", e);
+				}
+			}
+			return committed;
+		}
+	}
+
+	public PendingHistory getPendingHistory() {
+		return this.pending;
+	}
+
+	public int getQueuedEvents() {
+		return this.buffer.size();
+	}
+
+	public long getDroppedEvents() {
+		return this.droppedEvents.get();
+	}
+
+	public long getFailedEvents() {
+		return this.failedEvents.get();
+	}
+}
@@ -0,0 +1,210 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+import com.google.common.io.Files;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Engine that keeps the values of every series in its own directory of
+ * memory-mapped segment files, see MappedSeries. Appends are written to the
+ * mapping directly and are visible to queries right away, the operating
+ * system writes them to disk in the background or on flush.
+ *
+ * The series ids and units still come from the History_Series table of the
+ * weekly database.
+ */
+public class MappedHistoryStore implements HistoryStore {
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final File directory;
+	private final SeriesDictionary dictionary;
+	private final Map<Integer, MappedSeries> series = new ConcurrentHashMap<Integer, MappedSeries>();
+
+	public MappedHistoryStore(File directory, SeriesDictionary dictionary) {
+		this.directory = directory;
+		this.dictionary = dictionary;
+	}
+
+	@Override
+	public boolean append(HistoryEvent event) {
+		try {
+			HistorySeries historySeries = this.dictionary.getOrCreate(event.getControllerIdentifier(), event.getNodeIdentifier(), event.getValueIdentifier(), event.getUnit());
+			this.getSeries(historySeries.getId(), true).append(event.getTime() / 1000L, event.getValueDouble());
+			return true;
+		} catch (SQLException e) {
+			MappedHistoryStore.log.error("Exception occured: ", e);
+		} catch (IOException e) {
+			MappedHistoryStore.log.error("Exception occured: ", e);
+		}
+		return false;
+	}
+
+	/*
+	 * Opens the files of the series the first time it is used. Returns null
+	 * when nothing was stored and create is false.
+	 */
+	private MappedSeries getSeries(int seriesId, boolean create) throws IOException {
+		MappedSeries mappedSeries = this.series.get(seriesId);
+		if (mappedSeries == null) {
+			synchronized (this.series) {
+				mappedSeries = this.series.get(seriesId);
+				if (mappedSeries == null) {
+					File seriesDirectory = new File(this.directory, String.valueOf(seriesId));
+					if (!create && !seriesDirectory.isDirectory()) {
+						return null;
+					}
+					mappedSeries = new MappedSeries(seriesId, seriesDirectory);
+					this.series.put(seriesId, mappedSeries);
+				}
+			}
+		}
+		return mappedSeries;
+	}
+
+	private MappedSeries getSeries(ControlIdentifiers controlIdentifiers) throws IOException {
+		HistorySeries historySeries = this.dictionary.get(controlIdentifiers);
+		return historySeries == null ? null : this.getSeries(historySeries.getId(), false);
+	}
+
+	@Override
+	public HistoryPoints scan(ControlIdentifiers controlIdentifiers, long from, long to) throws IOException {
+		MappedSeries mappedSeries = this.getSeries(controlIdentifiers);
+		return mappedSeries == null ? new HistoryPoints(1) : mappedSeries.scan(from, to);
+	}
+
+	@Override
+	public HistoryPoints query(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, int offset, int amount) throws IOException {
+		MappedSeries mappedSeries = this.getSeries(controlIdentifiers);
+		if (mappedSeries == null) {
+			return new HistoryPoints(1);
+		} else if (period == null) {
+			return mappedSeries.getValues(Long.MAX_VALUE, offset, amount);
+		} else {
+			return mappedSeries.getAggregates(period, operation == null ? HistoryOperation.VALUE : operation, Long.MAX_VALUE, offset, amount);
+		}
+	}
+
+	@Override
+	public HistoryPoints queryBefore(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, long before, int amount) throws IOException {
+		MappedSeries mappedSeries = this.getSeries(controlIdentifiers);
+		if (mappedSeries == null) {
+			return new HistoryPoints(1);
+		} else if (period == null) {
+			return mappedSeries.getValues(before, 0, amount);
+		} else {
+			return mappedSeries.getAggregates(period, operation == null ? HistoryOperation.VALUE : operation, period.getBucketsEnd(before), 0, amount);
+		}
+	}
+
+	@Override
+	public HistoryCursor cursor(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, long from, long to) throws IOException {
+		MappedSeries mappedSeries = this.getSeries(controlIdentifiers);
+		if (mappedSeries == null) {
+			return HistoryCursors.of(new HistoryPoints(1));
+		} else if (period == null) {
+			return mappedSeries.cursor(from, to);
+		} else {
+			return HistoryCursors.aggregate(mappedSeries.cursor(period.getBucket(from), period.getBucketsEnd(to)), period, operation == null ? HistoryOperation.VALUE : operation);
+		}
+	}
+
+	@Override
+	public String getUnit(ControlIdentifiers controlIdentifiers) {
+		HistorySeries historySeries = this.dictionary.get(controlIdentifiers);
+		return historySeries == null ? null : historySeries.getUnit();
+	}
+
+	@Override
+	public void flush() {
+		for (MappedSeries mappedSeries : this.series.values()) {
+			mappedSeries.flush();
+		}
+	}
+
+	/*
+	 * Copies the files of every series to the destination directory. Series
+	 * that are not open yet are copied while no series can be opened.
+	 */
+	public long backup(File destination) throws IOException {
+		long bytes = 0;
+		File[] seriesDirectories = this.directory.listFiles();
+		if (seriesDirectories != null) {
+			for (File seriesDirectory : seriesDirectories) {
+				if (!seriesDirectory.isDirectory()) {
+					continue;
+				}
+				File target = new File(destination, seriesDirectory.getName());
+				MappedSeries mappedSeries;
+				synchronized (this.series) {
+					mappedSeries = this.series.get(Integer.valueOf(seriesDirectory.getName()));
+					if (mappedSeries == null) {
+						bytes += MappedHistoryStore.copy(seriesDirectory, target);
+					}
+				}
+				if (mappedSeries != null) {
+					bytes += mappedSeries.backup(target);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * Copies the files of a directory that is not in use
+	 */
+	public static long copy(File source, File destination) throws IOException {
+		long bytes = 0;
+		File[] files = source.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				File target = new File(destination, file.getName());
+				if (file.isDirectory()) {
+					bytes += MappedHistoryStore.copy(file, target);
+				} else {
+					Files.createParentDirs(target);
+					Files.copy(file, target);
+					bytes += target.length();
+				}
+			}
+		}
+		return bytes;
+	}
+
+	@Override
+	public void close() {
+		this.flush();
+		this.series.clear();
+	}
+}
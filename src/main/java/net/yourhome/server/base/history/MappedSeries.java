@@ -0,0 +1,558 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Append-only storage of one series in memory-mapped segment files of
+ * BLOCKS_PER_SEGMENT blocks. Every block starts with a header:
+ *
+ * count (int), bits (int), min time, max time, first time, first value (long)
+ *
+ * followed by a bit stream with the other points. Times are encoded as the
+ * delta of their delta in a fixed-width field of 0, 7, 9, 12 or 32 bits,
+ * values as the XOR with the previous value (the Gorilla encoding). The
+ * count is written last, so a point is only visible once it is complete.
+ *
+ * The time range of every block is kept in memory as a sparse index, range
+ * reads only decode the blocks that overlap. Blocks other than the last one
+ * never change, so readers only lock to take a snapshot.
+ */
+class MappedSeries {
+	static final int BLOCK_SIZE = 4096;
+	static final int BLOCKS_PER_SEGMENT = 64;
+	static final String SEGMENT_EXTENSION = ".seg";
+
+	private static final int COUNT = 0;
+	private static final int BITS = 4;
+	private static final int MIN_TIME = 8;
+	private static final int MAX_TIME = 16;
+	private static final int FIRST_TIME = 24;
+	private static final int FIRST_VALUE = 32;
+	private static final int HEADER_SIZE = 40;
+	private static final int STREAM_BITS = (MappedSeries.BLOCK_SIZE - MappedSeries.HEADER_SIZE) * 8;
+	// 4 + 32 bits for the time, 2 + 5 + 6 + 64 bits for the value
+	private static final int MAX_POINT_BITS = 113;
+
+	private final int seriesId;
+	private final File directory;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private long[] minTimes = new long[MappedSeries.BLOCKS_PER_SEGMENT];
+	private long[] maxTimes = new long[MappedSeries.BLOCKS_PER_SEGMENT];
+	private int blocks = 0;
+	// Position after the last point of the last block
+	private final Cursor tail = new Cursor();
+	private int firstDirtySegment = -1;
+
+	MappedSeries(int seriesId, File directory) throws IOException {
+		this.seriesId = seriesId;
+		this.directory = directory;
+		this.open();
+	}
+
+	/*
+	 * Maps the existing segments and positions the tail after the last
+	 * complete point
+	 */
+	private void open() throws IOException {
+		for (int segment = 0; new File(this.directory, segment + MappedSeries.SEGMENT_EXTENSION).exists(); segment++) {
+			MappedByteBuffer buffer = this.map(segment);
+			this.segments.add(buffer);
+			for (int block = 0; block < MappedSeries.BLOCKS_PER_SEGMENT; block++) {
+				int base = block * MappedSeries.BLOCK_SIZE;
+				int count = buffer.getInt(base + MappedSeries.COUNT);
+				if (count == 0) {
+					return;
+				}
+				this.index(this.blocks, buffer.getLong(base + MappedSeries.MIN_TIME), buffer.getLong(base + MappedSeries.MAX_TIME));
+				this.blocks++;
+				this.tail.open(buffer, base, count);
+				while (this.tail.next()) {
+				}
+			}
+		}
+	}
+
+	private MappedByteBuffer map(int segment) throws IOException {
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("Could not create " + this.directory);
+		}
+		RandomAccessFile file = new RandomAccessFile(new File(this.directory, segment + MappedSeries.SEGMENT_EXTENSION), "rw");
+		try {
+			long size = (long) MappedSeries.BLOCKS_PER_SEGMENT * MappedSeries.BLOCK_SIZE;
+			if (file.length() < size) {
+				file.setLength(size);
+			}
+			// The mapping stays valid after the file is closed
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void index(int block, long minTime, long maxTime) {
+		if (block == this.minTimes.length) {
+			this.minTimes = Arrays.copyOf(this.minTimes, block * 2);
+			this.maxTimes = Arrays.copyOf(this.maxTimes, block * 2);
+		}
+		this.minTimes[block] = minTime;
+		this.maxTimes[block] = maxTime;
+	}
+
+	public synchronized void append(long time, double value) throws IOException {
+		long valueBits = Double.doubleToRawLongBits(value);
+		if (this.blocks == 0 || this.tail.bitPos + MappedSeries.MAX_POINT_BITS > MappedSeries.STREAM_BITS) {
+			this.startBlock(time, valueBits);
+			return;
+		}
+		long delta = time - this.tail.time;
+		long deltaOfDelta = delta - this.tail.delta;
+		if (deltaOfDelta < Integer.MIN_VALUE || deltaOfDelta > Integer.MAX_VALUE) {
+			this.startBlock(time, valueBits);
+			return;
+		}
+
+		Cursor cursor = this.tail;
+		if (deltaOfDelta == 0) {
+			cursor.write(0, 1);
+		} else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+			cursor.write(0x2, 2);
+			cursor.write(deltaOfDelta, 7);
+		} else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+			cursor.write(0x6, 3);
+			cursor.write(deltaOfDelta, 9);
+		} else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+			cursor.write(0xE, 4);
+			cursor.write(deltaOfDelta, 12);
+		} else {
+			cursor.write(0xF, 4);
+			cursor.write(deltaOfDelta, 32);
+		}
+
+		long xor = valueBits ^ cursor.valueBits;
+		if (xor == 0) {
+			cursor.write(0, 1);
+		} else {
+			int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int trailing = Long.numberOfTrailingZeros(xor);
+			if (cursor.leading >= 0 && leading >= cursor.leading && trailing >= cursor.trailing) {
+				cursor.write(0x2, 2);
+				cursor.write(xor >>> cursor.trailing, 64 - cursor.leading - cursor.trailing);
+			} else {
+				int length = 64 - leading - trailing;
+				cursor.write(0x3, 2);
+				cursor.write(leading, 5);
+				cursor.write(length - 1, 6);
+				cursor.write(xor >>> trailing, length);
+				cursor.leading = leading;
+				cursor.trailing = trailing;
+			}
+		}
+		cursor.time = time;
+		cursor.delta = delta;
+		cursor.valueBits = valueBits;
+		cursor.index++;
+		cursor.count++;
+
+		int last = this.blocks - 1;
+		ByteBuffer buffer = cursor.buffer;
+		buffer.putInt(cursor.header + MappedSeries.BITS, cursor.bitPos);
+		if (time < this.minTimes[last]) {
+			this.minTimes[last] = time;
+			buffer.putLong(cursor.header + MappedSeries.MIN_TIME, time);
+		}
+		if (time > this.maxTimes[last]) {
+			this.maxTimes[last] = time;
+			buffer.putLong(cursor.header + MappedSeries.MAX_TIME, time);
+		}
+		buffer.putInt(cursor.header + MappedSeries.COUNT, cursor.count);
+		this.setDirty(last / MappedSeries.BLOCKS_PER_SEGMENT);
+	}
+
+	private void startBlock(long time, long valueBits) throws IOException {
+		int block = this.blocks;
+		int segment = block / MappedSeries.BLOCKS_PER_SEGMENT;
+		if (segment == this.segments.size()) {
+			this.segments.add(this.map(segment));
+		}
+		MappedByteBuffer buffer = this.segments.get(segment);
+		int base = (block % MappedSeries.BLOCKS_PER_SEGMENT) * MappedSeries.BLOCK_SIZE;
+		buffer.putInt(base + MappedSeries.BITS, 0);
+		buffer.putLong(base + MappedSeries.MIN_TIME, time);
+		buffer.putLong(base + MappedSeries.MAX_TIME, time);
+		buffer.putLong(base + MappedSeries.FIRST_TIME, time);
+		buffer.putLong(base + MappedSeries.FIRST_VALUE, valueBits);
+		buffer.putInt(base + MappedSeries.COUNT, 1);
+		this.index(block, time, time);
+		this.tail.open(buffer, base, 1);
+		this.blocks++;
+		this.setDirty(segment);
+	}
+
+	private void setDirty(int segment) {
+		if (this.firstDirtySegment < 0 || segment < this.firstDirtySegment) {
+			this.firstDirtySegment = segment;
+		}
+	}
+
+	/*
+	 * Writes the changed segments to disk
+	 */
+	public synchronized void flush() {
+		if (this.firstDirtySegment >= 0) {
+			for (int segment = this.firstDirtySegment; segment < this.segments.size(); segment++) {
+				this.segments.get(segment).force();
+			}
+			this.firstDirtySegment = -1;
+		}
+	}
+
+	/*
+	 * Copies the segments to the destination directory, appends wait until
+	 * the copy is done
+	 */
+	public synchronized long backup(File destination) throws IOException {
+		this.flush();
+		long bytes = 0;
+		for (int segment = 0; segment < this.segments.size(); segment++) {
+			File target = new File(destination, segment + MappedSeries.SEGMENT_EXTENSION);
+			Files.createParentDirs(target);
+			Files.copy(new File(this.directory, segment + MappedSeries.SEGMENT_EXTENSION), target);
+			bytes += target.length();
+		}
+		return bytes;
+	}
+
+	private synchronized Snapshot snapshot() {
+		return new Snapshot(this.segments.toArray(new ByteBuffer[this.segments.size()]), this.blocks, this.tail.count, this.minTimes, this.maxTimes);
+	}
+
+	/*
+	 * Values with from <= time < to, oldest first
+	 */
+	public HistoryPoints scan(long from, long to) {
+		Snapshot snapshot = this.snapshot();
+		HistoryPoints points = new HistoryPoints();
+		boolean sorted = true;
+		long lastTime = Long.MIN_VALUE;
+		Cursor cursor = new Cursor();
+		for (int block = 0; block < snapshot.blocks; block++) {
+			if (snapshot.maxTimes[block] < from || snapshot.minTimes[block] >= to) {
+				continue;
+			}
+			if (snapshot.open(cursor, block)) {
+				do {
+					if (cursor.time >= from && cursor.time < to) {
+						sorted &= cursor.time >= lastTime;
+						lastTime = cursor.time;
+						points.add(cursor.time, cursor.getValue());
+					}
+				} while (cursor.next());
+			}
+		}
+		if (!sorted) {
+			points.sort();
+		}
+		return points;
+	}
+
+	/*
+	 * Like scan, but decodes one block at a time
+	 */
+	public HistoryCursor cursor(final long from, final long to) {
+		final Snapshot snapshot = this.snapshot();
+		return new HistoryCursor() {
+			private final Cursor cursor = new Cursor();
+			private int block = -1;
+			private boolean open = false;
+
+			@Override
+			public boolean next() {
+				while (true) {
+					if (this.open && this.cursor.next()) {
+						if (this.cursor.time >= from && this.cursor.time < to) {
+							return true;
+						}
+						continue;
+					}
+					do {
+						if (++this.block >= snapshot.blocks) {
+							return false;
+						}
+					} while (snapshot.maxTimes[this.block] < from || snapshot.minTimes[this.block] >= to);
+					this.open = snapshot.open(this.cursor, this.block);
+					if (this.open && this.cursor.time >= from && this.cursor.time < to) {
+						return true;
+					}
+				}
+			}
+
+			@Override
+			public long getTime() {
+				return this.cursor.time;
+			}
+
+			@Override
+			public double getValue() {
+				return this.cursor.getValue();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/*
+	 * Raw values before the given time, newest first. Blocks that only hold
+	 * newer values are skipped on their header.
+	 */
+	public HistoryPoints getValues(long before, int offset, int amount) {
+		Snapshot snapshot = this.snapshot();
+		HistoryPoints points = new HistoryPoints(Math.max(1, Math.min(offset + amount, 1024)));
+		Cursor cursor = new Cursor();
+		for (int block = snapshot.blocks - 1; block >= 0 && points.size() < offset + amount; block--) {
+			if (snapshot.minTimes[block] >= before) {
+				continue;
+			}
+			HistoryPoints blockPoints = snapshot.read(cursor, block);
+			for (int i = blockPoints.size() - 1; i >= 0 && points.size() < offset + amount; i--) {
+				if (blockPoints.getTime(i) < before) {
+					points.add(blockPoints.getTime(i), blockPoints.getValue(i));
+				}
+			}
+		}
+		return points.slice(offset, amount);
+	}
+
+	/*
+	 * One aggregate per period of the values before the given (bucket
+	 * aligned) time, newest first. Reads backwards until the requested
+	 * buckets are complete.
+	 */
+	public HistoryPoints getAggregates(RollupPeriod period, HistoryOperation operation, long before, int offset, int amount) {
+		Snapshot snapshot = this.snapshot();
+		TreeMap<Long, RollupBucket> buckets = new TreeMap<Long, RollupBucket>();
+		Cursor cursor = new Cursor();
+		RollupBucket current = null;
+		long currentEnd = Long.MIN_VALUE;
+		for (int block = snapshot.blocks - 1; block >= 0; block--) {
+			if (snapshot.minTimes[block] < before && snapshot.open(cursor, block)) {
+				do {
+					if (cursor.time >= before) {
+						continue;
+					}
+					if (current == null || cursor.time < current.getBucket() || cursor.time >= currentEnd) {
+						long bucket = period.getBucket(cursor.time);
+						current = buckets.get(bucket);
+						if (current == null) {
+							current = new RollupBucket(this.seriesId, period, bucket);
+							buckets.put(bucket, current);
+						}
+						currentEnd = period.getNextBucket(bucket);
+					}
+					current.add(cursor.time, cursor.getValue());
+				} while (cursor.next());
+			}
+			// Buckets after the one of the oldest value read so far are complete
+			if (buckets.tailMap(period.getBucket(snapshot.minTimes[block]), false).size() >= offset + amount) {
+				break;
+			}
+		}
+		HistoryPoints points = new HistoryPoints(Math.max(1, amount));
+		int skipped = 0;
+		for (Map.Entry<Long, RollupBucket> bucket : buckets.descendingMap().entrySet()) {
+			if (skipped++ < offset) {
+				continue;
+			}
+			if (points.size() == amount) {
+				break;
+			}
+			points.add(bucket.getKey(), operation.getValue(bucket.getValue()));
+		}
+		return points;
+	}
+
+	/*
+	 * The state of the series at one moment, blocks before the last one are
+	 * immutable and the last one is only read up to its count at that moment
+	 */
+	private static class Snapshot {
+		private final ByteBuffer[] segments;
+		private final int blocks;
+		private final int lastCount;
+		private final long[] minTimes;
+		private final long[] maxTimes;
+
+		private Snapshot(ByteBuffer[] segments, int blocks, int lastCount, long[] minTimes, long[] maxTimes) {
+			this.segments = segments;
+			this.blocks = blocks;
+			this.lastCount = lastCount;
+			this.minTimes = minTimes;
+			this.maxTimes = maxTimes;
+		}
+
+		private boolean open(Cursor cursor, int block) {
+			ByteBuffer buffer = this.segments[block / MappedSeries.BLOCKS_PER_SEGMENT];
+			int base = (block % MappedSeries.BLOCKS_PER_SEGMENT) * MappedSeries.BLOCK_SIZE;
+			int count = block == this.blocks - 1 ? this.lastCount : buffer.getInt(base + MappedSeries.COUNT);
+			if (count == 0) {
+				return false;
+			}
+			cursor.open(buffer, base, count);
+			return true;
+		}
+
+		private HistoryPoints read(Cursor cursor, int block) {
+			HistoryPoints points = new HistoryPoints(256);
+			if (this.open(cursor, block)) {
+				do {
+					points.add(cursor.time, cursor.getValue());
+				} while (cursor.next());
+			}
+			return points;
+		}
+	}
+
+	/*
+	 * Decoder state within one block, the tail of the series uses the same
+	 * state to encode the next point
+	 */
+	private static class Cursor {
+		private ByteBuffer buffer;
+		private int header;
+		private int stream;
+		private int bitPos;
+		private int index;
+		private int count;
+		private long time;
+		private long delta;
+		private long valueBits;
+		private int leading;
+		private int trailing;
+
+		/*
+		 * Positions the cursor on the first point of the block
+		 */
+		private void open(ByteBuffer buffer, int base, int count) {
+			this.buffer = buffer;
+			this.header = base;
+			this.stream = base + MappedSeries.HEADER_SIZE;
+			this.bitPos = 0;
+			this.index = 0;
+			this.count = count;
+			this.time = buffer.getLong(base + MappedSeries.FIRST_TIME);
+			this.delta = 0;
+			this.valueBits = buffer.getLong(base + MappedSeries.FIRST_VALUE);
+			this.leading = -1;
+			this.trailing = 0;
+		}
+
+		private boolean next() {
+			if (this.index + 1 >= this.count) {
+				return false;
+			}
+			long deltaOfDelta;
+			if (this.read(1) == 0) {
+				deltaOfDelta = 0;
+			} else if (this.read(1) == 0) {
+				deltaOfDelta = Cursor.signed(this.read(7), 7);
+			} else if (this.read(1) == 0) {
+				deltaOfDelta = Cursor.signed(this.read(9), 9);
+			} else if (this.read(1) == 0) {
+				deltaOfDelta = Cursor.signed(this.read(12), 12);
+			} else {
+				deltaOfDelta = Cursor.signed(this.read(32), 32);
+			}
+			this.delta += deltaOfDelta;
+			this.time += this.delta;
+
+			if (this.read(1) != 0) {
+				if (this.read(1) != 0) {
+					this.leading = (int) this.read(5);
+					this.trailing = 64 - this.leading - ((int) this.read(6) + 1);
+				}
+				this.valueBits ^= this.read(64 - this.leading - this.trailing) << this.trailing;
+			}
+			this.index++;
+			return true;
+		}
+
+		private double getValue() {
+			return Double.longBitsToDouble(this.valueBits);
+		}
+
+		private long read(int bits) {
+			long value = 0;
+			while (bits > 0) {
+				int offset = this.bitPos & 7;
+				int take = Math.min(8 - offset, bits);
+				int current = this.buffer.get(this.stream + (this.bitPos >>> 3)) & 0xFF;
+				value = (value << take) | ((current >>> (8 - offset - take)) & ((1 << take) - 1));
+				this.bitPos += take;
+				bits -= take;
+			}
+			return value;
+		}
+
+		/*
+		 * Writes the lowest bits of the value. Only the written bits of a
+		 * byte are changed, so bits left behind by an append that did not
+		 * complete are overwritten.
+		 */
+		private void write(long value, int bits) {
+			while (bits > 0) {
+				int offset = this.bitPos & 7;
+				int take = Math.min(8 - offset, bits);
+				int shift = 8 - offset - take;
+				int mask = ((1 << take) - 1) << shift;
+				int position = this.stream + (this.bitPos >>> 3);
+				int chunk = (int) (value >>> (bits - take)) & ((1 << take) - 1);
+				this.buffer.put(position, (byte) ((this.buffer.get(position) & ~mask) | (chunk << shift)));
+				this.bitPos += take;
+				bits -= take;
+			}
+		}
+
+		private static long signed(long value, int bits) {
+			return (value << (64 - bits)) >> (64 - bits);
+		}
+	}
+}
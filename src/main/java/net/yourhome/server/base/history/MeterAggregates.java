@@ -0,0 +1,391 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Running totals of cumulative meters (kWh, m3, ...) per day and per month,
+ * kept up to date on every stored value. A DELTA history request of a meter
+ * and the consumption of today are then answered from memory instead of a
+ * max - min over the raw values.
+ *
+ * The delta of a bucket is max - min of the readings in it, the same as
+ * HistoryOperation.DELTA over the raw values and the rollups.
+ *
+ * A bucket is complete when all its readings were seen, i.e. the reading
+ * before its first one is known. The buckets are written to History_Meters on every
+ * checkpoint. After a clean shutdown the next reading continues from the
+ * stored state, after a crash the first new bucket is incomplete.
+ */
+public class MeterAggregates {
+	public static final String CREATE_METER_SCHEMA = "CREATE TABLE IF NOT EXISTS History_Meters (series_id INTEGER NOT NULL, period INTEGER NOT NULL, bucket INTEGER NOT NULL, first_time INTEGER NOT NULL, first REAL, last_time INTEGER NOT NULL, last REAL, min REAL, max REAL, complete BOOLEAN NOT NULL, PRIMARY KEY (series_id, period, bucket));"
+			+ " CREATE TABLE IF NOT EXISTS History_Meter_State (id INTEGER PRIMARY KEY NOT NULL, clean BOOLEAN NOT NULL, time INTEGER NOT NULL);";
+	private static final String[] CUMULATIVE_UNITS = { "kWh", "kVAh", "Wh", "m3", "ft3", "gal", "gallons", "pulses" };
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final Connection connection;
+	private final SeriesDictionary dictionary;
+	private final ConcurrentHashMap<String, Meter> meters = new ConcurrentHashMap<String, Meter>();
+	private boolean loadedClean = false;
+
+	public MeterAggregates(Connection connection, SeriesDictionary dictionary) throws SQLException {
+		this.connection = connection;
+		this.dictionary = dictionary;
+		this.load();
+	}
+
+	public static boolean isCumulative(String unit) {
+		if (unit != null) {
+			for (String cumulativeUnit : MeterAggregates.CUMULATIVE_UNITS) {
+				if (cumulativeUnit.equalsIgnoreCase(unit.trim())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Number of buckets per series that stay in memory, older ones are only
+	 * in History_Meters
+	 */
+	private static int getMemoryBuckets(RollupPeriod period) {
+		return period == RollupPeriod.DAY ? 400 : 60;
+	}
+
+	private void load() throws SQLException {
+		Map<Integer, HistorySeries> seriesById = new HashMap<Integer, HistorySeries>();
+		for (HistorySeries series : this.dictionary.getAll()) {
+			seriesById.put(series.getId(), series);
+		}
+		long now = System.currentTimeMillis() / 1000L;
+		synchronized (this.connection) {
+			Statement stmt = this.connection.createStatement();
+			try {
+				stmt.executeUpdate(MeterAggregates.CREATE_METER_SCHEMA);
+				ResultSet result = stmt.executeQuery("SELECT clean FROM History_Meter_State WHERE id = 1");
+				this.loadedClean = result.next() && result.getBoolean("clean");
+				result.close();
+
+				result = stmt.executeQuery("SELECT * FROM History_Meters WHERE (period = " + RollupPeriod.DAY.getCode() + " AND bucket >= " + (now - 86400L * MeterAggregates.getMemoryBuckets(RollupPeriod.DAY)) + ") OR period = " + RollupPeriod.MONTH.getCode() + " ORDER BY series_id, period, bucket");
+				while (result.next()) {
+					HistorySeries series = seriesById.get(result.getInt("series_id"));
+					RollupPeriod period = RollupPeriod.fromCode(result.getInt("period"));
+					if (series == null || period == null) {
+						continue;
+					}
+					Meter meter = this.meters.get(series.getKey());
+					if (meter == null) {
+						meter = new Meter(series.getControllerIdentifier(), series.getNodeIdentifier(), series.getValueIdentifier());
+						meter.continuous = this.loadedClean;
+						this.meters.put(series.getKey(), meter);
+					}
+					MeterBucket bucket = new MeterBucket(result.getLong("bucket"), result.getLong("first_time"), result.getDouble("first"), result.getBoolean("complete"));
+					bucket.lastTime = result.getLong("last_time");
+					bucket.last = result.getDouble("last");
+					bucket.min = result.getDouble("min");
+					bucket.max = result.getDouble("max");
+					meter.put(period, bucket);
+					if (bucket.lastTime >= meter.lastTime) {
+						meter.lastTime = bucket.lastTime;
+						meter.last = bucket.last;
+						meter.hasLast = true;
+					}
+				}
+				result.close();
+				// Stays unclean until close, so a crash is noticed on the next start
+				stmt.executeUpdate("INSERT OR REPLACE INTO History_Meter_State (id, clean, time) VALUES (1, 0, " + now + ")");
+			} finally {
+				stmt.close();
+			}
+		}
+		MeterAggregates.log.info("Loaded " + this.meters.size() + " meters" + (this.loadedClean ? "" : " (last shutdown was not clean)"));
+	}
+
+	/*
+	 * Adds a stored value, values that are not in a cumulative unit are
+	 * ignored
+	 */
+	public void offer(HistoryEvent event) {
+		if (!MeterAggregates.isCumulative(event.getUnit())) {
+			return;
+		}
+		String key = event.getSeriesKey();
+		Meter meter = this.meters.get(key);
+		if (meter == null) {
+			meter = new Meter(event.getControllerIdentifier(), event.getNodeIdentifier(), event.getValueIdentifier());
+			// Nothing was ever stored for a new series, so its first bucket is complete
+			meter.continuous = this.dictionary.get(event.getControllerIdentifier(), event.getNodeIdentifier(), event.getValueIdentifier()) == null;
+			Meter existing = this.meters.putIfAbsent(key, meter);
+			if (existing != null) {
+				meter = existing;
+			}
+		}
+		meter.add(event.getTime() / 1000L, event.getValueDouble());
+	}
+
+	/*
+	 * Delta of the bucket containing the given time, null when the bucket is
+	 * not complete or the series is no meter
+	 */
+	public Double getDelta(String seriesKey, RollupPeriod period, long time) {
+		Meter meter = this.meters.get(seriesKey);
+		return meter == null ? null : meter.getDelta(period, period.getBucket(time));
+	}
+
+	/*
+	 * The same as a DELTA history query, newest first. Null when the buckets
+	 * are not all in memory and complete, the query has to go to the store
+	 * then.
+	 */
+	public HistoryPoints getDeltas(String seriesKey, RollupPeriod period, int offset, int amount) {
+		if (period != RollupPeriod.DAY && period != RollupPeriod.MONTH) {
+			return null;
+		}
+		Meter meter = this.meters.get(seriesKey);
+		return meter == null ? null : meter.getDeltas(period, offset, amount);
+	}
+
+	/*
+	 * Writes the buckets that changed since the last checkpoint
+	 */
+	public void checkpoint() {
+		this.checkpoint(false);
+	}
+
+	private void checkpoint(boolean clean) {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Meter meter : this.meters.values()) {
+			HistorySeries series = this.dictionary.get(meter.controllerIdentifier, meter.nodeIdentifier, meter.valueIdentifier);
+			if (series != null) {
+				// The series is created by the HistoryWriter, until then the buckets stay dirty
+				meter.collectDirty(series.getId(), rows);
+			}
+		}
+		synchronized (this.connection) {
+			PreparedStatement stm = null;
+			try {
+				this.connection.setAutoCommit(false);
+				stm = this.connection.prepareStatement("INSERT OR REPLACE INTO History_Meters (series_id, period, bucket, first_time, first, last_time, last, min, max, complete) VALUES (?,?,?,?,?,?,?,?,?,?)");
+				for (Object[] row : rows) {
+					int seriesId = (Integer) row[0];
+					RollupPeriod period = (RollupPeriod) row[1];
+					MeterBucket bucket = (MeterBucket) row[2];
+					stm.setInt(1, seriesId);
+					stm.setInt(2, period.getCode());
+					stm.setLong(3, bucket.bucket);
+					stm.setLong(4, bucket.firstTime);
+					stm.setDouble(5, bucket.first);
+					stm.setLong(6, (Long) row[3]);
+					stm.setDouble(7, (Double) row[4]);
+					stm.setDouble(8, (Double) row[5]);
+					stm.setDouble(9, (Double) row[6]);
+					stm.setBoolean(10, bucket.complete);
+					stm.addBatch();
+				}
+				stm.executeBatch();
+				if (clean) {
+					Statement stmt = this.connection.createStatement();
+					try {
+						stmt.executeUpdate("UPDATE History_Meter_State SET clean = 1, time = " + System.currentTimeMillis() / 1000L + " WHERE id = 1");
+					} finally {
+						stmt.close();
+					}
+				}
+				this.connection.commit();
+			} catch (SQLException e) {
+				MeterAggregates.log.error("Exception occured: ", e);
+				try {
+					this.connection.rollback();
+				} catch (SQLException ex) {
+				}
+				// Written again on the next checkpoint
+				for (Object[] row : rows) {
+					((MeterBucket) row[2]).dirty = true;
+				}
+			} finally {
+				if (stm != null) {
+					try {
+						stm.close();
+					} catch (SQLException e) {
+					}
+				}
+				try {
+					this.connection.setAutoCommit(true);
+				} catch (SQLException e) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * Last checkpoint, marks the state as clean
+	 */
+	public void close() {
+		this.checkpoint(true);
+	}
+
+	private static class Meter {
+		private final String controllerIdentifier;
+		private final String nodeIdentifier;
+		private final String valueIdentifier;
+		private final Map<RollupPeriod, TreeMap<Long, MeterBucket>> buckets = new HashMap<RollupPeriod, TreeMap<Long, MeterBucket>>();
+		// Whether the last reading is the one that came before the next
+		private boolean continuous = false;
+		private boolean hasLast = false;
+		private long lastTime = Long.MIN_VALUE;
+		private double last;
+
+		private Meter(String controllerIdentifier, String nodeIdentifier, String valueIdentifier) {
+			this.controllerIdentifier = controllerIdentifier;
+			this.nodeIdentifier = nodeIdentifier;
+			this.valueIdentifier = valueIdentifier;
+			this.buckets.put(RollupPeriod.DAY, new TreeMap<Long, MeterBucket>());
+			this.buckets.put(RollupPeriod.MONTH, new TreeMap<Long, MeterBucket>());
+		}
+
+		private void put(RollupPeriod period, MeterBucket bucket) {
+			TreeMap<Long, MeterBucket> periodBuckets = this.buckets.get(period);
+			periodBuckets.put(bucket.bucket, bucket);
+			while (periodBuckets.size() > MeterAggregates.getMemoryBuckets(period)) {
+				periodBuckets.pollFirstEntry();
+			}
+		}
+
+		private synchronized void add(long time, double value) {
+			boolean late = this.hasLast && time < this.lastTime;
+			for (Map.Entry<RollupPeriod, TreeMap<Long, MeterBucket>> periodBuckets : this.buckets.entrySet()) {
+				long bucketTime = periodBuckets.getKey().getBucket(time);
+				MeterBucket bucket = periodBuckets.getValue().get(bucketTime);
+				if (bucket != null) {
+					bucket.add(time, value);
+				} else if (!late) {
+					this.put(periodBuckets.getKey(), new MeterBucket(bucketTime, time, value, this.continuous));
+				}
+			}
+			if (late) {
+				// Only counts for the min and max of its bucket
+				return;
+			}
+			this.continuous = true;
+			this.hasLast = true;
+			this.lastTime = time;
+			this.last = value;
+		}
+
+		private synchronized Double getDelta(RollupPeriod period, long bucketTime) {
+			TreeMap<Long, MeterBucket> periodBuckets = this.buckets.get(period);
+			MeterBucket bucket = periodBuckets == null ? null : periodBuckets.get(bucketTime);
+			return bucket == null || !bucket.complete ? null : bucket.getDelta();
+		}
+
+		private synchronized HistoryPoints getDeltas(RollupPeriod period, int offset, int amount) {
+			HistoryPoints points = new HistoryPoints(Math.max(1, amount));
+			int index = 0;
+			for (MeterBucket bucket : this.buckets.get(period).descendingMap().values()) {
+				if (index >= offset + amount) {
+					break;
+				}
+				if (!bucket.complete) {
+					// Older buckets are not known well enough
+					return null;
+				}
+				if (index++ >= offset) {
+					points.add(bucket.bucket, bucket.getDelta());
+				}
+			}
+			// Fewer buckets than asked, the older ones are only in the store
+			return index < offset + amount ? null : points;
+		}
+
+		/*
+		 * Copies the changed buckets as (series id, period, bucket, last time,
+		 * last, min, max) under the lock of the meter
+		 */
+		private synchronized void collectDirty(int seriesId, List<Object[]> rows) {
+			for (Map.Entry<RollupPeriod, TreeMap<Long, MeterBucket>> periodBuckets : this.buckets.entrySet()) {
+				for (MeterBucket bucket : periodBuckets.getValue().values()) {
+					if (bucket.dirty) {
+						bucket.dirty = false;
+						rows.add(new Object[] { seriesId, periodBuckets.getKey(), bucket, bucket.lastTime, bucket.last, bucket.min, bucket.max });
+					}
+				}
+			}
+		}
+	}
+
+	private static class MeterBucket {
+		private final long bucket;
+		private final long firstTime;
+		private final double first;
+		private final boolean complete;
+		private long lastTime;
+		private double last;
+		private double min;
+		private double max;
+		private volatile boolean dirty = true;
+
+		private MeterBucket(long bucket, long firstTime, double first, boolean complete) {
+			this.bucket = bucket;
+			this.firstTime = firstTime;
+			this.first = first;
+			this.complete = complete;
+			this.lastTime = firstTime;
+			this.last = first;
+			this.min = first;
+			this.max = first;
+		}
+
+		private void add(long time, double value) {
+			if (time >= this.lastTime) {
+				this.lastTime = time;
+				this.last = value;
+			}
+			this.min = Math.min(this.min, value);
+			this.max = Math.max(this.max, value);
+			this.dirty = true;
+		}
+
+		private double getDelta() {
+			return this.max - this.min;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Value changes that are queued or batched by the HistoryWriter but not
+ * committed yet, per series. History queries merge them with the database
+ * rows, so they see fresh values without forcing a commit.
+ *
+ * An event is added before it is queued and removed after the batch that
+ * holds it is committed. The writer commits while holding the write lock and
+ * queries read while holding the read lock, so a query sees every value
+ * exactly once: either still pending or already in the database.
+ */
+public class PendingHistory {
+	private final ConcurrentHashMap<String, Queue<HistoryEvent>> series = new ConcurrentHashMap<String, Queue<HistoryEvent>>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public void add(HistoryEvent event) {
+		String key = event.getSeriesKey();
+		Queue<HistoryEvent> events = this.series.get(key);
+		if (events == null) {
+			this.series.putIfAbsent(key, new ConcurrentLinkedQueue<HistoryEvent>());
+			events = this.series.get(key);
+		}
+		events.offer(event);
+	}
+
+	public void remove(HistoryEvent event) {
+		Queue<HistoryEvent> events = this.series.get(event.getSeriesKey());
+		if (events != null) {
+			events.remove(event);
+		}
+	}
+
+	/*
+	 * Pending values of the series in epoch seconds, oldest first
+	 */
+	public HistoryPoints get(HistorySeries historySeries) {
+		HistoryPoints points = new HistoryPoints(16);
+		Queue<HistoryEvent> events = this.series.get(historySeries.getKey());
+		if (events != null) {
+			for (HistoryEvent event : events) {
+				points.add(event.getTime() / 1000L, event.getValueDouble());
+			}
+		}
+		return points;
+	}
+
+	public Lock readLock() {
+		return this.lock.readLock();
+	}
+
+	public Lock writeLock() {
+		return this.lock.writeLock();
+	}
+}
@@ -0,0 +1,433 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+import net.yourhome.server.base.ReadConnectionPool;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * A QuantileSketch per series and day, filled on every stored value and
+ * written to History_Sketches on every checkpoint. Percentiles of a day,
+ * week or month are answered by merging the day sketches, without reading
+ * the values of the days.
+ *
+ * Only the days that got values since the last checkpoint, today and
+ * yesterday stay in memory. A day that is not in memory (a late value, or
+ * today after a restart) starts with an empty sketch that is merged with
+ * the stored one on its first checkpoint.
+ */
+public class PercentileSketches {
+	public static final String CREATE_SKETCH_SCHEMA = "CREATE TABLE IF NOT EXISTS History_Sketches (series_id INTEGER NOT NULL, day INTEGER NOT NULL, sketch BLOB NOT NULL, PRIMARY KEY (series_id, day));";
+	private final String SELECT_SKETCHES = "SELECT day, sketch FROM History_Sketches WHERE series_id = ? AND day < ? ORDER BY day DESC";
+	private final String SELECT_SKETCH = "SELECT sketch FROM History_Sketches WHERE series_id = ? AND day = ?";
+	private static final long SECONDS_PER_DAY = 86400L;
+
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final Connection connection;
+	private final SeriesDictionary dictionary;
+	private final ReadConnectionPool readers;
+	private final ConcurrentHashMap<String, SeriesSketches> sketches = new ConcurrentHashMap<String, SeriesSketches>();
+
+	public PercentileSketches(Connection connection, SeriesDictionary dictionary, ReadConnectionPool readers) throws SQLException {
+		this.connection = connection;
+		this.dictionary = dictionary;
+		this.readers = readers;
+		synchronized (this.connection) {
+			Statement stmt = this.connection.createStatement();
+			try {
+				stmt.executeUpdate(PercentileSketches.CREATE_SKETCH_SCHEMA);
+			} finally {
+				stmt.close();
+			}
+		}
+	}
+
+	/*
+	 * Adds a stored value. Meter readings are skipped, only their deltas
+	 * mean something, see MeterAggregates.
+	 */
+	public void offer(HistoryEvent event) {
+		if (MeterAggregates.isCumulative(event.getUnit())) {
+			return;
+		}
+		String key = event.getSeriesKey();
+		SeriesSketches series = this.sketches.get(key);
+		if (series == null) {
+			series = new SeriesSketches(event.getControllerIdentifier(), event.getNodeIdentifier(), event.getValueIdentifier());
+			SeriesSketches existing = this.sketches.putIfAbsent(key, series);
+			if (existing != null) {
+				series = existing;
+			}
+		}
+		series.add(event.getTime() / 1000L, event.getValueDouble());
+	}
+
+	/*
+	 * The given percentile (0 - 100) per bucket of the period, newest first
+	 * like the other aggregates. With before set only the buckets that start
+	 * before it are returned and offset is ignored.
+	 */
+	public HistoryPoints getPercentiles(ControlIdentifiers controlIdentifiers, RollupPeriod period, double percentile, Long before, int offset, int amount) throws IOException {
+		if (period == null || period == RollupPeriod.HOUR) {
+			throw new IllegalArgumentException("Percentiles are kept per day, not per " + period);
+		}
+		long end = before == null ? Long.MAX_VALUE : period.getBucketsEnd(before);
+		int skip = before == null ? Math.max(offset, 0) : 0;
+		double rank = percentile / 100.0;
+		HistoryPoints points = new HistoryPoints(Math.max(1, amount));
+		if (amount <= 0) {
+			return points;
+		}
+
+		SeriesSketches memory = this.sketches.get(HistoryQueryCache.getSeriesKey(controlIdentifiers));
+		NavigableMap<Long, DaySketch> memoryDays = memory == null ? new TreeMap<Long, DaySketch>() : memory.copy(end).descendingMap();
+		HistorySeries series = this.dictionary.get(controlIdentifiers);
+
+		BucketMerger merger = new BucketMerger(period, rank, skip, amount, points);
+		try {
+			if (series != null) {
+				ReadConnectionPool.Reader reader = this.readers.acquire();
+				try {
+					StatementCache statements = reader.getStatements();
+					PreparedStatement stm = statements.borrow(this.SELECT_SKETCHES);
+					try {
+						stm.setInt(1, series.getId());
+						stm.setLong(2, end);
+						ResultSet result = stm.executeQuery();
+						try {
+							while (!merger.isFull() && result.next()) {
+								long day = result.getLong(1);
+								// Days in memory that are newer than the stored one go first
+								while (!memoryDays.isEmpty() && memoryDays.firstKey() > day && !merger.isFull()) {
+									Map.Entry<Long, DaySketch> newer = memoryDays.pollFirstEntry();
+									merger.add(newer.getKey(), newer.getValue().sketch);
+								}
+								DaySketch inMemory = memoryDays.remove(day);
+								if (inMemory == null || !inMemory.loaded) {
+									merger.add(day, QuantileSketch.fromBytes(result.getBytes(2)));
+								}
+								if (inMemory != null) {
+									merger.add(day, inMemory.sketch);
+								}
+							}
+						} finally {
+							result.close();
+						}
+					} finally {
+						statements.release(this.SELECT_SKETCHES, stm);
+					}
+				} finally {
+					this.readers.release(reader);
+				}
+			}
+			for (Map.Entry<Long, DaySketch> older : memoryDays.entrySet()) {
+				if (merger.isFull()) {
+					break;
+				}
+				merger.add(older.getKey(), older.getValue().sketch);
+			}
+			merger.finish();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+		return points;
+	}
+
+	/*
+	 * Writes the day sketches that changed since the last checkpoint
+	 */
+	public void checkpoint() {
+		long keepFrom = RollupPeriod.DAY.getBucket(System.currentTimeMillis() / 1000L) - PercentileSketches.SECONDS_PER_DAY;
+		List<Object[]> rows = new ArrayList<Object[]>();
+		List<SeriesSketches> collected = new ArrayList<SeriesSketches>();
+		for (SeriesSketches series : this.sketches.values()) {
+			HistorySeries stored = this.dictionary.get(series.controllerIdentifier, series.nodeIdentifier, series.valueIdentifier);
+			if (stored == null) {
+				// The series is created by the HistoryWriter, until then the days stay dirty
+				continue;
+			}
+			try {
+				for (Long day : series.getUnloaded()) {
+					series.load(day, this.select(stored.getId(), day));
+				}
+			} catch (SQLException | IOException e) {
+				PercentileSketches.log.error("Exception occured: ", e);
+				continue;
+			}
+			series.collectDirty(stored.getId(), rows);
+			collected.add(series);
+		}
+		if (!rows.isEmpty() && !this.write(rows)) {
+			return;
+		}
+		// Only once the days are stored, queries read them from the table from now on
+		for (SeriesSketches series : collected) {
+			series.evict(keepFrom);
+		}
+	}
+
+	private boolean write(List<Object[]> rows) {
+		synchronized (this.connection) {
+			PreparedStatement stm = null;
+			try {
+				this.connection.setAutoCommit(false);
+				stm = this.connection.prepareStatement("INSERT OR REPLACE INTO History_Sketches (series_id, day, sketch) VALUES (?,?,?)");
+				for (Object[] row : rows) {
+					stm.setInt(1, (Integer) row[0]);
+					stm.setLong(2, (Long) row[1]);
+					stm.setBytes(3, (byte[]) row[2]);
+					stm.addBatch();
+				}
+				stm.executeBatch();
+				this.connection.commit();
+				return true;
+			} catch (SQLException e) {
+				PercentileSketches.log.error("Exception occured: ", e);
+				try {
+					this.connection.rollback();
+				} catch (SQLException ex) {
+				}
+				// Written again on the next checkpoint
+				for (Object[] row : rows) {
+					((DaySketch) row[3]).dirty = true;
+				}
+				return false;
+			} finally {
+				if (stm != null) {
+					try {
+						stm.close();
+					} catch (SQLException e) {
+					}
+				}
+				try {
+					this.connection.setAutoCommit(true);
+				} catch (SQLException e) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * Removes the sketches of the days before the given epoch second
+	 */
+	public int clean(long before) {
+		synchronized (this.connection) {
+			try {
+				PreparedStatement delete = this.connection.prepareStatement("DELETE FROM History_Sketches WHERE day < ?");
+				try {
+					delete.setLong(1, before);
+					return delete.executeUpdate();
+				} finally {
+					delete.close();
+				}
+			} catch (SQLException e) {
+				PercentileSketches.log.error("Exception occured: ", e);
+				return 0;
+			}
+		}
+	}
+
+	public void close() {
+		this.checkpoint();
+	}
+
+	private QuantileSketch select(int seriesId, long day) throws SQLException, IOException {
+		synchronized (this.connection) {
+			PreparedStatement stm = this.connection.prepareStatement(this.SELECT_SKETCH);
+			try {
+				stm.setInt(1, seriesId);
+				stm.setLong(2, day);
+				ResultSet result = stm.executeQuery();
+				try {
+					return result.next() ? QuantileSketch.fromBytes(result.getBytes(1)) : null;
+				} finally {
+					result.close();
+				}
+			} finally {
+				stm.close();
+			}
+		}
+	}
+
+	/*
+	 * Merges day sketches, newest first, into the buckets of a period
+	 */
+	private static class BucketMerger {
+		private final RollupPeriod period;
+		private final double rank;
+		private final int skip;
+		private final int amount;
+		private final HistoryPoints points;
+		private long bucket = Long.MIN_VALUE;
+		private QuantileSketch merged = null;
+		private int index = 0;
+
+		private BucketMerger(RollupPeriod period, double rank, int skip, int amount, HistoryPoints points) {
+			this.period = period;
+			this.rank = rank;
+			this.skip = skip;
+			this.amount = amount;
+			this.points = points;
+		}
+
+		/*
+		 * Whether the next day can only start a bucket that is not needed
+		 * anymore. The bucket being merged still takes older days.
+		 */
+		private boolean isFull() {
+			return this.index >= this.skip + this.amount;
+		}
+
+		private void add(long day, QuantileSketch sketch) {
+			long dayBucket = this.period.getBucket(day);
+			if (this.merged != null && dayBucket != this.bucket) {
+				this.finish();
+			}
+			if (this.isFull()) {
+				return;
+			}
+			if (this.merged == null) {
+				this.bucket = dayBucket;
+				this.merged = new QuantileSketch();
+			}
+			this.merged.merge(sketch);
+		}
+
+		private void finish() {
+			if (this.merged != null && !this.merged.isEmpty()) {
+				if (this.index >= this.skip) {
+					this.points.add(this.bucket, this.merged.getQuantile(this.rank));
+				}
+				this.index++;
+			}
+			this.merged = null;
+		}
+	}
+
+	private static class SeriesSketches {
+		private final String controllerIdentifier;
+		private final String nodeIdentifier;
+		private final String valueIdentifier;
+		private final TreeMap<Long, DaySketch> days = new TreeMap<Long, DaySketch>();
+
+		private SeriesSketches(String controllerIdentifier, String nodeIdentifier, String valueIdentifier) {
+			this.controllerIdentifier = controllerIdentifier;
+			this.nodeIdentifier = nodeIdentifier;
+			this.valueIdentifier = valueIdentifier;
+		}
+
+		private synchronized void add(long time, double value) {
+			long day = RollupPeriod.DAY.getBucket(time);
+			DaySketch daySketch = this.days.get(day);
+			if (daySketch == null) {
+				daySketch = new DaySketch();
+				this.days.put(day, daySketch);
+			}
+			daySketch.sketch.add(value);
+			daySketch.dirty = true;
+		}
+
+		/*
+		 * Copies of the days before end
+		 */
+		private synchronized TreeMap<Long, DaySketch> copy(long end) {
+			TreeMap<Long, DaySketch> copy = new TreeMap<Long, DaySketch>();
+			for (Map.Entry<Long, DaySketch> day : this.days.headMap(end, false).entrySet()) {
+				DaySketch daySketch = new DaySketch();
+				daySketch.sketch.merge(day.getValue().sketch);
+				daySketch.loaded = day.getValue().loaded;
+				copy.put(day.getKey(), daySketch);
+			}
+			return copy;
+		}
+
+		private synchronized List<Long> getUnloaded() {
+			List<Long> unloaded = new ArrayList<Long>();
+			for (Map.Entry<Long, DaySketch> day : this.days.entrySet()) {
+				if (!day.getValue().loaded) {
+					unloaded.add(day.getKey());
+				}
+			}
+			return unloaded;
+		}
+
+		private synchronized void load(long day, QuantileSketch stored) {
+			DaySketch daySketch = this.days.get(day);
+			if (daySketch != null && !daySketch.loaded) {
+				if (stored != null) {
+					daySketch.sketch.merge(stored);
+				}
+				daySketch.loaded = true;
+			}
+		}
+
+		/*
+		 * Adds the changed days as (series id, day, sketch, day sketch)
+		 */
+		private synchronized void collectDirty(int seriesId, List<Object[]> rows) {
+			for (Map.Entry<Long, DaySketch> day : this.days.entrySet()) {
+				DaySketch daySketch = day.getValue();
+				if (daySketch.dirty && daySketch.loaded) {
+					daySketch.dirty = false;
+					rows.add(new Object[] { seriesId, day.getKey(), daySketch.sketch.toBytes(), daySketch });
+				}
+			}
+		}
+
+		private synchronized void evict(long keepFrom) {
+			NavigableMap<Long, DaySketch> older = this.days.headMap(keepFrom, false);
+			for (Long day : new ArrayList<Long>(older.keySet())) {
+				DaySketch daySketch = older.get(day);
+				if (!daySketch.dirty && daySketch.loaded) {
+					older.remove(day);
+				}
+			}
+		}
+	}
+
+	private static class DaySketch {
+		private final QuantileSketch sketch = new QuantileSketch();
+		// Whether the stored sketch of the day is merged in
+		private boolean loaded = false;
+		private volatile boolean dirty = true;
+	}
+}
@@ -0,0 +1,296 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * KLL quantile sketch. The values are kept in levels of compactors, an item
+ * on level h stands for 2^h values. A full level is sorted and every other
+ * item goes one level up, the capacity of the levels shrinks by 2/3 per
+ * level below the top one. The half that moves up alternates instead of
+ * being random, so the same values give the same answer every time. The
+ * rank error is about 1.7 / k of the count, sketches can be merged without
+ * losing accuracy. Until the first compaction, which happens when more than
+ * k values were added, the sketch is exact. Items are kept as doubles, so
+ * large values do not lose precision.
+ *
+ * Not thread safe.
+ */
+public class QuantileSketch {
+	public static final int DEFAULT_K = 128;
+	private static final int MIN_CAPACITY = 2;
+	private static final byte FORMAT = 2;
+	// Items stored as floats
+	private static final byte FORMAT_FLOAT = 1;
+
+	private final int k;
+	private double[][] levels;
+	private int[] sizes;
+	private long count = 0;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	// Alternates which half of a level moves up
+	private boolean oddCompaction = false;
+
+	public QuantileSketch() {
+		this(QuantileSketch.DEFAULT_K);
+	}
+
+	public QuantileSketch(int k) {
+		this.k = Math.max(8, k);
+		this.levels = new double[1][];
+		this.levels[0] = new double[this.getCapacity(0)];
+		this.sizes = new int[1];
+	}
+
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		this.append(0, value);
+		this.count++;
+		this.min = this.count == 1 || value < this.min ? value : this.min;
+		this.max = this.count == 1 || value > this.max ? value : this.max;
+		this.compress();
+	}
+
+	/*
+	 * Adds the values of another sketch, the other sketch is not changed
+	 */
+	public void merge(QuantileSketch other) {
+		if (other.count == 0) {
+			return;
+		}
+		for (int h = 0; h < other.levels.length; h++) {
+			for (int i = 0; i < other.sizes[h]; i++) {
+				this.append(h, other.levels[h][i]);
+			}
+		}
+		this.min = this.count == 0 || other.min < this.min ? other.min : this.min;
+		this.max = this.count == 0 || other.max > this.max ? other.max : this.max;
+		this.count += other.count;
+		this.compress();
+	}
+
+	public long getCount() {
+		return this.count;
+	}
+
+	public boolean isEmpty() {
+		return this.count == 0;
+	}
+
+	/*
+	 * Value at the given rank (0 - 1), NaN for an empty sketch
+	 */
+	public double getQuantile(double rank) {
+		if (this.count == 0) {
+			return Double.NaN;
+		} else if (rank <= 0) {
+			return this.min;
+		} else if (rank >= 1) {
+			return this.max;
+		}
+		int items = 0;
+		for (int h = 0; h < this.levels.length; h++) {
+			items += this.sizes[h];
+		}
+		double[] values = new double[items];
+		long[] weights = new long[items];
+		int index = 0;
+		for (int h = 0; h < this.levels.length; h++) {
+			for (int i = 0; i < this.sizes[h]; i++) {
+				values[index] = this.levels[h][i];
+				weights[index] = 1L << h;
+				index++;
+			}
+		}
+		QuantileSketch.sort(values, weights);
+		long total = 0;
+		for (long weight : weights) {
+			total += weight;
+		}
+		double target = rank * total;
+		long cumulative = 0;
+		for (int i = 0; i < items; i++) {
+			cumulative += weights[i];
+			if (cumulative >= target) {
+				return Math.min(Math.max(values[i], this.min), this.max);
+			}
+		}
+		return this.max;
+	}
+
+	/*
+	 * Compact binary form: format, k, count, min, max, the number of levels
+	 * and per level its size and items as doubles
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(40 + 8 * this.getRetained());
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(QuantileSketch.FORMAT);
+			out.writeShort(this.k);
+			out.writeLong(this.count);
+			out.writeDouble(this.min);
+			out.writeDouble(this.max);
+			out.writeByte(this.levels.length);
+			for (int h = 0; h < this.levels.length; h++) {
+				out.writeShort(this.sizes[h]);
+				for (int i = 0; i < this.sizes[h]; i++) {
+					out.writeDouble(this.levels[h][i]);
+				}
+			}
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+		}
+		return bytes.toByteArray();
+	}
+
+	public static QuantileSketch fromBytes(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		byte format = in.readByte();
+		if (format != QuantileSketch.FORMAT && format != QuantileSketch.FORMAT_FLOAT) {
+			throw new IOException("Unknown sketch format " + format);
+		}
+		QuantileSketch sketch = new QuantileSketch(in.readShort());
+		sketch.count = in.readLong();
+		sketch.min = in.readDouble();
+		sketch.max = in.readDouble();
+		int height = in.readByte();
+		sketch.levels = new double[height][];
+		sketch.sizes = new int[height];
+		for (int h = 0; h < height; h++) {
+			int size = in.readShort();
+			sketch.levels[h] = new double[Math.max(size, sketch.getCapacity(h))];
+			for (int i = 0; i < size; i++) {
+				sketch.levels[h][i] = format == QuantileSketch.FORMAT_FLOAT ? in.readFloat() : in.readDouble();
+			}
+			sketch.sizes[h] = size;
+		}
+		return sketch;
+	}
+
+	private int getRetained() {
+		int retained = 0;
+		for (int h = 0; h < this.levels.length; h++) {
+			retained += this.sizes[h];
+		}
+		return retained;
+	}
+
+	/*
+	 * Capacity of level h, k for the top level and 2/3 of the level above
+	 * for the others
+	 */
+	private int getCapacity(int h) {
+		int depth = this.levels.length - 1 - h;
+		return Math.max(QuantileSketch.MIN_CAPACITY, (int) Math.ceil(this.k * Math.pow(2.0 / 3.0, depth)));
+	}
+
+	private void append(int h, double value) {
+		if (h >= this.levels.length) {
+			int height = this.levels.length;
+			this.levels = Arrays.copyOf(this.levels, h + 1);
+			this.sizes = Arrays.copyOf(this.sizes, h + 1);
+			for (int level = height; level <= h; level++) {
+				this.levels[level] = new double[this.getCapacity(level)];
+			}
+		}
+		if (this.sizes[h] == this.levels[h].length) {
+			this.levels[h] = Arrays.copyOf(this.levels[h], Math.max(4, this.sizes[h] * 2));
+		}
+		this.levels[h][this.sizes[h]++] = value;
+	}
+
+	/*
+	 * Compacts the lowest full level until everything fits
+	 */
+	private void compress() {
+		while (true) {
+			int capacity = 0;
+			for (int h = 0; h < this.levels.length; h++) {
+				capacity += this.getCapacity(h);
+			}
+			if (this.getRetained() <= capacity) {
+				return;
+			}
+			for (int h = 0; h < this.levels.length; h++) {
+				if (this.sizes[h] >= this.getCapacity(h)) {
+					this.compact(h);
+					break;
+				}
+			}
+		}
+	}
+
+	private void compact(int h) {
+		double[] level = this.levels[h];
+		int size = this.sizes[h];
+		Arrays.sort(level, 0, size);
+		// An odd item stays on this level
+		int kept = size % 2;
+		int offset = kept + (this.oddCompaction ? 1 : 0);
+		this.oddCompaction = !this.oddCompaction;
+		for (int i = offset; i < size; i += 2) {
+			this.append(h + 1, level[i]);
+		}
+		this.sizes[h] = kept;
+	}
+
+	/*
+	 * Sorts the values, keeping the weights in step
+	 */
+	private static void sort(double[] values, long[] weights) {
+		Integer[] order = new Integer[values.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final double[] keys = values;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(keys[a], keys[b]);
+			}
+		});
+		double[] sortedValues = new double[values.length];
+		long[] sortedWeights = new long[weights.length];
+		for (int i = 0; i < order.length; i++) {
+			sortedValues[i] = values[order[i]];
+			sortedWeights[i] = weights[order[i]];
+		}
+		System.arraycopy(sortedValues, 0, values, 0, values.length);
+		System.arraycopy(sortedWeights, 0, weights, 0, weights.length);
+	}
+}
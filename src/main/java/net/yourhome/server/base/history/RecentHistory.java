@@ -0,0 +1,70 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * RecentValues of every series that changed since the server started. It is
+ * fed with the same events as the HistoryWriter, so REALTIME history
+ * requests whose window fits in the ring are answered from memory instead
+ * of SQLite.
+ */
+public class RecentHistory {
+	public static final int DEFAULT_DEPTH = 200;
+
+	private final ConcurrentHashMap<String, RecentValues> series = new ConcurrentHashMap<String, RecentValues>();
+	private volatile int depth = RecentHistory.DEFAULT_DEPTH;
+
+	public void add(HistoryEvent event) {
+		String key = event.getSeriesKey();
+		RecentValues values = this.series.get(key);
+		if (values == null) {
+			this.series.putIfAbsent(key, new RecentValues(this.depth));
+			values = this.series.get(key);
+		}
+		values.setUnit(event.getUnit());
+		values.add(event.getTime() / 1000L, event.getValueDouble());
+	}
+
+	public RecentValues get(ControlIdentifiers controlIdentifiers) {
+		return this.series.get(HistorySeries.getKey(controlIdentifiers.getControllerIdentifier().convert(), controlIdentifiers.getNodeIdentifier(), controlIdentifiers.getValueIdentifier()));
+	}
+
+	public int getDepth() {
+		return this.depth;
+	}
+
+	public void setDepth(int depth) {
+		this.depth = Math.max(1, depth);
+		for (RecentValues values : this.series.values()) {
+			values.resize(this.depth);
+		}
+	}
+}
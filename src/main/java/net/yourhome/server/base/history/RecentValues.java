@@ -0,0 +1,143 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+/*
+ * Most recent values of one series in a ring of primitive arrays, newest
+ * value at head - 1. Times are epoch seconds like in the history tables.
+ * Windows hold one value per second, the newest, like HistoryQuery.
+ */
+public class RecentValues {
+	private long[] times;
+	private double[] values;
+	private int head = 0;
+	private int count = 0;
+	private volatile String unit;
+
+	public RecentValues(int depth) {
+		this.times = new long[Math.max(1, depth)];
+		this.values = new double[Math.max(1, depth)];
+	}
+
+	public synchronized void add(long time, double value) {
+		this.times[this.head] = time;
+		this.values[this.head] = value;
+		this.head = (this.head + 1) % this.times.length;
+		if (this.count < this.times.length) {
+			this.count++;
+		}
+	}
+
+	/*
+	 * Changes the depth, keeping the newest values that still fit
+	 */
+	public synchronized void resize(int depth) {
+		depth = Math.max(1, depth);
+		if (depth == this.times.length) {
+			return;
+		}
+		int keep = Math.min(this.count, depth);
+		long[] newTimes = new long[depth];
+		double[] newValues = new double[depth];
+		// Oldest kept value first
+		for (int i = 0; i < keep; i++) {
+			int index = this.index(keep - 1 - i);
+			newTimes[i] = this.times[index];
+			newValues[i] = this.values[index];
+		}
+		this.times = newTimes;
+		this.values = newValues;
+		this.count = keep;
+		this.head = keep % depth;
+	}
+
+	/*
+	 * Position of the n-th newest value
+	 */
+	private int index(int n) {
+		int index = this.head - 1 - n;
+		return index < 0 ? index + this.times.length : index;
+	}
+
+	/*
+	 * Seconds offset..offset+amount counted from the newest, newest first.
+	 * Null when the ring does not hold the whole window.
+	 */
+	public synchronized HistoryPoints get(int offset, int amount) {
+		return this.get(0, offset, amount);
+	}
+
+	/*
+	 * The newest amount seconds before the given time, newest first. Null
+	 * when the ring does not hold the whole window.
+	 */
+	public synchronized HistoryPoints getBefore(long before, int amount) {
+		int n = 0;
+		while (n < this.count && this.times[this.index(n)] >= before) {
+			n++;
+		}
+		return this.get(n, 0, amount);
+	}
+
+	/*
+	 * Skips offset seconds from the n-th newest value on
+	 */
+	private HistoryPoints get(int start, int offset, int amount) {
+		if (offset < 0 || amount < 0) {
+			return null;
+		}
+		HistoryPoints points = new HistoryPoints(Math.max(1, amount));
+		int seconds = 0;
+		for (int n = start; n < this.count && points.size() < amount; n++) {
+			int index = this.index(n);
+			if (n > start && this.times[index] == this.times[this.index(n - 1)]) {
+				continue;
+			}
+			seconds++;
+			if (seconds > offset) {
+				points.add(this.times[index], this.values[index]);
+			}
+		}
+		return points.size() < amount ? null : points;
+	}
+
+	public synchronized int size() {
+		return this.count;
+	}
+
+	public synchronized int getDepth() {
+		return this.times.length;
+	}
+
+	public String getUnit() {
+		return this.unit;
+	}
+
+	public void setUnit(String unit) {
+		this.unit = unit;
+	}
+}
@@ -0,0 +1,167 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+ * Aggregate of one series over one rollup bucket. Buckets are mergeable, so
+ * a bucket can be built up from several insert batches.
+ */
+public class RollupBucket {
+	private final int seriesId;
+	private final RollupPeriod period;
+	private final long bucket;
+
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	private double sum = 0;
+	private long count = 0;
+	private double first;
+	private long firstTime = Long.MAX_VALUE;
+	private double last;
+	private long lastTime = Long.MIN_VALUE;
+
+	public RollupBucket(int seriesId, RollupPeriod period, long bucket) {
+		this.seriesId = seriesId;
+		this.period = period;
+		this.bucket = bucket;
+	}
+
+	public void add(long time, double value) {
+		this.min = Math.min(this.min, value);
+		this.max = Math.max(this.max, value);
+		this.sum += value;
+		this.count++;
+		if (time < this.firstTime) {
+			this.firstTime = time;
+			this.first = value;
+		}
+		if (time >= this.lastTime) {
+			this.lastTime = time;
+			this.last = value;
+		}
+	}
+
+	public void merge(RollupBucket other) {
+		if (other.count == 0) {
+			return;
+		}
+		this.min = Math.min(this.min, other.min);
+		this.max = Math.max(this.max, other.max);
+		this.sum += other.sum;
+		this.count += other.count;
+		if (other.firstTime < this.firstTime) {
+			this.firstTime = other.firstTime;
+			this.first = other.first;
+		}
+		if (other.lastTime >= this.lastTime) {
+			this.lastTime = other.lastTime;
+			this.last = other.last;
+		}
+	}
+
+	public static RollupBucket read(ResultSet row) throws SQLException {
+		RollupBucket bucket = new RollupBucket(row.getInt("series_id"), RollupPeriod.fromCode(row.getInt("period")), row.getLong("bucket"));
+		bucket.min = row.getDouble("min");
+		bucket.max = row.getDouble("max");
+		bucket.sum = row.getDouble("sum");
+		bucket.count = row.getLong("count");
+		bucket.first = row.getDouble("first");
+		bucket.firstTime = row.getLong("first_time");
+		bucket.last = row.getDouble("last");
+		bucket.lastTime = row.getLong("last_time");
+		return bucket;
+	}
+
+	/*
+	 * Binds the parameters of HistoryRollups.REPLACE_ROLLUP
+	 */
+	public void bind(PreparedStatement stm) throws SQLException {
+		stm.setInt(1, this.seriesId);
+		stm.setInt(2, this.period.getCode());
+		stm.setLong(3, this.bucket);
+		stm.setDouble(4, this.min);
+		stm.setDouble(5, this.max);
+		stm.setDouble(6, this.sum);
+		stm.setLong(7, this.count);
+		stm.setDouble(8, this.first);
+		stm.setLong(9, this.firstTime);
+		stm.setDouble(10, this.last);
+		stm.setLong(11, this.lastTime);
+	}
+
+	public int getSeriesId() {
+		return this.seriesId;
+	}
+
+	public RollupPeriod getPeriod() {
+		return this.period;
+	}
+
+	public long getBucket() {
+		return this.bucket;
+	}
+
+	public double getMin() {
+		return this.min;
+	}
+
+	public double getMax() {
+		return this.max;
+	}
+
+	public double getSum() {
+		return this.sum;
+	}
+
+	public long getCount() {
+		return this.count;
+	}
+
+	public double getAverage() {
+		return this.count == 0 ? 0 : this.sum / this.count;
+	}
+
+	public double getFirst() {
+		return this.first;
+	}
+
+	public long getFirstTime() {
+		return this.firstTime;
+	}
+
+	public double getLast() {
+		return this.last;
+	}
+
+	public long getLastTime() {
+		return this.lastTime;
+	}
+}
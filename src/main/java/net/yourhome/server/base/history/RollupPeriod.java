@@ -0,0 +1,144 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/*
+ * Bucket sizes of the History_Rollups table. Buckets are aligned in UTC, the
+ * same way the strftime based history queries always grouped: days start at
+ * midnight, weeks on monday and months on the first day.
+ */
+public enum RollupPeriod {
+	HOUR(0), DAY(1), WEEK(2), MONTH(3);
+
+	private static final long SECONDS_PER_HOUR = 3600L;
+	private static final long SECONDS_PER_DAY = 86400L;
+	private static final TimeZone UTC = TimeZone.getTimeZone("GMT");
+
+	private final int code;
+
+	private RollupPeriod(int code) {
+		this.code = code;
+	}
+
+	public int getCode() {
+		return this.code;
+	}
+
+	public static RollupPeriod fromCode(int code) {
+		for (RollupPeriod period : RollupPeriod.values()) {
+			if (period.code == code) {
+				return period;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Bucket for the period type of a ValueHistoryRequest, null for REALTIME
+	 */
+	public static RollupPeriod fromPeriodType(String periodType) {
+		if ("DAILY".equals(periodType)) {
+			return DAY;
+		} else if ("WEEKLY".equals(periodType)) {
+			return WEEK;
+		} else if ("MONTHLY".equals(periodType)) {
+			return MONTH;
+		}
+		return null;
+	}
+
+	/*
+	 * SQL expression that calculates the bucket of an epoch second column
+	 */
+	public String getBucketExpression(String column) {
+		switch (this) {
+		case HOUR:
+			return "(" + column + " / 3600) * 3600";
+		case DAY:
+			return "(" + column + " / 86400) * 86400";
+		case WEEK:
+			return "(" + column + " / 86400 - (" + column + " / 86400 + 3) % 7) * 86400";
+		default:
+			return "cast(strftime('%s', " + column + ", 'unixepoch', 'start of month') as integer)";
+		}
+	}
+
+	/*
+	 * Start of the bucket containing the given epoch second
+	 */
+	public long getBucket(long time) {
+		switch (this) {
+		case HOUR:
+			return Math.floorDiv(time, SECONDS_PER_HOUR) * SECONDS_PER_HOUR;
+		case DAY:
+			return Math.floorDiv(time, SECONDS_PER_DAY) * SECONDS_PER_DAY;
+		case WEEK:
+			// 1970-01-01 was a thursday
+			long day = Math.floorDiv(time, SECONDS_PER_DAY);
+			return (day - Math.floorMod(day + 3, 7)) * SECONDS_PER_DAY;
+		default:
+			Calendar calendar = Calendar.getInstance(RollupPeriod.UTC);
+			calendar.setTimeInMillis(time * 1000L);
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MILLISECOND, 0);
+			return calendar.getTimeInMillis() / 1000L;
+		}
+	}
+
+	/*
+	 * End of the buckets that start before the given time
+	 */
+	public long getBucketsEnd(long time) {
+		long bucket = this.getBucket(time);
+		return bucket == time ? time : this.getNextBucket(bucket);
+	}
+
+	/*
+	 * Start of the bucket following the one that starts at the given bucket
+	 */
+	public long getNextBucket(long bucket) {
+		switch (this) {
+		case HOUR:
+			return bucket + SECONDS_PER_HOUR;
+		case DAY:
+			return bucket + SECONDS_PER_DAY;
+		case WEEK:
+			return bucket + 7 * SECONDS_PER_DAY;
+		default:
+			Calendar calendar = Calendar.getInstance(RollupPeriod.UTC);
+			calendar.setTimeInMillis(bucket * 1000L);
+			calendar.add(Calendar.MONTH, 1);
+			return calendar.getTimeInMillis() / 1000L;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import java.util.List;
+
+/*
+ * Decides which value changes of one series are stored.
+ *
+ * First an exception deadband drops changes that stay within the deadband
+ * of the last passed value. When a value leaves the deadband the last
+ * dropped value is passed as well, so a long flat period followed by a step
+ * is not turned into a slow ramp.
+ *
+ * The passed values then go through swinging door trending: a value is held
+ * back as long as a straight line from the last stored value can pass all
+ * held values within the deviation. When that is no longer possible (the
+ * doors close) the held value is stored and becomes the new pivot. Linear
+ * interpolation between stored values is therefore never further than the
+ * deviation from a passed value.
+ *
+ * The heartbeat stores the held value and the current one when the last
+ * stored value is older than the heartbeat interval.
+ */
+public class SeriesCompressor {
+	private CompressionSettings settings;
+
+	private HistoryEvent stored;
+	private HistoryEvent held;
+	private HistoryEvent passed;
+	private HistoryEvent dropped;
+	// Slopes of the doors in value per millisecond
+	private double upperDoor;
+	private double lowerDoor;
+
+	public SeriesCompressor(CompressionSettings settings) {
+		this.settings = settings;
+	}
+
+	/*
+	 * Adds the events that have to be stored to store
+	 */
+	public synchronized void offer(HistoryEvent event, List<HistoryEvent> store) {
+		if (this.stored == null) {
+			this.store(event, store);
+			this.passed = event;
+			return;
+		}
+
+		int heartbeat = this.settings.getHeartbeat();
+		if (heartbeat > 0 && event.getTime() - this.stored.getTime() >= heartbeat * 1000L) {
+			this.flush(store);
+			this.store(event, store);
+			this.passed = event;
+			this.dropped = null;
+			return;
+		}
+
+		// Exception deadband
+		double deadband = this.settings.getDeadband(this.passed.getValueDouble());
+		if (Math.abs(event.getValueDouble() - this.passed.getValueDouble()) <= deadband) {
+			this.dropped = event;
+			return;
+		}
+		if (this.dropped != null) {
+			this.compress(this.dropped, store);
+			this.dropped = null;
+		}
+		this.compress(event, store);
+		this.passed = event;
+	}
+
+	private void compress(HistoryEvent event, List<HistoryEvent> store) {
+		double deviation = this.settings.getDeviation();
+		if (deviation <= 0) {
+			this.store(event, store);
+			return;
+		}
+		long elapsed = event.getTime() - this.stored.getTime();
+		if (elapsed <= 0) {
+			// Same time as the pivot, nothing to draw a line through
+			this.held = event;
+			return;
+		}
+		double upper = (event.getValueDouble() - (this.stored.getValueDouble() + deviation)) / elapsed;
+		double lower = (event.getValueDouble() - (this.stored.getValueDouble() - deviation)) / elapsed;
+		if (this.held == null) {
+			this.upperDoor = upper;
+			this.lowerDoor = lower;
+			this.held = event;
+			return;
+		}
+		double upperDoor = Math.max(this.upperDoor, upper);
+		double lowerDoor = Math.min(this.lowerDoor, lower);
+		if (upperDoor <= lowerDoor) {
+			this.upperDoor = upperDoor;
+			this.lowerDoor = lowerDoor;
+			this.held = event;
+			return;
+		}
+
+		// The doors closed: store the held value and restart from there
+		this.store(this.held, store);
+		this.compress(event, store);
+	}
+
+	private void store(HistoryEvent event, List<HistoryEvent> store) {
+		store.add(event);
+		this.stored = event;
+		this.held = null;
+	}
+
+	/*
+	 * Stores the value that is held back, used on shutdown and when the
+	 * settings change
+	 */
+	public synchronized void flush(List<HistoryEvent> store) {
+		if (this.held != null) {
+			this.store(this.held, store);
+		} else if (this.dropped != null && this.dropped.getTime() > this.stored.getTime()) {
+			// Keep the end of a flat period
+			this.store(this.dropped, store);
+		}
+		this.dropped = null;
+	}
+
+	public synchronized CompressionSettings getSettings() {
+		return this.settings;
+	}
+
+	public synchronized void setSettings(CompressionSettings settings, List<HistoryEvent> store) {
+		this.flush(store);
+		this.settings = settings;
+	}
+}
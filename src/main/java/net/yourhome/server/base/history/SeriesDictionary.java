@@ -0,0 +1,152 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * In-memory copy of the History_Series table of one database. The table is
+ * small (one row per logged value), so it is loaded completely on startup and
+ * only new series go to the database.
+ */
+public class SeriesDictionary {
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final Connection connection;
+	private final Map<String, HistorySeries> seriesByKey = new ConcurrentHashMap<String, HistorySeries>();
+
+	public SeriesDictionary(Connection connection) {
+		this.connection = connection;
+		this.reload();
+	}
+
+	public void reload() {
+		Statement stmt = null;
+		try {
+			stmt = this.connection.createStatement();
+			ResultSet result = stmt.executeQuery("SELECT series_id, controller_identifier, node_identifier, value_identifier, unit FROM History_Series");
+			while (result.next()) {
+				HistorySeries series = new HistorySeries(result.getInt("series_id"), result.getString("controller_identifier"), result.getString("node_identifier"), result.getString("value_identifier"), result.getString("unit"));
+				this.seriesByKey.put(series.getKey(), series);
+			}
+			result.close();
+		} catch (SQLException e) {
+			SeriesDictionary.log.error("Could not load history series", e);
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * Lookup only, returns null when nothing was ever logged for the value.
+	 */
+	public HistorySeries get(ControlIdentifiers controlIdentifiers) {
+		return this.get(controlIdentifiers.getControllerIdentifier().convert(), controlIdentifiers.getNodeIdentifier(), controlIdentifiers.getValueIdentifier());
+	}
+
+	public HistorySeries get(String controllerIdentifier, String nodeIdentifier, String valueIdentifier) {
+		return this.seriesByKey.get(HistorySeries.getKey(controllerIdentifier, nodeIdentifier, valueIdentifier));
+	}
+
+	public Collection<HistorySeries> getAll() {
+		return this.seriesByKey.values();
+	}
+
+	public HistorySeries getOrCreate(String controllerIdentifier, String nodeIdentifier, String valueIdentifier, String unit) throws SQLException {
+		String key = HistorySeries.getKey(controllerIdentifier, nodeIdentifier, valueIdentifier);
+		HistorySeries series = this.seriesByKey.get(key);
+		if (series == null) {
+			synchronized (this.connection) {
+				series = this.seriesByKey.get(key);
+				if (series == null) {
+					series = this.insert(controllerIdentifier, nodeIdentifier, valueIdentifier, unit);
+					this.seriesByKey.put(key, series);
+				}
+			}
+		} else if (unit != null && !unit.equals(series.getUnit())) {
+			this.updateUnit(series, unit);
+		}
+		return series;
+	}
+
+	private HistorySeries insert(String controllerIdentifier, String nodeIdentifier, String valueIdentifier, String unit) throws SQLException {
+		// NULL identifiers are never equal in a UNIQUE constraint, so check with IS
+		PreparedStatement insert = this.connection.prepareStatement("INSERT INTO History_Series (controller_identifier, node_identifier, value_identifier, unit)" + " SELECT ?,?,?,? WHERE NOT EXISTS (SELECT 1 FROM History_Series WHERE controller_identifier = ? AND node_identifier IS ? AND value_identifier IS ?)");
+		try {
+			insert.setString(1, controllerIdentifier);
+			insert.setString(2, nodeIdentifier);
+			insert.setString(3, valueIdentifier);
+			insert.setString(4, unit);
+			insert.setString(5, controllerIdentifier);
+			insert.setString(6, nodeIdentifier);
+			insert.setString(7, valueIdentifier);
+			insert.executeUpdate();
+		} finally {
+			insert.close();
+		}
+		PreparedStatement select = this.connection.prepareStatement("SELECT series_id, unit FROM History_Series WHERE controller_identifier = ? AND node_identifier IS ? AND value_identifier IS ?");
+		try {
+			select.setString(1, controllerIdentifier);
+			select.setString(2, nodeIdentifier);
+			select.setString(3, valueIdentifier);
+			ResultSet result = select.executeQuery();
+			if (!result.next()) {
+				throw new SQLException("Series " + controllerIdentifier + "/" + nodeIdentifier + "/" + valueIdentifier + " could not be created");
+			}
+			return new HistorySeries(result.getInt("series_id"), controllerIdentifier, nodeIdentifier, valueIdentifier, result.getString("unit"));
+		} finally {
+			select.close();
+		}
+	}
+
+	private void updateUnit(HistorySeries series, String unit) throws SQLException {
+		series.setUnit(unit);
+		PreparedStatement update = this.connection.prepareStatement("UPDATE History_Series SET unit = ? WHERE series_id = ?");
+		try {
+			update.setString(1, unit);
+			update.setInt(2, series.getId());
+			update.executeUpdate();
+		} finally {
+			update.close();
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+import net.yourhome.server.base.ReadConnectionPool;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+ * The SQLite engine: values are written to the weekly database by the
+ * HistoryWriter and copied to the archive by the HistoryTiering. Queries go
+ * to the archive when the weekly database does not hold enough history, and
+ * merge what is not committed or not tiered yet. Scans of the archive also
+ * read the segments of the ColdHistory.
+ *
+ * Reads that need both databases check out the archive connection before
+ * the weekly one.
+ */
+public class SqliteHistoryStore implements HistoryStore {
+	private final String SELECT_RANGE = "SELECT time, value_d FROM History_Values WHERE series_id = ? AND time >= ? AND time < ? ORDER BY time";
+
+	private final HistoryWriter writer;
+	private final SeriesDictionary weeklySeries;
+	private final ReadConnectionPool weeklyReaders;
+	private final SeriesDictionary archiveSeries;
+	private final ReadConnectionPool archiveReaders;
+	private final HistoryRollups rollups;
+	private final HistoryTiering tiering;
+	private final ColdHistory coldHistory;
+
+	public SqliteHistoryStore(HistoryWriter writer, SeriesDictionary weeklySeries, ReadConnectionPool weeklyReaders, SeriesDictionary archiveSeries, ReadConnectionPool archiveReaders, HistoryRollups rollups, HistoryTiering tiering, ColdHistory coldHistory) {
+		this.writer = writer;
+		this.weeklySeries = weeklySeries;
+		this.weeklyReaders = weeklyReaders;
+		this.archiveSeries = archiveSeries;
+		this.archiveReaders = archiveReaders;
+		this.rollups = rollups;
+		this.tiering = tiering;
+		this.coldHistory = coldHistory;
+	}
+
+	@Override
+	public boolean append(HistoryEvent event) {
+		return this.writer.enqueue(event);
+	}
+
+	@Override
+	public HistoryPoints scan(ControlIdentifiers controlIdentifiers, long from, long to) throws IOException {
+		HistorySeries series = this.archiveSeries.get(controlIdentifiers);
+		boolean archive = series != null;
+		if (!archive) {
+			series = this.weeklySeries.get(controlIdentifiers);
+		}
+		if (series == null) {
+			return new HistoryPoints(1);
+		}
+		PendingHistory pending = this.writer.getPendingHistory();
+		ReadConnectionPool.Reader archiveReader = null;
+		ReadConnectionPool.Reader weeklyReader = null;
+		try {
+			if (archive) {
+				archiveReader = this.archiveReaders.acquire();
+			}
+			weeklyReader = this.weeklyReaders.acquire();
+			pending.readLock().lock();
+			try {
+				HistoryPoints stored = this.select(archive ? archiveReader.getStatements() : weeklyReader.getStatements(), series, from, to);
+				HistoryPoints later = pending.get(series);
+				if (archive) {
+					stored = HistoryPoints.merge(this.coldHistory.scan(series.getId(), from, to), stored);
+					later = HistoryPoints.merge(this.tiering.getUntiered(series, weeklyReader.getStatements()), later);
+				}
+				return HistoryPoints.merge(stored, later.between(from, to));
+			} finally {
+				pending.readLock().unlock();
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		} finally {
+			this.archiveReaders.release(archiveReader);
+			this.weeklyReaders.release(weeklyReader);
+		}
+	}
+
+	private HistoryPoints select(StatementCache statements, HistorySeries series, long from, long to) throws SQLException {
+		PreparedStatement stm = statements.borrow(this.SELECT_RANGE);
+		HistoryPoints points = new HistoryPoints();
+		try {
+			stm.setInt(1, series.getId());
+			stm.setLong(2, from);
+			stm.setLong(3, to);
+			ResultSet result = stm.executeQuery();
+			try {
+				while (result.next()) {
+					points.add(result.getLong(1), result.getDouble(2));
+				}
+			} finally {
+				result.close();
+			}
+		} finally {
+			statements.release(this.SELECT_RANGE, stm);
+		}
+		return points;
+	}
+
+	@Override
+	public HistoryCursor cursor(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, long from, long to) throws IOException {
+		HistorySeries series = this.archiveSeries.get(controlIdentifiers);
+		boolean archive = series != null;
+		if (!archive) {
+			series = this.weeklySeries.get(controlIdentifiers);
+		}
+		if (series == null) {
+			return HistoryCursors.of(new HistoryPoints(1));
+		}
+		if (operation == null) {
+			operation = HistoryOperation.VALUE;
+		}
+		long rawFrom = period == null ? from : period.getBucket(from);
+		long rawTo = period == null ? to : period.getBucketsEnd(to);
+		PendingHistory pending = this.writer.getPendingHistory();
+		HistoryCursor rollupCursor = null;
+		HistoryCursor valueCursor = null;
+		Connection connection = null;
+		ReadConnectionPool.Reader weeklyReader = null;
+		boolean opened = false;
+		try {
+			// An export can run for minutes, it reads on a connection of its own instead of one of the pool
+			connection = (archive ? this.archiveReaders : this.weeklyReaders).openConnection();
+			if (archive) {
+				weeklyReader = this.weeklyReaders.acquire();
+			}
+			// The statements start reading under the lock, so they see the same state as the pending values
+			pending.readLock().lock();
+			try {
+				HistoryPoints later = pending.get(series);
+				if (archive) {
+					later = HistoryPoints.merge(this.tiering.getUntiered(series, weeklyReader.getStatements()), later);
+				}
+				later = later.between(rawFrom, rawTo);
+				if (period != null && archive && this.rollups.isBackfilled()) {
+					// Buckets before the first value that is not in the archive yet come from the rollups
+					long rollupTo = later.isEmpty() ? rawTo : Math.min(rawTo, period.getBucket(later.getTime(0)));
+					rollupCursor = this.select(connection, "SELECT bucket, " + operation.getRollupExpression() + " FROM History_Rollups WHERE series_id = ? AND period = " + period.getCode() + " AND bucket >= ? AND bucket < ? ORDER BY bucket", series, rawFrom, rollupTo);
+					rawFrom = rollupTo;
+				}
+				if (rawFrom < rawTo) {
+					valueCursor = this.select(connection, this.SELECT_RANGE, series, rawFrom, rawTo);
+					if (archive) {
+						valueCursor = HistoryCursors.merge(this.coldHistory.cursor(series.getId(), rawFrom, rawTo), valueCursor);
+					}
+					valueCursor = HistoryCursors.merge(valueCursor, HistoryCursors.of(later.between(rawFrom, rawTo)));
+				} else {
+					valueCursor = HistoryCursors.of(new HistoryPoints(1));
+				}
+			} finally {
+				pending.readLock().unlock();
+			}
+			if (period != null) {
+				valueCursor = HistoryCursors.aggregate(valueCursor, period, operation);
+			}
+			HistoryCursor cursor = HistoryCursors.closing(rollupCursor == null ? valueCursor : HistoryCursors.concat(rollupCursor, valueCursor), connection);
+			opened = true;
+			return cursor;
+		} catch (SQLException e) {
+			throw new IOException(e);
+		} finally {
+			this.weeklyReaders.release(weeklyReader);
+			if (!opened) {
+				if (rollupCursor != null) {
+					rollupCursor.close();
+				}
+				if (valueCursor != null) {
+					valueCursor.close();
+				}
+				if (connection != null) {
+					try {
+						connection.close();
+					} catch (SQLException e) {
+					}
+				}
+			}
+		}
+	}
+
+	private HistoryCursor select(Connection connection, String sql, HistorySeries series, long from, long to) throws SQLException {
+		PreparedStatement stm = connection.prepareStatement(sql);
+		try {
+			stm.setFetchSize(1000);
+			stm.setInt(1, series.getId());
+			stm.setLong(2, from);
+			stm.setLong(3, to);
+			return HistoryCursors.of(stm, stm.executeQuery());
+		} catch (SQLException e) {
+			stm.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public HistoryPoints query(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, int offset, int amount) throws IOException {
+		return this.query(controlIdentifiers, period, operation, null, offset, amount);
+	}
+
+	@Override
+	public HistoryPoints queryBefore(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, long before, int amount) throws IOException {
+		return this.query(controlIdentifiers, period, operation, before, 0, amount);
+	}
+
+	private HistoryPoints query(ControlIdentifiers controlIdentifiers, RollupPeriod period, HistoryOperation operation, Long before, int offset, int amount) throws IOException {
+		// Aggregations are answered from the rollups once they cover all history
+		boolean useRollups = period != null && this.rollups.isBackfilled();
+		boolean archive = useRollups;
+		if (!useRollups && period != null) {
+			// A page that does not start at the newest bucket can be older than the weekly database
+			switch (period) {
+			case DAY:
+				archive = amount > 31 && offset == 0 && before == null;
+				break;
+			case WEEK:
+				archive = amount > 4 && offset == 0 && before == null;
+				break;
+			default:
+				archive = true;
+			}
+		}
+		HistorySeries series = archive ? this.archiveSeries.get(controlIdentifiers) : null;
+		if (series == null) {
+			// A new series is only in the weekly database until it is tiered
+			archive = false;
+			useRollups = false;
+			series = this.weeklySeries.get(controlIdentifiers);
+		}
+		if (series == null) {
+			return new HistoryPoints(1);
+		}
+
+		HistoryQuery query = HistoryQuery.forSeries(series).period(period).operation(operation).fromRollups(useRollups).pending(this.writer.getPendingHistory()).limit(offset, amount);
+		if (before != null) {
+			query.before(before);
+		}
+		ReadConnectionPool.Reader archiveReader = null;
+		ReadConnectionPool.Reader weeklyReader = null;
+		try {
+			if (archive) {
+				archiveReader = this.archiveReaders.acquire();
+			}
+			weeklyReader = this.weeklyReaders.acquire();
+			if (archive) {
+				query.untiered(this.tiering, weeklyReader.getStatements());
+			}
+			return query.execute(archive ? archiveReader.getStatements() : weeklyReader.getStatements());
+		} catch (SQLException e) {
+			throw new IOException(e);
+		} finally {
+			this.archiveReaders.release(archiveReader);
+			this.weeklyReaders.release(weeklyReader);
+		}
+	}
+
+	@Override
+	public String getUnit(ControlIdentifiers controlIdentifiers) {
+		HistorySeries series = this.weeklySeries.get(controlIdentifiers);
+		if (series == null) {
+			series = this.archiveSeries.get(controlIdentifiers);
+		}
+		return series == null ? null : series.getUnit();
+	}
+
+	@Override
+	public void flush() {
+		this.writer.flush();
+	}
+
+	/*
+	 * The writer and the connections belong to the DatabaseConnector
+	 */
+	@Override
+	public void close() {
+		this.writer.flush();
+	}
+}
@@ -0,0 +1,100 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.history;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Keeps prepared statements of one connection for reuse, so SQLite does not
+ * parse the same query again on every call. A statement is borrowed by one
+ * thread at a time and has to be released after its result set is read.
+ */
+public class StatementCache {
+	private static Logger log = Logger.getLogger("net.yourhome.server.base.Database");
+
+	private final Connection connection;
+	private final Map<String, Queue<PreparedStatement>> statements = new ConcurrentHashMap<String, Queue<PreparedStatement>>();
+
+	public StatementCache(Connection connection) {
+		this.connection = connection;
+	}
+
+	public Connection getConnection() {
+		return this.connection;
+	}
+
+	public PreparedStatement borrow(String sql) throws SQLException {
+		Queue<PreparedStatement> available = this.statements.get(sql);
+		if (available != null) {
+			PreparedStatement stm = available.poll();
+			if (stm != null) {
+				return stm;
+			}
+		}
+		return this.connection.prepareStatement(sql);
+	}
+
+	public void release(String sql, PreparedStatement stm) {
+		try {
+			stm.clearParameters();
+		} catch (SQLException e) {
+			this.close(stm);
+			return;
+		}
+		Queue<PreparedStatement> available = this.statements.get(sql);
+		if (available == null) {
+			this.statements.putIfAbsent(sql, new ConcurrentLinkedQueue<PreparedStatement>());
+			available = this.statements.get(sql);
+		}
+		available.offer(stm);
+	}
+
+	public void clear() {
+		for (Queue<PreparedStatement> available : this.statements.values()) {
+			PreparedStatement stm;
+			while ((stm = available.poll()) != null) {
+				this.close(stm);
+			}
+		}
+	}
+
+	private void close(PreparedStatement stm) {
+		try {
+			stm.close();
+		} catch (SQLException e) {
+			StatementCache.log.debug("Could not close statement", e);
+		}
+	}
+}
@@ -30,10 +30,7 @@ import net.yourhome.server.base.DatabaseConnector;
 import net.yourhome.server.base.rules.scenes.SceneManager;
 import org.apache.log4j.Logger;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -41,7 +38,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class RuleManager {
-	private static DatabaseConnector db = DatabaseConnector.getInstance();
+	private static RuleRepository rules = new RuleRepository(DatabaseConnector.getInstance());
 	private static Logger log = Logger.getLogger(SceneManager.class);
 	private static Map<Integer, Rule> allRulesMap = null;
 
@@ -67,18 +64,9 @@ public class RuleManager {
 		if (RuleManager.allRulesMap == null) {
 			RuleManager.allRulesMap = new ConcurrentHashMap<Integer, Rule>();
 
-			ResultSet ruleResult = RuleManager.db.executePreparedStatement(RuleManager.db.prepareStatement("select * from Rules"));
-			while (ruleResult.next()) {
-				try {
-					Rule resultRule = new Rule(new JSONObject(ruleResult.getString("json")));
-					resultRule.setId(ruleResult.getInt("id"));
-					resultRule.setActive(ruleResult.getBoolean("active"));
-					RuleManager.allRulesMap.put(resultRule.getId(), resultRule);
-				} catch (JSONException | SQLException e) {
-					RuleManager.log.error("[RuleManager] Failed to instantiate rule " + ruleResult.getInt("id"), e);
-				}
+			for (Rule resultRule : RuleManager.rules.getAll()) {
+				RuleManager.allRulesMap.put(resultRule.getId(), resultRule);
 			}
-			ruleResult.close();
 		}
 		return new ArrayList<Rule>(RuleManager.allRulesMap.values());
 	}
@@ -86,11 +74,8 @@ public class RuleManager {
 	public static Rule getRule(int ruleId) throws SQLException, JSONException {
 		Rule resultRule = RuleManager.allRulesMap.get(ruleId);
 		if (resultRule == null) {
-			ResultSet ruleResult = RuleManager.db.executeSelect("select * from Rules where id = " + ruleId);
-			if (ruleResult.next()) {
-				resultRule = new Rule(new JSONObject(ruleResult.getString("json")));
-				resultRule.setActive(ruleResult.getBoolean("active"));
-				resultRule.setId(ruleId);
+			resultRule = RuleManager.rules.get(ruleId);
+			if (resultRule != null) {
 				RuleManager.allRulesMap.put(resultRule.getId(), resultRule);
 			}
 		}
@@ -101,12 +86,7 @@ public class RuleManager {
 	public static int save(Rule rule) throws SQLException {
 		if (rule.getId() != 0) {
 			// Update Scene details
-			PreparedStatement preparedStatement = RuleManager.db.prepareStatement("update Rules SET name=?, json=? where id=?");
-			preparedStatement.setString(1, rule.getName());
-			preparedStatement.setString(2, rule.getSourceJsonObject().toString());
-			preparedStatement.setInt(3, rule.getId());
-
-			RuleManager.db.executePreparedUpdate(preparedStatement);
+			RuleManager.rules.update(rule);
 
 			try {
 				Rule originalRule = RuleManager.getRule(rule.getId());
@@ -119,12 +99,7 @@ public class RuleManager {
 		} else {
 
 			// Rules
-			JSONObject ruleJson = rule.getSourceJsonObject();
-			PreparedStatement preparedStatement = RuleManager.db.prepareStatement("insert into Rules ('name', 'json', 'active') VALUES (?,?,?)");
-			preparedStatement.setString(1, rule.getName());
-			preparedStatement.setString(2, ruleJson.toString().toString());
-			preparedStatement.setBoolean(3, true);
-			rule.setId(RuleManager.db.executePreparedUpdate(preparedStatement));
+			rule.setId(RuleManager.rules.insert(rule));
 
 			/*
 			 * scene.setId(db.insertConfigurationValue(
@@ -156,16 +131,13 @@ public class RuleManager {
 		// TODO: Deschedule all listeners !
 
 		// Delete db & cache
-		RuleManager.db.executeQuery("DELETE FROM Rules WHERE id = '" + rule.getId() + "'");
+		RuleManager.rules.delete(rule.getId());
 		rule.unsetTriggers();
 		RuleManager.allRulesMap.remove(rule.getId());
 	}
 
 	public static void setActive(Rule rule, boolean active) throws SQLException {
-		PreparedStatement preparedStatement = RuleManager.db.prepareStatement("update Rules SET active=? where id=?");
-		preparedStatement.setBoolean(1, active);
-		preparedStatement.setInt(2, rule.getId());
-		RuleManager.db.executePreparedUpdate(preparedStatement);
+		RuleManager.rules.setActive(rule.getId(), active);
 
 		if (!rule.isActive() && active) {
 			rule.setTriggers();
@@ -0,0 +1,96 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.rules;
+
+import net.yourhome.server.base.ConfigRepository;
+import net.yourhome.server.base.DatabaseConnector;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/*
+ * The Rules table. Rules hold their triggers, RuleManager keeps the
+ * instances in memory so nothing is cached here.
+ */
+public class RuleRepository extends ConfigRepository {
+	private static final String SELECT_ALL = "SELECT * FROM Rules ORDER BY id";
+	private static final String SELECT = "SELECT * FROM Rules WHERE id = ?";
+	private static final String INSERT = "INSERT INTO Rules (name, json, active) VALUES (?,?,?)";
+	private static final String UPDATE = "UPDATE Rules SET name = ?, json = ? WHERE id = ?";
+	private static final String UPDATE_ACTIVE = "UPDATE Rules SET active = ? WHERE id = ?";
+	private static final String DELETE = "DELETE FROM Rules WHERE id = ?";
+
+	private static Logger log = Logger.getLogger(RuleRepository.class);
+
+	private final RowReader<Rule> ruleReader = new RowReader<Rule>() {
+		@Override
+		public Rule read(ResultSet row) throws SQLException {
+			try {
+				Rule rule = new Rule(new JSONObject(row.getString("json")));
+				rule.setId(row.getInt("id"));
+				rule.setActive(row.getBoolean("active"));
+				return rule;
+			} catch (JSONException e) {
+				RuleRepository.log.error("[RuleManager] Failed to instantiate rule " + row.getInt("id"), e);
+				return null;
+			}
+		}
+	};
+
+	public RuleRepository(DatabaseConnector db) {
+		super(db);
+	}
+
+	public List<Rule> getAll() throws SQLException {
+		return this.executeQuery(RuleRepository.SELECT_ALL, this.ruleReader);
+	}
+
+	public Rule get(int ruleId) throws SQLException {
+		List<Rule> rules = this.executeQuery(RuleRepository.SELECT, this.ruleReader, ruleId);
+		return rules.isEmpty() ? null : rules.get(0);
+	}
+
+	public int insert(Rule rule) throws SQLException {
+		return this.executeInsert(RuleRepository.INSERT, rule.getName(), rule.getSourceJsonObject().toString(), true);
+	}
+
+	public boolean update(Rule rule) throws SQLException {
+		return this.executeUpdate(RuleRepository.UPDATE, rule.getName(), rule.getSourceJsonObject().toString(), rule.getId()) > 0;
+	}
+
+	public boolean setActive(int ruleId, boolean active) throws SQLException {
+		return this.executeUpdate(RuleRepository.UPDATE_ACTIVE, active, ruleId) > 0;
+	}
+
+	public boolean delete(int ruleId) throws SQLException {
+		return this.executeUpdate(RuleRepository.DELETE, ruleId) > 0;
+	}
+}
@@ -29,10 +29,7 @@ package net.yourhome.server.base.rules.scenes;
 import net.yourhome.server.base.DatabaseConnector;
 import org.apache.log4j.Logger;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -40,7 +37,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class SceneManager {
-	private static DatabaseConnector db = DatabaseConnector.getInstance();
+	private static SceneRepository scenes = new SceneRepository(DatabaseConnector.getInstance());
 	private static Logger log = Logger.getLogger(SceneManager.class);
 	private static Map<Integer, Scene> allScenesMap = null;
 
@@ -63,22 +60,10 @@ public class SceneManager {
 	public static int save(Scene scene) throws SQLException {
 		if (scene.getId() != 0) {
 			// Update Scene details
-			PreparedStatement preparedStatement = SceneManager.db.prepareStatement("update Scenes SET name=?, json=? where id=?");
-			preparedStatement.setString(1, scene.getName());
-			preparedStatement.setString(2, scene.getSourceJsonObject().toString());
-			preparedStatement.setInt(3, scene.getId());
-
-			SceneManager.db.executePreparedUpdate(preparedStatement);
+			SceneManager.scenes.update(scene);
 			SceneManager.allScenesMap.remove(scene.getId());
 		} else {
-
-			// Scenes
-			JSONObject sceneJson = scene.getSourceJsonObject();
-			PreparedStatement preparedStatement = SceneManager.db.prepareStatement("insert into Scenes ('name', 'json') VALUES (?,?)");
-			preparedStatement.setString(1, scene.getName());
-			preparedStatement.setString(2, sceneJson.toString().toString());
-
-			scene.setId(SceneManager.db.executePreparedUpdate(preparedStatement));
+			scene.setId(SceneManager.scenes.insert(scene));
 		}
 
 		SceneManager.allScenesMap.put(scene.getId(), scene);
@@ -87,7 +72,7 @@ public class SceneManager {
 
 	public static void delete(Scene scene) throws SQLException {
 		// Delete db
-		SceneManager.db.executeQuery("DELETE FROM Scenes WHERE id = '" + scene.getId() + "'");
+		SceneManager.scenes.delete(scene.getId());
 		SceneManager.allScenesMap.remove(scene.getId());
 	}
 
@@ -95,18 +80,9 @@ public class SceneManager {
 		if (SceneManager.allScenesMap == null) {
 			SceneManager.allScenesMap = new ConcurrentHashMap<Integer, Scene>();
 
-			ResultSet sceneResult = SceneManager.db.executeSelect("select * from Scenes");
-			while (sceneResult.next()) {
-				try {
-					Scene scene = new Scene(new JSONObject(sceneResult.getString("json")));
-					scene.setId(sceneResult.getInt("id"));
-					SceneManager.allScenesMap.put(scene.getId(), scene);
-
-				} catch (JSONException | SQLException e) {
-					SceneManager.log.error("Exception occured: ", e);
-				}
+			for (Scene scene : SceneManager.scenes.getAll()) {
+				SceneManager.allScenesMap.put(scene.getId(), scene);
 			}
-			sceneResult.close();
 		}
 		return new ArrayList<Scene>(SceneManager.allScenesMap.values());
 	}
@@ -115,10 +91,8 @@ public class SceneManager {
 
 		Scene resultScene = SceneManager.allScenesMap.get(sceneId);
 		if (resultScene == null) {
-			ResultSet sceneResult = SceneManager.db.executeSelect("select * from Scenes where id = " + sceneId);
-			if (sceneResult.next()) {
-				resultScene = new Scene(new JSONObject(sceneResult.getString("json")));
-				resultScene.setId(sceneId);
+			resultScene = SceneManager.scenes.get(sceneId);
+			if (resultScene != null) {
 				SceneManager.allScenesMap.put(resultScene.getId(), resultScene);
 			}
 		}
@@ -0,0 +1,90 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.rules.scenes;
+
+import net.yourhome.server.base.ConfigRepository;
+import net.yourhome.server.base.DatabaseConnector;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/*
+ * The Scenes table. Scenes are kept in memory by SceneManager, so nothing is
+ * cached here.
+ */
+public class SceneRepository extends ConfigRepository {
+	private static final String SELECT_ALL = "SELECT * FROM Scenes ORDER BY id";
+	private static final String SELECT = "SELECT * FROM Scenes WHERE id = ?";
+	private static final String INSERT = "INSERT INTO Scenes (name, json) VALUES (?,?)";
+	private static final String UPDATE = "UPDATE Scenes SET name = ?, json = ? WHERE id = ?";
+	private static final String DELETE = "DELETE FROM Scenes WHERE id = ?";
+
+	private static Logger log = Logger.getLogger(SceneRepository.class);
+
+	private final RowReader<Scene> sceneReader = new RowReader<Scene>() {
+		@Override
+		public Scene read(ResultSet row) throws SQLException {
+			try {
+				Scene scene = new Scene(new JSONObject(row.getString("json")));
+				scene.setId(row.getInt("id"));
+				return scene;
+			} catch (JSONException e) {
+				SceneRepository.log.error("Failed to instantiate scene " + row.getInt("id"), e);
+				return null;
+			}
+		}
+	};
+
+	public SceneRepository(DatabaseConnector db) {
+		super(db);
+	}
+
+	public List<Scene> getAll() throws SQLException {
+		return this.executeQuery(SceneRepository.SELECT_ALL, this.sceneReader);
+	}
+
+	public Scene get(int sceneId) throws SQLException {
+		List<Scene> scenes = this.executeQuery(SceneRepository.SELECT, this.sceneReader, sceneId);
+		return scenes.isEmpty() ? null : scenes.get(0);
+	}
+
+	public int insert(Scene scene) throws SQLException {
+		return this.executeInsert(SceneRepository.INSERT, scene.getName(), scene.getSourceJsonObject().toString());
+	}
+
+	public boolean update(Scene scene) throws SQLException {
+		return this.executeUpdate(SceneRepository.UPDATE, scene.getName(), scene.getSourceJsonObject().toString(), scene.getId()) > 0;
+	}
+
+	public boolean delete(int sceneId) throws SQLException {
+		return this.executeUpdate(SceneRepository.DELETE, sceneId) > 0;
+	}
+}
@@ -0,0 +1,82 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.base.rules.scenes.actions.notifications;
+
+import net.yourhome.common.net.model.Device;
+import net.yourhome.server.base.CachedConfigRepository;
+import net.yourhome.server.base.DatabaseConnector;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The Notification_GCM table of devices registered for push notifications
+ */
+public class DeviceRepository extends CachedConfigRepository<Map<String, Device>> {
+	private static final String SELECT_ALL = "SELECT * FROM Notification_GCM";
+	private static final String INSERT = "INSERT INTO Notification_GCM (registration_id, name, width, height) VALUES (?,?,?,?)";
+	private static final String DELETE = "DELETE FROM Notification_GCM WHERE registration_id = ?";
+
+	public DeviceRepository(DatabaseConnector db) {
+		super(db);
+	}
+
+	@Override
+	protected Map<String, Device> load() throws SQLException {
+		Map<String, Device> devices = new LinkedHashMap<String, Device>();
+		List<Device> rows = this.executeQuery(DeviceRepository.SELECT_ALL, new RowReader<Device>() {
+			@Override
+			public Device read(ResultSet row) throws SQLException {
+				return new Device(row.getString("registration_id"), row.getString("name"), row.getInt("width"), row.getInt("height"));
+			}
+		});
+		for (Device device : rows) {
+			devices.put(device.getRegistrationId(), device);
+		}
+		return Collections.unmodifiableMap(devices);
+	}
+
+	public Map<String, Device> getAll() throws SQLException {
+		return this.getCached();
+	}
+
+	public Device get(String registrationId) throws SQLException {
+		return this.getCached().get(registrationId);
+	}
+
+	public void insert(Device device) throws SQLException {
+		this.executeInsert(DeviceRepository.INSERT, device.getRegistrationId(), device.getName(), device.getWidth(), device.getHeight());
+	}
+
+	public boolean delete(String registrationId) throws SQLException {
+		return this.executeUpdate(DeviceRepository.DELETE, registrationId) > 0;
+	}
+}
@@ -41,8 +41,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
@@ -55,28 +53,15 @@ public class PushNotificationService {
 	private static volatile PushNotificationService instance;
 	private static Object lock = new Object();
 
+	private final DeviceRepository devices = new DeviceRepository(DatabaseConnector.getInstance());
+
 	private PushNotificationService() {
 
 		// Read registration ID's from database
-		String dbSelect = "SELECT * from main.Notification_GCM";
-		ResultSet result = null;
 		try {
-			result = DatabaseConnector.getInstance().executeSelect(dbSelect);
-			while (result.next()) {
-				Device newDevice = new Device(result.getString("registration_id"), result.getString("name"), result.getInt("width"), result.getInt("height"));
-				this.registeredDevices.put(newDevice.getRegistrationId(), newDevice);
-			}
+			this.registeredDevices.putAll(this.devices.getAll());
 		} catch (SQLException e) {
 			PushNotificationService.log.error("Exception occured: ", e);
-		} finally {
-			try {
-				if (result != null) {
-					result.getStatement().close();
-					result.close();
-				}
-			} catch (SQLException e) {
-				PushNotificationService.log.error("Exception occured: ", e);
-			}
 		}
 
 	}
@@ -103,8 +88,7 @@ public class PushNotificationService {
 	public void registerClient(Device device) throws SQLException {
 		if (this.registeredDevices.get(device.getRegistrationId()) == null) {
 			this.registeredDevices.put(device.getRegistrationId(), device);
-			String dbSaveQuery = "INSERT into main.Notification_GCM ('registration_id', 'name', 'width', 'height') VALUES ('" + device.getRegistrationId() + "', '" + device.getName() + "', '" + device.getWidth() + "','" + device.getHeight() + "')";
-			DatabaseConnector.getInstance().executeQuery(dbSaveQuery);
+			this.devices.insert(device);
 
 			PushNotificationService.log.info("Successfully registered device " + device.toString());
 		}
@@ -112,10 +96,7 @@ public class PushNotificationService {
 
 	public void unregisterClient(String deviceId) throws SQLException {
 		this.registeredDevices.remove(deviceId);
-		String sql = "DELETE FROM main.Notification_GCM WHERE registration_id = ?";
-		PreparedStatement stm = DatabaseConnector.getInstance().prepareStatement(sql);
-		stm.setString(1, deviceId);
-		DatabaseConnector.getInstance().executePreparedUpdate(stm);
+		this.devices.delete(deviceId);
 	}
 
 	public void sendMessage(ClientNotificationMessage message) {
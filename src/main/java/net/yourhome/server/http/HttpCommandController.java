@@ -47,7 +47,6 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
-import org.json.JSONObject;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -58,8 +57,6 @@ import java.io.InputStreamReader;
 import java.net.URI;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -71,6 +68,8 @@ public class HttpCommandController extends AbstractController {
 	private static volatile HttpCommandController httpCommandController;
 	private static Object lock = new Object();
 
+	private final HttpCommandRepository commands = new HttpCommandRepository(DatabaseConnector.getInstance());
+
 	private HttpCommandController() {
 		this.log = Logger.getLogger("net.yourhome.server.http.Http");
 	}
@@ -230,189 +229,61 @@ public class HttpCommandController extends AbstractController {
 	}
 
 	public String saveHttpNode(HttpNodeMessage message) throws SQLException {
-		String sql = "insert into main.Http_Nodes ('name', 'parentId')" + " VALUES ('" + message.name + "','" + message.parentId + "')";
-		int id = DatabaseConnector.getInstance().insertConfigurationValue(sql);
+		int id = this.commands.insertNode(message.name, message.parentId);
 		return "{ \"id\" : " + id + " }";
 	}
 
 	public String saveHttpCommand(HttpCommandMessage message) throws SQLException {
-		String sql = "insert into main.Http_Commands ('parentNodeId','json') VALUES (?,?)";
-		PreparedStatement preparedInsert = DatabaseConnector.getInstance().prepareStatement(sql);
-		preparedInsert.setInt(1, message.httpCommand.getParentNodeId());
-		preparedInsert.setString(2, message.httpCommand.serialize().toString());
-		Integer id = DatabaseConnector.getInstance().executePreparedUpdate(preparedInsert);
+		int id = this.commands.insertCommand(message.httpCommand);
 		return "{ \"id\" : " + id + " }";
 	}
 
 	public String changeHttpCommand(HttpCommandMessage changedHttpCommand) throws SQLException {
-
-		String sql = "UPDATE main.Http_Commands SET 'json'=? WHERE id = ?";
-		PreparedStatement preparedUpdate = DatabaseConnector.getInstance().prepareStatement(sql);
-		preparedUpdate.setString(1, changedHttpCommand.httpCommand.serialize().toString());
-		preparedUpdate.setInt(2, changedHttpCommand.httpCommand.getId());
-		Integer id = DatabaseConnector.getInstance().executePreparedUpdate(preparedUpdate);
-
-		return "{ \"result\" : " + (id == null) + " }";
+		boolean result = this.commands.updateCommand(changedHttpCommand.httpCommand);
+		return "{ \"result\" : " + result + " }";
 	}
 
 	public HttpCommand getCommand(int commandId) throws SQLException {
-		HttpCommand returnCommand = null;
-
-		String sql = "SELECT * from main.Http_Commands where id = '" + commandId + "'";
-		ResultSet allCommandsResult = null;
-		try {
-			allCommandsResult = DatabaseConnector.getInstance().executeSelect(sql);
-			returnCommand = null;
-			while (allCommandsResult.next()) {
-
-				try {
-					String jsonString = allCommandsResult.getString("json");
-					if (jsonString != null) {
-						returnCommand = new HttpCommand(new JSONObject(jsonString));
-						returnCommand.setId(allCommandsResult.getInt("id"));
-						returnCommand.setParentNodeId(allCommandsResult.getInt("parentNodeId"));
-					}
-				} catch (SQLException e) {
-				}
-
-				if (returnCommand == null) {
-					returnCommand = new HttpCommand(allCommandsResult);
-				}
-
-			}
-		} catch (SQLException e) {
-			this.log.error("Exception occured: ", e);
-		} finally {
-			try {
-				if (allCommandsResult != null) {
-					allCommandsResult.getStatement().close();
-					allCommandsResult.close();
-				}
-			} catch (SQLException e) {
-				this.log.error("Exception occured: ", e);
-			}
-		}
-
+		HttpCommand returnCommand = this.commands.getCommand(commandId);
 		if (returnCommand == null) {
 			throw new SQLException("Command " + commandId + " not found!");
 		}
-
 		return returnCommand;
 	}
 
 	public List<HttpCommand> getAllCommands(HttpNode node) {
-
-		String sql = "SELECT * from main.Http_Commands where parentNodeId = '" + node.getId() + "'";
-		ResultSet allCommandsResult = null;
-		List<HttpCommand> commandsList = new ArrayList<HttpCommand>();
 		try {
-			allCommandsResult = DatabaseConnector.getInstance().executeSelect(sql);
-
-			while (allCommandsResult.next()) {
-				HttpCommand command = null;
-				try {
-					String jsonString = allCommandsResult.getString("json");
-					if (jsonString != null) {
-						command = new HttpCommand(new JSONObject(jsonString));
-						command.setId(allCommandsResult.getInt("id"));
-						command.setParentNodeId(allCommandsResult.getInt("parentNodeId"));
-					}
-				} catch (SQLException e) {
-				}
-
-				// To be removed when other columns are removed
-				if (command == null) {
-					command = new HttpCommand(allCommandsResult);
-				}
-
-				commandsList.add(command);
-			}
+			return this.commands.getCommands(node.getId());
 		} catch (SQLException e) {
 			this.log.error("Exception occured: ", e);
-		} finally {
-			try {
-				if (allCommandsResult != null) {
-					allCommandsResult.getStatement().close();
-					allCommandsResult.close();
-				}
-			} catch (SQLException e) {
-				this.log.error("Exception occured: ", e);
-			}
 		}
-
-		return commandsList;
-
+		return new ArrayList<HttpCommand>();
 	}
 
 	public List<HttpNode> getAllNodes() {
-		String sql = "SELECT * from main.Http_Nodes";
-		ResultSet allNodesResult = null;
-		List<HttpNode> nodesArray = new ArrayList<HttpNode>();
 		try {
-			allNodesResult = DatabaseConnector.getInstance().executeSelect(sql);
-			while (allNodesResult.next()) {
-				HttpNode node = new HttpNode(allNodesResult);
-				for (HttpCommand c : this.getAllCommands(node)) {
-					node.addCommand(c);
-				}
-				nodesArray.add(node);
-			}
+			return this.commands.getNodes();
 		} catch (SQLException e) {
 			this.log.error("Exception occured: ", e);
-		} finally {
-			try {
-				if (allNodesResult != null) {
-					allNodesResult.getStatement().close();
-					allNodesResult.close();
-				}
-			} catch (SQLException e) {
-				this.log.error("Exception occured: ", e);
-			}
 		}
-		return nodesArray;
+		return new ArrayList<HttpNode>();
 	}
 
 	public HttpNode getNode(int nodeId) {
-		String sql = "SELECT * from main.Http_Nodes WHERE id = '" + nodeId + "'";
-		ResultSet allNodesResult = null;
-		HttpNode thisNode = null;
 		try {
-			allNodesResult = DatabaseConnector.getInstance().executeSelect(sql);
-
-			while (allNodesResult.next()) {
-				thisNode = new HttpNode(allNodesResult);
-				for (HttpCommand c : this.getAllCommands(thisNode)) {
-					thisNode.addCommand(c);
-				}
-			}
+			return this.commands.getNode(nodeId);
 		} catch (SQLException e) {
 			this.log.error("Exception occured: ", e);
-		} finally {
-			try {
-				if (allNodesResult != null) {
-					allNodesResult.getStatement().close();
-					allNodesResult.close();
-				}
-			} catch (SQLException e) {
-				this.log.error("Exception occured: ", e);
-			}
 		}
-		return thisNode;
+		return null;
 	}
 
 	public boolean deleteNode(int nodeId) throws SQLException {
-		String sql = "DELETE from main.Http_Commands where parentNodeId = '" + nodeId + "'";
-		if (DatabaseConnector.getInstance().executeQuery(sql)) {
-			sql = "DELETE from main.Http_Nodes where id = '" + nodeId + "'";
-			return DatabaseConnector.getInstance().executeQuery(sql);
-		}
-		return false;
+		return this.commands.deleteNode(nodeId);
 	}
 
 	public boolean deleteCommand(int commandId) throws SQLException {
-		String sql = "DELETE from main.Http_Commands WHERE id = '" + commandId + "'";
-		boolean result = DatabaseConnector.getInstance().executeQuery(sql);
-		return result;
+		return this.commands.deleteCommand(commandId);
 	}
 
 	@Override
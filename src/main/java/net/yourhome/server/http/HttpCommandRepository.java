@@ -0,0 +1,158 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.http;
+
+import net.yourhome.common.net.messagestructures.http.HttpCommand;
+import net.yourhome.common.net.messagestructures.http.HttpNode;
+import net.yourhome.server.base.CachedConfigRepository;
+import net.yourhome.server.base.DatabaseConnector;
+import org.json.JSONObject;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The Http_Nodes and Http_Commands tables. Both are loaded together, the
+ * cached nodes already hold their commands.
+ */
+public class HttpCommandRepository extends CachedConfigRepository<HttpCommandRepository.Contents> {
+	private static final String SELECT_NODES = "SELECT * FROM Http_Nodes ORDER BY id";
+	private static final String SELECT_COMMANDS = "SELECT * FROM Http_Commands ORDER BY id";
+	private static final String INSERT_NODE = "INSERT INTO Http_Nodes (name, parentId) VALUES (?,?)";
+	private static final String INSERT_COMMAND = "INSERT INTO Http_Commands (parentNodeId, json) VALUES (?,?)";
+	private static final String UPDATE_COMMAND = "UPDATE Http_Commands SET json = ? WHERE id = ?";
+	private static final String DELETE_NODE = "DELETE FROM Http_Nodes WHERE id = ?";
+	private static final String DELETE_NODE_COMMANDS = "DELETE FROM Http_Commands WHERE parentNodeId = ?";
+	private static final String DELETE_COMMAND = "DELETE FROM Http_Commands WHERE id = ?";
+
+	public HttpCommandRepository(DatabaseConnector db) {
+		super(db);
+	}
+
+	@Override
+	protected Contents load() throws SQLException {
+		Map<Integer, HttpNode> nodes = new LinkedHashMap<Integer, HttpNode>();
+		List<HttpNode> nodeRows = this.executeQuery(HttpCommandRepository.SELECT_NODES, new RowReader<HttpNode>() {
+			@Override
+			public HttpNode read(ResultSet row) throws SQLException {
+				return new HttpNode(row);
+			}
+		});
+		for (HttpNode node : nodeRows) {
+			nodes.put(node.getId(), node);
+		}
+
+		Map<Integer, HttpCommand> commands = new LinkedHashMap<Integer, HttpCommand>();
+		List<HttpCommand> commandRows = this.executeQuery(HttpCommandRepository.SELECT_COMMANDS, new RowReader<HttpCommand>() {
+			@Override
+			public HttpCommand read(ResultSet row) throws SQLException {
+				return HttpCommandRepository.readCommand(row);
+			}
+		});
+		for (HttpCommand command : commandRows) {
+			commands.put(command.getId(), command);
+			HttpNode node = nodes.get(command.getParentNodeId());
+			if (node != null) {
+				node.addCommand(command);
+			}
+		}
+		return new Contents(Collections.unmodifiableMap(nodes), Collections.unmodifiableMap(commands));
+	}
+
+	private static HttpCommand readCommand(ResultSet row) throws SQLException {
+		String jsonString = row.getString("json");
+		if (jsonString != null) {
+			HttpCommand command = new HttpCommand(new JSONObject(jsonString));
+			command.setId(row.getInt("id"));
+			command.setParentNodeId(row.getInt("parentNodeId"));
+			return command;
+		}
+		// To be removed when other columns are removed
+		return new HttpCommand(row);
+	}
+
+	public List<HttpNode> getNodes() throws SQLException {
+		return new ArrayList<HttpNode>(this.getCached().nodes.values());
+	}
+
+	public HttpNode getNode(int nodeId) throws SQLException {
+		return this.getCached().nodes.get(nodeId);
+	}
+
+	public HttpCommand getCommand(int commandId) throws SQLException {
+		return this.getCached().commands.get(commandId);
+	}
+
+	public List<HttpCommand> getCommands(int nodeId) throws SQLException {
+		List<HttpCommand> commands = new ArrayList<HttpCommand>();
+		for (HttpCommand command : this.getCached().commands.values()) {
+			if (command.getParentNodeId() == nodeId) {
+				commands.add(command);
+			}
+		}
+		return commands;
+	}
+
+	public int insertNode(String name, Integer parentId) throws SQLException {
+		return this.executeInsert(HttpCommandRepository.INSERT_NODE, name, parentId);
+	}
+
+	public int insertCommand(HttpCommand command) throws SQLException {
+		return this.executeInsert(HttpCommandRepository.INSERT_COMMAND, command.getParentNodeId(), command.serialize().toString());
+	}
+
+	public boolean updateCommand(HttpCommand command) throws SQLException {
+		return this.executeUpdate(HttpCommandRepository.UPDATE_COMMAND, command.serialize().toString(), command.getId()) > 0;
+	}
+
+	/*
+	 * Deletes the node and its commands
+	 */
+	public boolean deleteNode(int nodeId) throws SQLException {
+		this.executeUpdate(HttpCommandRepository.DELETE_NODE_COMMANDS, nodeId);
+		return this.executeUpdate(HttpCommandRepository.DELETE_NODE, nodeId) > 0;
+	}
+
+	public boolean deleteCommand(int commandId) throws SQLException {
+		return this.executeUpdate(HttpCommandRepository.DELETE_COMMAND, commandId) > 0;
+	}
+
+	protected static class Contents {
+		private final Map<Integer, HttpNode> nodes;
+		private final Map<Integer, HttpCommand> commands;
+
+		private Contents(Map<Integer, HttpNode> nodes, Map<Integer, HttpCommand> commands) {
+			this.nodes = nodes;
+			this.commands = commands;
+		}
+	}
+}
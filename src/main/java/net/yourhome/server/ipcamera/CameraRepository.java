@@ -0,0 +1,87 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.ipcamera;
+
+import net.yourhome.server.base.CachedConfigRepository;
+import net.yourhome.server.base.DatabaseConnector;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The IP_Cameras table
+ */
+public class CameraRepository extends CachedConfigRepository<Map<Integer, IPCamera>> {
+	private static final String SELECT_ALL = "SELECT * FROM IP_Cameras ORDER BY id";
+	private static final String INSERT = "INSERT INTO IP_Cameras (name, snapshotUrl, videoUrl) VALUES (?,?,?)";
+	private static final String UPDATE = "UPDATE IP_Cameras SET name = ?, snapshotUrl = ?, videoUrl = ? WHERE id = ?";
+	private static final String DELETE = "DELETE FROM IP_Cameras WHERE id = ?";
+
+	public CameraRepository(DatabaseConnector db) {
+		super(db);
+	}
+
+	@Override
+	protected Map<Integer, IPCamera> load() throws SQLException {
+		Map<Integer, IPCamera> cameras = new LinkedHashMap<Integer, IPCamera>();
+		List<IPCamera> rows = this.executeQuery(CameraRepository.SELECT_ALL, new RowReader<IPCamera>() {
+			@Override
+			public IPCamera read(ResultSet row) throws SQLException {
+				return new IPCamera(row);
+			}
+		});
+		for (IPCamera camera : rows) {
+			cameras.put(camera.getId(), camera);
+		}
+		return Collections.unmodifiableMap(cameras);
+	}
+
+	public List<IPCamera> getAll() throws SQLException {
+		return new ArrayList<IPCamera>(this.getCached().values());
+	}
+
+	public IPCamera get(int cameraId) throws SQLException {
+		return this.getCached().get(cameraId);
+	}
+
+	public int insert(String name, String snapshotUrl, String videoUrl) throws SQLException {
+		return this.executeInsert(CameraRepository.INSERT, name, snapshotUrl, videoUrl);
+	}
+
+	public boolean update(int cameraId, String name, String snapshotUrl, String videoUrl) throws SQLException {
+		return this.executeUpdate(CameraRepository.UPDATE, name, snapshotUrl, videoUrl, cameraId) > 0;
+	}
+
+	public boolean delete(int cameraId) throws SQLException {
+		return this.executeUpdate(CameraRepository.DELETE, cameraId) > 0;
+	}
+}
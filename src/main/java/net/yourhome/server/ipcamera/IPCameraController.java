@@ -45,7 +45,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -54,6 +53,8 @@ public class IPCameraController extends AbstractController {
 	private static volatile IPCameraController ipCameraController;
 	private static Object lock = new Object();
 
+	private final CameraRepository cameras = new CameraRepository(DatabaseConnector.getInstance());
+
 	private IPCameraController() {
 		this.log = Logger.getLogger("net.yourhome.server.ipcamera.IPCamera");
 	}
@@ -112,79 +113,35 @@ public class IPCameraController extends AbstractController {
 	}
 
 	public String saveIPCamera(IPCameraMessage message) throws SQLException {
-		String sql = "insert into main.IP_Cameras ('name', 'snapshotUrl', 'videoUrl')" + " VALUES ('" + message.name + "','" + message.snapshotUrl + "','" + message.videoUrl + "')";
-		int id = DatabaseConnector.getInstance().insertConfigurationValue(sql);
+		int id = this.cameras.insert(message.name, message.snapshotUrl, message.videoUrl);
 		return "{ \"id\" : " + id + " }";
 	}
 
 	public String changeIPCamera(IPCameraMessage message) throws SQLException {
-		String sql = "UPDATE main.IP_Cameras SET   'name'='" + message.name + "', " + "'snapshotUrl'='" + message.snapshotUrl + "', " + "'videoUrl'='" + message.videoUrl + "' " + " WHERE id = '" + message.id + "'";
-
-		boolean result = DatabaseConnector.getInstance().executeQuery(sql);
+		boolean result = this.cameras.update(message.id, message.name, message.snapshotUrl, message.videoUrl);
 		return "{ \"result\" : " + result + " }";
 	}
 
 	public boolean deleteIPCamera(int cameraId) throws SQLException {
-		String sql = "delete from main.IP_Cameras where id = '" + cameraId + "'";
-		return DatabaseConnector.getInstance().executeQuery(sql);
+		return this.cameras.delete(cameraId);
 	}
 
 	public IPCamera getIPCamera(int cameraId) {
-		IPCamera returnCamera = null;
-
-		String sql = "SELECT * from main.IP_Cameras where id = '" + cameraId + "'";
-		ResultSet camerasResult = null;
 		try {
-			camerasResult = DatabaseConnector.getInstance().executeSelect(sql);
-			returnCamera = null;
-			while (camerasResult.next()) {
-				returnCamera = new IPCamera(camerasResult);
-			}
+			return this.cameras.get(cameraId);
 		} catch (SQLException e) {
 			this.log.error("Exception occured: ", e);
-		} finally {
-			try {
-				if (camerasResult != null) {
-					camerasResult.getStatement().close();
-					camerasResult.close();
-				}
-			} catch (SQLException e) {
-				this.log.error("Exception occured: ", e);
-			}
 		}
-
-		return returnCamera;
+		return null;
 	}
 
 	public List<IPCamera> getAllIPCameras() {
-
-		String sql = "SELECT * from main.IP_Cameras";
-		ResultSet ipCamerasResult = null;
-		List<IPCamera> cameras = new ArrayList<IPCamera>();
 		try {
-			ipCamerasResult = DatabaseConnector.getInstance().executeSelect(sql);
-
-			while (ipCamerasResult.next()) {
-				try {
-					cameras.add(new IPCamera(ipCamerasResult));
-				} catch (SQLException e) {
-					this.log.error("Exception occured: ", e);
-				}
-			}
-
+			return this.cameras.getAll();
 		} catch (SQLException e) {
 			this.log.error("Exception occured: ", e);
-		} finally {
-			try {
-				if (ipCamerasResult != null) {
-					ipCamerasResult.getStatement().close();
-					ipCamerasResult.close();
-				}
-			} catch (SQLException e) {
-				this.log.error("Exception occured: ", e);
-			}
 		}
-		return cameras;
+		return new ArrayList<IPCamera>();
 	}
 
 	@Override
@@ -56,7 +56,7 @@ public class AppConfig {
 		this.cxf();
 		JAXRSServerFactoryBean factory = RuntimeDelegate.getInstance().createEndpoint(this.jaxRsApiApplication(), JAXRSServerFactoryBean.class);
 		factory.setBus(this.cxf());
-		factory.setServiceBeans(Arrays.<Object>asList(new MessageHandler(), new Images(), new Views(), new Nodes(), new Scenes(), new Rules(), new Commands(), new Project(), new Radio(), new Logs(), new HttpCommands(), new IPCameras(), new Controllers(), new Info()));
+		factory.setServiceBeans(Arrays.<Object>asList(new MessageHandler(), new Images(), new Views(), new Nodes(), new Scenes(), new Rules(), new Commands(), new Project(), new Radio(), new Logs(), new HttpCommands(), new IPCameras(), new Controllers(), new Info(), new History(), new Backups()));
 		factory.setAddress('/' + factory.getAddress());
 		factory.setProviders(Arrays.<Object>asList(this.jsonProvider()));
 		return factory.create();
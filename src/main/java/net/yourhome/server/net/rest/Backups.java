@@ -0,0 +1,131 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.net.rest;
+
+import net.yourhome.server.base.DatabaseBackup;
+import net.yourhome.server.base.DatabaseConnector;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+
+@Path("/Backups")
+public class Backups {
+	private static Logger log = Logger.getLogger(Backups.class);
+
+	// GET api/Backups
+	@Produces({ MediaType.APPLICATION_JSON })
+	@GET
+	public Response get() {
+		DatabaseBackup backup = DatabaseConnector.getInstance().getDatabaseBackup();
+		try {
+			JSONObject result = new JSONObject();
+			result.put("running", backup.isRunning());
+			result.put("keep", backup.getKeep());
+			if (backup.getLastResult() != null) {
+				result.put("last", this.toJson(backup.getLastResult()));
+			}
+			if (backup.getLastError() != null) {
+				result.put("error", backup.getLastError());
+			}
+			JSONArray snapshots = new JSONArray();
+			for (File snapshot : backup.getSnapshots()) {
+				snapshots.put(snapshot.getName());
+			}
+			result.put("snapshots", snapshots);
+			return Response.ok(result.toString(), MediaType.APPLICATION_JSON).build();
+		} catch (JSONException e) {
+			Backups.log.error("Exception occured: ", e);
+			return Response.serverError().build();
+		}
+	}
+
+	// POST api/Backups?wait=true
+	// Starts a backup. Without wait the backup runs in the background, see GET
+	// for its result.
+	@Produces({ MediaType.APPLICATION_JSON })
+	@POST
+	public Response start(@QueryParam("wait") @DefaultValue("false") boolean wait) {
+		final DatabaseConnector dbConnector = DatabaseConnector.getInstance();
+		if (dbConnector.getDatabaseBackup().isRunning()) {
+			return Response.status(Response.Status.CONFLICT).entity("A backup is already running").build();
+		}
+		if (!wait) {
+			new Thread("Backup") {
+				@Override
+				public void run() {
+					try {
+						dbConnector.backup();
+					} catch (IOException | SQLException | IllegalStateException e) {
+						Backups.log.error("Backup failed", e);
+					}
+				}
+			}.start();
+			return Response.status(Response.Status.ACCEPTED).build();
+		}
+		try {
+			DatabaseBackup.BackupResult result = dbConnector.backup();
+			return Response.ok(this.toJson(result).toString(), MediaType.APPLICATION_JSON).build();
+		} catch (IllegalStateException e) {
+			return Response.status(Response.Status.CONFLICT).entity(e.getMessage()).build();
+		} catch (IOException | SQLException | JSONException e) {
+			Backups.log.error("Backup failed", e);
+			return Response.serverError().entity(e.getMessage()).build();
+		}
+	}
+
+	private JSONObject toJson(DatabaseBackup.BackupResult backup) throws JSONException {
+		JSONObject result = new JSONObject();
+		result.put("name", backup.getName());
+		result.put("start", backup.getStart());
+		result.put("duration", backup.getDuration());
+		result.put("bytes", backup.getBytes());
+		JSONArray databases = new JSONArray();
+		for (Map.Entry<String, Long> database : backup.getDatabaseBytes().entrySet()) {
+			JSONObject databaseResult = new JSONObject();
+			databaseResult.put("file", database.getKey());
+			databaseResult.put("bytes", database.getValue());
+			databaseResult.put("duration", backup.getDatabaseDurations().get(database.getKey()));
+			databases.put(databaseResult);
+		}
+		result.put("databases", databases);
+		return result;
+	}
+}
@@ -0,0 +1,350 @@
+/*-
+ * Copyright (c) 2016 Coteq, Johan Cosemans
+ * All rights reserved.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY COTEQ AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.yourhome.server.net.rest;
+
+import net.yourhome.common.net.model.Device;
+import net.yourhome.common.net.model.binding.ControlIdentifiers;
+import net.yourhome.server.base.DatabaseConnector;
+import net.yourhome.server.base.GeneralController;
+import net.yourhome.server.base.history.HistoryBatch;
+import net.yourhome.server.base.history.HistoryCursor;
+import net.yourhome.server.base.history.HistoryDownsampling;
+import net.yourhome.server.base.history.HistoryOperation;
+import net.yourhome.server.base.history.HistoryPoints;
+import net.yourhome.server.base.history.HistoryQueryCache;
+import net.yourhome.server.base.history.HistoryStore;
+import net.yourhome.server.base.history.RollupPeriod;
+import net.yourhome.server.base.rules.scenes.actions.notifications.PushNotificationService;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+@Path("/History")
+public class History {
+	private static final String FORMAT_CSV = "csv";
+	private static final String FORMAT_NDJSON = "ndjson";
+	private static final String OPERATION_PERCENTILE = "PERCENTILE";
+
+	private static Logger log = Logger.getLogger(History.class);
+
+	// GET api/History/Export?series=zwave/3-4030287264/72057594101776384&from=1470000000&to=1480000000&resolution=day&operation=average&format=csv
+	// The series parameter can be repeated, resolution is raw (default), hour, day, week or month
+	// With width (in pixels) or device (a registered registration id) every
+	// series is downsampled to about that many points while it streams
+	@Produces({ "text/csv", "application/x-ndjson" })
+	@Path("Export")
+	@GET
+	public Response export(@Context final UriInfo uriInfo, @QueryParam("series") final List<String> series, @QueryParam("from") @DefaultValue("0") final long from, @QueryParam("to") final Long to, @QueryParam("resolution") final String resolution, @QueryParam("operation") final String operation, @QueryParam("format") @DefaultValue(FORMAT_CSV) final String format, @QueryParam("width") final Integer width, @QueryParam("device") final String device) {
+		final List<ControlIdentifiers> controlIdentifiers = this.parseSeries(series);
+		if (controlIdentifiers == null) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Invalid series, expected controller/node/value").build();
+		}
+		final RollupPeriod period;
+		if (resolution == null || resolution.isEmpty() || resolution.equalsIgnoreCase("raw")) {
+			period = null;
+		} else {
+			try {
+				period = RollupPeriod.valueOf(resolution.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				return Response.status(Response.Status.BAD_REQUEST).entity("Invalid resolution " + resolution).build();
+			}
+		}
+		final boolean json = FORMAT_NDJSON.equalsIgnoreCase(format);
+		if (!json && !FORMAT_CSV.equalsIgnoreCase(format)) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Invalid format " + format).build();
+		}
+		final HistoryOperation historyOperation = HistoryOperation.fromName(operation);
+		final long until = to == null ? System.currentTimeMillis() / 1000L + 1 : to;
+		final Integer maxPoints = this.getWidth(width, device);
+		if (maxPoints == null && device != null) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Unknown device " + device).build();
+		}
+		final HistoryStore store = DatabaseConnector.getInstance().getHistoryStore();
+
+		// Nothing is buffered: every series is written while its cursor is read
+		StreamingOutput output = new StreamingOutput() {
+			@Override
+			public void write(OutputStream outputStream) throws IOException {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+				if (!json) {
+					writer.write("controller_identifier,node_identifier,value_identifier,time,value_d\n");
+				}
+				for (ControlIdentifiers identifiers : controlIdentifiers) {
+					String prefix = json ? History.this.getJsonPrefix(identifiers) : History.this.getCsvPrefix(identifiers);
+					HistoryCursor cursor = store.cursor(identifiers, period, historyOperation, from, until);
+					if (maxPoints != null) {
+						cursor = HistoryDownsampling.lttb(cursor, period == null ? from : period.getBucket(from), until, maxPoints);
+					}
+					try {
+						while (cursor.next()) {
+							writer.write(prefix);
+							writer.write(Long.toString(cursor.getTime()));
+							if (json) {
+								writer.write(",\"value_d\":");
+								writer.write(Double.isNaN(cursor.getValue()) || Double.isInfinite(cursor.getValue()) ? "null" : Double.toString(cursor.getValue()));
+								writer.write("}\n");
+							} else {
+								writer.write(',');
+								writer.write(Double.toString(cursor.getValue()));
+								writer.write('\n');
+							}
+						}
+					} catch (IOException e) {
+						History.log.warn("History export of " + identifiers.getKey() + " stopped: " + e.getMessage());
+						throw e;
+					} finally {
+						cursor.close();
+					}
+				}
+				writer.flush();
+			}
+		};
+		ResponseBuilder response = Response.ok(output, json ? "application/x-ndjson" : "text/csv");
+		response.header("Content-Disposition", "attachment; filename=history." + (json ? FORMAT_NDJSON : FORMAT_CSV));
+		return response.build();
+	}
+
+	// GET api/History/Values?series=zwave/3-4030287264/72057594101776384&series=zwave/3-4030287264/72057594118553600&period=DAILY&operation=DELTA&offset=0&amount=30
+	// Same answer as one ValueHistoryRequest per series, with the aggregates
+	// aligned on a shared time axis (newest first, null where a series has no
+	// value). REALTIME keeps the own times of every series.
+	// Paging back: pass the returned next as before (instead of an offset)
+	// for the following page, which seeks on the time index.
+	// REALTIME series are downsampled to width points, or the width of a
+	// registered device, when one is given.
+	// operation=PERCENTILE&percentile=95 gives the 95th percentile per day,
+	// week or month, merged from the sketches of the days (not for REALTIME).
+	@Produces({ MediaType.APPLICATION_JSON })
+	@Path("Values")
+	@GET
+	public Response values(@QueryParam("series") final List<String> series, @QueryParam("period") @DefaultValue("REALTIME") final String periodType, @QueryParam("operation") final String operation, @QueryParam("percentile") @DefaultValue("50") final double percentile, @QueryParam("offset") @DefaultValue("0") final int offset, @QueryParam("before") final Long before, @QueryParam("amount") @DefaultValue("100") final int amount, @QueryParam("width") final Integer width, @QueryParam("device") final String device) {
+		List<ControlIdentifiers> controlIdentifiers = this.parseSeries(series);
+		if (controlIdentifiers == null || controlIdentifiers.isEmpty()) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Invalid series, expected controller/node/value").build();
+		}
+		final RollupPeriod period = RollupPeriod.fromPeriodType(periodType.toUpperCase());
+		if (period == null && !periodType.equalsIgnoreCase("REALTIME")) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Invalid period " + periodType).build();
+		}
+		final HistoryOperation historyOperation = HistoryOperation.fromName(operation);
+		final boolean percentileOperation = History.OPERATION_PERCENTILE.equalsIgnoreCase(operation);
+		if (percentileOperation && (period == null || period == RollupPeriod.HOUR)) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Percentiles are only available per day, week or month").build();
+		} else if (percentileOperation && (percentile < 0 || percentile > 100)) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Invalid percentile " + percentile + ", expected 0 - 100").build();
+		}
+		final GeneralController generalController = GeneralController.getInstance();
+		final Integer maxPoints = this.getWidth(width, device);
+		if (maxPoints == null && device != null) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Unknown device " + device).build();
+		}
+
+		try {
+			List<SeriesHistory> histories = DatabaseConnector.getInstance().getHistoryBatch().query(controlIdentifiers, new HistoryBatch.Source<SeriesHistory>() {
+				@Override
+				public SeriesHistory get(ControlIdentifiers identifiers) throws IOException {
+					SeriesHistory history = new SeriesHistory();
+					if (percentileOperation) {
+						history.points = generalController.getHistoryPercentile(identifiers, period, percentile, before, offset, amount);
+					} else if (before == null) {
+						history.points = generalController.getHistory(identifiers, period, historyOperation, offset, amount);
+					} else {
+						history.points = generalController.getHistoryBefore(identifiers, period, historyOperation, before, amount);
+					}
+					if (maxPoints != null && period == null) {
+						history.points = HistoryDownsampling.lttb(history.points, maxPoints);
+					}
+					history.unit = generalController.getHistoryUnit(identifiers, period);
+					history.title = generalController.getHistoryTitle(identifiers);
+					return history;
+				}
+			});
+
+			JSONObject result = new JSONObject();
+			result.put("period", period == null ? "REALTIME" : periodType.toUpperCase());
+			if (percentileOperation) {
+				result.put("operation", History.OPERATION_PERCENTILE);
+				result.put("percentile", percentile);
+			} else {
+				result.put("operation", historyOperation.name());
+			}
+			result.put("offset", offset);
+			long[] times = null;
+			if (period != null) {
+				List<HistoryPoints> points = new ArrayList<HistoryPoints>(histories.size());
+				for (SeriesHistory history : histories) {
+					points.add(history.points);
+				}
+				times = HistoryBatch.align(points, amount);
+				result.put("time", this.toJson(times));
+				result.put("next", times.length == 0 ? JSONObject.NULL : times[times.length - 1]);
+			}
+			JSONArray seriesArray = new JSONArray();
+			for (int i = 0; i < histories.size(); i++) {
+				SeriesHistory history = histories.get(i);
+				JSONObject seriesObject = new JSONObject();
+				seriesObject.put("controller_identifier", controlIdentifiers.get(i).getControllerIdentifier().convert());
+				seriesObject.put("node_identifier", controlIdentifiers.get(i).getNodeIdentifier());
+				seriesObject.put("value_identifier", controlIdentifiers.get(i).getValueIdentifier());
+				seriesObject.put("title", history.title);
+				seriesObject.put("unit", history.unit);
+				if (times != null) {
+					seriesObject.put("value", this.toJson(HistoryBatch.align(history.points, times)));
+				} else {
+					long[] seriesTimes = new long[history.points.size()];
+					double[] seriesValues = new double[history.points.size()];
+					for (int j = 0; j < seriesTimes.length; j++) {
+						seriesTimes[j] = history.points.getTime(j);
+						seriesValues[j] = history.points.getValue(j);
+					}
+					seriesObject.put("time", this.toJson(seriesTimes));
+					seriesObject.put("value", this.toJson(seriesValues));
+					seriesObject.put("next", seriesTimes.length == 0 ? JSONObject.NULL : seriesTimes[seriesTimes.length - 1]);
+				}
+				seriesArray.put(seriesObject);
+			}
+			result.put("series", seriesArray);
+			return Response.ok(result.toString(), MediaType.APPLICATION_JSON).build();
+		} catch (IOException | JSONException e) {
+			History.log.error("Exception occured: ", e);
+			return Response.serverError().build();
+		}
+	}
+
+	// GET api/History/Cache
+	@Produces({ MediaType.APPLICATION_JSON })
+	@Path("Cache")
+	@GET
+	public Response cache() {
+		HistoryQueryCache cache = DatabaseConnector.getInstance().getHistoryQueryCache();
+		try {
+			JSONObject result = new JSONObject();
+			result.put("hits", cache.getHits());
+			result.put("misses", cache.getMisses());
+			result.put("size", cache.size());
+			return Response.ok(result.toString(), MediaType.APPLICATION_JSON).build();
+		} catch (JSONException e) {
+			History.log.error("Exception occured: ", e);
+			return Response.serverError().build();
+		}
+	}
+
+	private JSONArray toJson(long[] times) {
+		JSONArray array = new JSONArray();
+		for (long time : times) {
+			array.put(time);
+		}
+		return array;
+	}
+
+	private JSONArray toJson(double[] values) throws JSONException {
+		JSONArray array = new JSONArray();
+		for (double value : values) {
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				array.put(JSONObject.NULL);
+			} else {
+				array.put(value);
+			}
+		}
+		return array;
+	}
+
+	/*
+	 * Number of points a graph can draw: the requested width or the
+	 * largest side of the screen of a registered device. Null when neither
+	 * is known.
+	 */
+	private Integer getWidth(Integer width, String device) {
+		if (width != null) {
+			return width;
+		} else if (device != null) {
+			Device registered = PushNotificationService.getInstance().getRegisteredDevices().get(device);
+			if (registered != null && (registered.getWidth() > 0 || registered.getHeight() > 0)) {
+				return Math.max(registered.getWidth(), registered.getHeight());
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * controller/node/value strings, null when one of them is invalid
+	 */
+	private List<ControlIdentifiers> parseSeries(List<String> series) {
+		List<ControlIdentifiers> controlIdentifiers = new ArrayList<ControlIdentifiers>();
+		for (String identifiers : series) {
+			String[] parts = identifiers.split("/", 3);
+			if (parts.length != 3) {
+				return null;
+			}
+			controlIdentifiers.add(new ControlIdentifiers(parts[0], parts[1], parts[2]));
+		}
+		return controlIdentifiers;
+	}
+
+	private String getCsvPrefix(ControlIdentifiers identifiers) {
+		return this.escapeCsv(identifiers.getControllerIdentifier().convert()) + ',' + this.escapeCsv(identifiers.getNodeIdentifier()) + ',' + this.escapeCsv(identifiers.getValueIdentifier()) + ',';
+	}
+
+	private String escapeCsv(String field) {
+		if (field == null) {
+			return "";
+		} else if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0) {
+			return '"' + field.replace("\"", "\"\"") + '"';
+		}
+		return field;
+	}
+
+	private String getJsonPrefix(ControlIdentifiers identifiers) {
+		return "{\"controller_identifier\":" + JSONObject.quote(identifiers.getControllerIdentifier().convert()) + ",\"node_identifier\":" + JSONObject.quote(identifiers.getNodeIdentifier()) + ",\"value_identifier\":" + JSONObject.quote(identifiers.getValueIdentifier()) + ",\"time\":";
+	}
+
+	private static class SeriesHistory {
+		private HistoryPoints points;
+		private String unit;
+		private String title;
+	}
+}
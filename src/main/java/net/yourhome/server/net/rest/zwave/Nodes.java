@@ -319,6 +319,10 @@ public class Nodes {
 						valueId, nodeInstance);
 				valueSettings.polled = polledValue;
 				valueSettings.subscribed = subscribedValue;
+				valueSettings.historyDeadband = subscription.optDouble("historyDeadband", valueSettings.historyDeadband);
+				valueSettings.historyDeadbandPercent = subscription.optDouble("historyDeadbandPercent", valueSettings.historyDeadbandPercent);
+				valueSettings.historyDeviation = subscription.optDouble("historyDeviation", valueSettings.historyDeviation);
+				valueSettings.historyHeartbeat = subscription.optInt("historyHeartbeat", valueSettings.historyHeartbeat);
 				this.dbController.insertOrUpdateZWaveValueSettings(valueSettings);
 
 			}
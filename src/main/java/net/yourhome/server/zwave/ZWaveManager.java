@@ -402,11 +402,21 @@ public class ZWaveManager {
 	public void postProcessActivities() {
 		/* Set values polled / not polled */
 		DatabaseConnector dbConnector = DatabaseConnector.getInstance();
+		Map<Long, Set<Short>> nodesPerNetwork = new HashMap<Long, Set<Short>>();
 		for (Node node : this.m_nodeList) {
+			Set<Short> nodeIds = nodesPerNetwork.get(node.getHomeId());
+			if (nodeIds == null) {
+				nodeIds = new HashSet<Short>();
+				nodesPerNetwork.put(node.getHomeId(), nodeIds);
+			}
+			nodeIds.add(node.getId());
+		}
 
-			List<DatabaseConnector.ValueSettings> valueSettingsList = dbConnector.getAllZWaveValueSettings(node.getHomeId(), node.getId());
-			if (valueSettingsList != null) {
-				for (DatabaseConnector.ValueSettings valueSetting : valueSettingsList) {
+		// One pass over the settings of each network instead of a query per node
+		for (Map.Entry<Long, Set<Short>> network : nodesPerNetwork.entrySet()) {
+			List<DatabaseConnector.ValueSettings> valueSettingsList = dbConnector.getAllZWaveValueSettings(network.getKey());
+			for (DatabaseConnector.ValueSettings valueSetting : valueSettingsList) {
+				if (network.getValue().contains(valueSetting.nodeId)) {
 					// Set value polled
 					// log.Debug("Set value polled/not polled: " +
 					// valueSetting.valueId + ", node: "+ valueSetting.nodeId);
@@ -415,7 +425,6 @@ public class ZWaveManager {
 					// Set Associations?
 				}
 			}
-
 		}
 
 		ZWaveManager.log.info("Post process activities completed");
@@ -40,6 +40,9 @@ import net.yourhome.server.ControllerValue;
 import net.yourhome.server.IController;
 import net.yourhome.server.base.DatabaseConnector;
 import net.yourhome.server.base.Setting;
+import net.yourhome.server.base.history.HistorySeries;
+import net.yourhome.server.base.history.MeterAggregates;
+import net.yourhome.server.base.history.RollupPeriod;
 import net.yourhome.server.net.Server;
 import net.yourhome.server.zwave.enums.TimeFrame;
 import org.apache.log4j.Logger;
@@ -52,6 +55,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ZWaveNetController extends AbstractController {
 	public enum Settings {
@@ -180,7 +184,17 @@ public class ZWaveNetController extends AbstractController {
 					valueDouble = Double.parseDouble(value.toString());
 				}
 
-				this.dbconnector.insertValueChange(message.controlIdentifiers, this.zwaveController.getValueUnits(valueId), value.toString(), valueDouble);
+				DatabaseConnector.ValueSettings valueSettings = this.dbconnector.getZWaveValueSettings(valueId.getHomeId(), valueId.getNodeId(), this.zwaveController.getValueId(valueId), valueId.getInstance());
+				this.dbconnector.insertValueChange(message.controlIdentifiers, this.zwaveController.getValueUnits(valueId), value.toString(), valueDouble, valueSettings.getCompressionSettings());
+
+				// Totals that are calculated from this meter changed as well
+				VirtualIncrementingMeasureValue incrementingMeasure = this.incrementingMeasures.get(message.controlIdentifiers.getKey());
+				if (incrementingMeasure != null) {
+					JSONMessage totalMessage = incrementingMeasure.createValueChangedMessage();
+					if (totalMessage != null) {
+						this.netWebSocketServer.broadcast(totalMessage);
+					}
+				}
 			}
 		}
 	}
@@ -249,6 +263,12 @@ public class ZWaveNetController extends AbstractController {
 				}
 			}
 		}
+		for (VirtualIncrementingMeasureValue incrementingMeasure : this.incrementingMeasures.values()) {
+			JSONMessage message = incrementingMeasure.createValueChangedMessage();
+			if (message != null) {
+				messageList.add(message);
+			}
+		}
 
 		return messageList;
 	}
@@ -385,6 +405,8 @@ public class ZWaveNetController extends AbstractController {
 	}
 
 	private Map<String, ControllerValue> virtualValuesCache = new HashMap<String, ControllerValue>();
+	// Virtual totals by the identifiers of the meter value they are calculated from
+	private Map<String, VirtualIncrementingMeasureValue> incrementingMeasures = new ConcurrentHashMap<String, VirtualIncrementingMeasureValue>();
 
 	// TODO; The idea is for this is to have static values defined in a config
 	// file, and have the user define them in
@@ -424,14 +446,18 @@ public class ZWaveNetController extends AbstractController {
 			VirtualIncrementingMeasureValue kwhToday = new VirtualIncrementingMeasureValue("kwh_today", "Kwh Total Today", ValueTypes.METER);
 
 			ControlIdentifiers identifiers = new ControlIdentifiers(this.getIdentifier(), node.getControlId(), kwhToday.getIdentifier());
-			VirtualRGBWValue cachedValue = (VirtualRGBWValue) this.virtualValuesCache.get(identifiers.getKey());
+			ControllerValue cachedValue = this.virtualValuesCache.get(identifiers.getKey());
 
 			if (cachedValue == null) {
 				// kwh total
 				Value incrementingValue = node.getValue(ValueType.DECIMAL, ValueGenre.USER, (short) 1, (short) 0);
 				kwhToday.setIncrementingValue(incrementingValue);
+				kwhToday.setTimeFrame(TimeFrame.DAILY);
+				kwhToday.setControlIdentifiers(identifiers);
 				if (incrementingValue != null) {
 					values.add(kwhToday);
+					this.virtualValuesCache.put(identifiers.getKey(), kwhToday);
+					this.incrementingMeasures.put(new ControlIdentifiers(this.getIdentifier(), node.getControlId(), incrementingValue.getControlId()).getKey(), kwhToday);
 				}
 			} else {
 				values.add(cachedValue);
@@ -447,9 +473,14 @@ public class ZWaveNetController extends AbstractController {
 		}
 	}
 
+	/*
+	 * Consumption of a cumulative meter value within the current time frame,
+	 * read from the MeterAggregates of the history
+	 */
 	class VirtualIncrementingMeasureValue extends VirtualControllerValue {
 		private TimeFrame timeFrame;
 		private Value incrementingValue;
+		private ControlIdentifiers controlIdentifiers;
 
 		public VirtualIncrementingMeasureValue(String identifier, String name, ValueTypes valueType) {
 			super(identifier, name, valueType);
@@ -471,6 +502,42 @@ public class ZWaveNetController extends AbstractController {
 			this.incrementingValue = incrementingValue;
 		}
 
+		public void setControlIdentifiers(ControlIdentifiers controlIdentifiers) {
+			this.controlIdentifiers = controlIdentifiers;
+		}
+
+		/*
+		 * Total of the running day or month, null when it is not known (yet)
+		 */
+		public Double getTotal() {
+			MeterAggregates meters = ZWaveNetController.this.dbconnector.getMeterAggregates();
+			if (meters == null || this.incrementingValue == null) {
+				return null;
+			}
+			RollupPeriod period;
+			if (this.timeFrame == TimeFrame.DAILY) {
+				period = RollupPeriod.DAY;
+			} else if (this.timeFrame == TimeFrame.MONTHLY) {
+				period = RollupPeriod.MONTH;
+			} else {
+				return null;
+			}
+			String seriesKey = HistorySeries.getKey(ZWaveNetController.this.getIdentifier(), ZWaveManager.getNodeIdentifier(this.incrementingValue.getNodeId(), this.incrementingValue.getHomeId()), this.incrementingValue.getControlId());
+			return meters.getDelta(seriesKey, period, System.currentTimeMillis() / 1000L);
+		}
+
+		public JSONMessage createValueChangedMessage() {
+			Double total = this.getTotal();
+			if (total == null || this.controlIdentifiers == null) {
+				return null;
+			}
+			ValueChangedMessage valueChangedMessage = new ValueChangedMessage();
+			valueChangedMessage.controlIdentifiers = this.controlIdentifiers;
+			valueChangedMessage.unit = this.incrementingValue.getValueUnit();
+			valueChangedMessage.value = total.toString();
+			valueChangedMessage.valueType = ValueTypes.METER;
+			return valueChangedMessage;
+		}
 	}
 
 	class VirtualRGBWValue extends VirtualControllerValue {